@@ -4,10 +4,13 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.widget.TextView;
+import android.widget.Toast;
 
 public class DataActivity extends AppCompatActivity {
 
@@ -15,22 +18,43 @@ public class DataActivity extends AppCompatActivity {
     private TextView txtData;
     private String savedText = null;
     private int mode;
+    private int projectId;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_data);
         txtData = findViewById(R.id.txtData);
+        txtData.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) { }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) { }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                validate(s);
+            }
+        });
         mode = getIntent().getIntExtra("mode", 0);
-        pl = new PersistedProjectList(this);
+        pl = PersistedProjectList.getInstance(this);
+        projectId = getIntent().getIntExtra("project", -1);
+        if(savedInstanceState != null) projectId = savedInstanceState.getInt("project", projectId);
         refresh();
     }
 
+    @Override
+    public void onSaveInstanceState(@NonNull Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt("project", projectId);
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
         saveChanges();
-        if(pl != null) pl.persistState();
+        if(pl != null) pl.flushState();
     }
 
     @Override
@@ -43,7 +67,7 @@ public class DataActivity extends AppCompatActivity {
     private void refresh() {
         if(savedText != null) saveChanges();
         if(mode == 1) {
-            StateMachine sm = pl.getMachine();
+            StateMachine sm = getProjectMachine();
             this.setTitle(sm.getName());
             savedText = sm.getProgram();
         } else {
@@ -56,14 +80,37 @@ public class DataActivity extends AppCompatActivity {
     private void saveChanges() {
         String newText = txtData.getText().toString();
         if(newText.equals(savedText)) return;
+        int result;
         if(mode == 1) {
-            pl.importProject(pl.getMachine().getName() + "*", newText);
+            result = pl.importProject(getProjectMachine().getName() + "*", newText);
+            // the edited copy, or the project already holding it, is what this screen shows from now on
+            if(result != ProjectList.IMPORT_SKIPPED) projectId = pl.getSelectedId();
         } else {
-            pl.importProject(genProjectName(), newText);
+            result = pl.importProject(genProjectName(), newText);
+        }
+        if(result == ProjectList.IMPORT_SKIPPED) {
+            Toast.makeText(this, R.string.import_skipped, Toast.LENGTH_SHORT).show();
+        } else if(result == ProjectList.IMPORT_LINKED) {
+            Toast.makeText(this, R.string.import_linked, Toast.LENGTH_SHORT).show();
         }
         savedText = newText;
     }
 
+    private StateMachine getProjectMachine() {
+        StateMachine sm = pl.getMachineById(projectId);
+        return sm != null ? sm : pl.getMachine();
+    }
+
+    // points at the first character the data can not be loaded from
+    private void validate(CharSequence text) {
+        int offset = text.length() == 0 ? -1 : new StateMachine(text).getLoadErrorOffset();
+        if(offset < 0) {
+            txtData.setError(null);
+        } else {
+            txtData.setError(String.format(getString(R.string.data_error_template), offset + 1));
+        }
+    }
+
     private String genProjectName() {
         return String.format(getString(R.string.project_name_template), pl.getProjectCount() + 1);
     }
@@ -0,0 +1,103 @@
+package app.smd;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+// undo and redo steps of a StateMachine, each one a packed array of the records it made
+@SuppressWarnings("unused")
+public class EditHistory {
+
+    private static final int STEP_OVERHEAD = 16;  // array header, roughly
+
+    private final Deque<long[]> undoBuffer = new ArrayDeque<>(), redoBuffer = new ArrayDeque<>();
+    private final int budget;
+    private int usedBytes;
+    private long[] pending;
+    private int pendingLength;  // 0 when no step is open
+
+    public EditHistory(int budgetBytes) {
+        budget = budgetBytes;
+        usedBytes = 0;
+        pending = new long[16];
+        pendingLength = 0;
+    }
+
+    private static int stepBytes(long[] step) {
+        return STEP_OVERHEAD + step.length * 8;
+    }
+
+    public int getBudget() {
+        return budget;
+    }
+
+    public int getUsedBytes() {
+        return usedBytes;
+    }
+
+    public boolean canUndo() {
+        return !undoBuffer.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoBuffer.isEmpty();
+    }
+
+    public void clear() {
+        undoBuffer.clear();
+        redoBuffer.clear();
+        usedBytes = 0;
+        pendingLength = 0;
+    }
+
+    boolean isStepOpen() {
+        return pendingLength > 0;
+    }
+
+    // the first value of a step is the current state before and after it
+    void beginStep(int stateBefore) {
+        pendingLength = 0;
+        append((long) stateBefore << 32);
+    }
+
+    void append(long value) {
+        if(pendingLength == pending.length) pending = Arrays.copyOf(pending, pendingLength * 2);
+        pending[pendingLength++] = value;
+    }
+
+    void endStep(int stateAfter) {
+        if(pendingLength == 0) return;
+        pending[0] |= stateAfter & 0xffffffffL;
+        long[] step = Arrays.copyOf(pending, pendingLength);
+        pendingLength = 0;
+        for(long[] s : redoBuffer) usedBytes -= stepBytes(s);
+        redoBuffer.clear();
+        undoBuffer.addLast(step);
+        usedBytes += stepBytes(step);
+        // the oldest steps go first, a single step larger than the budget is not kept at all
+        while(usedBytes > budget && !undoBuffer.isEmpty()) {
+            usedBytes -= stepBytes(undoBuffer.removeFirst());
+        }
+    }
+
+    long[] takeUndo() {
+        long[] step = undoBuffer.pollLast();
+        if(step != null) redoBuffer.addLast(step);
+        return step;
+    }
+
+    long[] takeRedo() {
+        long[] step = redoBuffer.pollLast();
+        if(step != null) undoBuffer.addLast(step);
+        return step;
+    }
+
+    static int stateBefore(long[] step) {
+        return (int) (step[0] >> 32);
+    }
+
+    static int stateAfter(long[] step) {
+        return (int) step[0];
+    }
+
+}
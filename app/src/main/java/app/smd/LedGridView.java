@@ -10,7 +10,6 @@ import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
 
-import java.math.BigInteger;
 import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Deque;
@@ -103,19 +102,30 @@ public class LedGridView extends View {
     }
 
     public String getHexPattern() {
-        return String.format("%016x", new BigInteger(1, gridData));
+        return ProgramCodec.patternToString(getPatternBits());
+    }
+
+    public long getPatternBits() {
+        long bits = 0;
+        for(int j=0; j<h; ++j) {
+            bits = (bits << 8) | (gridData[j] & 0xff);
+        }
+        return bits;
+    }
+
+    private void setPatternBitsInternal(long bits) {
+        for(int j=h-1; j>=0; --j) {
+            gridData[j] = (byte) bits;
+            bits >>>= 8;
+        }
     }
 
     private void setHexPatternInternal(String pattern) {
         if(pattern == null) return;
-        byte[] newGrid = new BigInteger(pattern, 16).toByteArray();
-        int n = newGrid.length;
-        Arrays.fill(gridData, (byte) 0);
-        if(n <= h) {
-            System.arraycopy(newGrid, 0, gridData, h-n, n);
-        } else {
-            System.arraycopy(newGrid, n-h, gridData, 0, h);
-        }
+        int n = Math.min(pattern.length(), 2 * h);
+        int start = pattern.length() - n;
+        if(!ProgramCodec.isHex(pattern, start, n)) return;
+        setPatternBitsInternal(ProgramCodec.readPattern(pattern, start, n));
     }
 
     public void setHexPattern(String pattern, boolean addUndo) {
@@ -123,6 +133,11 @@ public class LedGridView extends View {
         markUpdated(addUndo);
     }
 
+    public void setPatternBits(long bits, boolean addUndo) {
+        setPatternBitsInternal(bits);
+        markUpdated(addUndo);
+    }
+
     public boolean getEditable() {
         return editable;
     }
@@ -0,0 +1,5 @@
+package app.smd;
+
+public interface OnEventListener {
+    void onEvent(int event, int a, int b);
+}
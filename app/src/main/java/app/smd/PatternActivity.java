@@ -13,6 +13,8 @@ import androidx.appcompat.widget.Toolbar;
 public class PatternActivity extends AppCompatActivity {
 
     private PersistedProjectList pl;
+    private int projectId;
+    private final OnChangeListener changeListener = this::onProjectChanged;
     private StateMachine sm;
     private LedGridView led;
     private TransferButtons tb;
@@ -26,11 +28,12 @@ public class PatternActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_pattern);
 
-        pl = new PersistedProjectList(this);
-        sm = pl.getMachine();
+        pl = PersistedProjectList.getInstance(this);
+        projectId = pl.pinProject(getIntent().getIntExtra("project", -1));
+        sm = pl.getMachineById(projectId);
         led = findViewById(R.id.ledPattern);
         loadFrame();
-        led.setOnChangeListener(() -> sm.setPattern(led.getHexPattern()));
+        led.setOnChangeListener(() -> sm.setPatternBits(led.getPatternBits()));
 
         tb = findViewById(R.id.tbControls);
         tb.setStateMachine(sm);
@@ -50,11 +53,20 @@ public class PatternActivity extends AppCompatActivity {
         }
         tb.setVisibility(showTransfers ? View.VISIBLE : View.INVISIBLE);
 
-        pl.setOnChangeListener(() -> {
-            tb.refresh();
-            updateTitle();
-            updateSpeed();
-        });
+        pl.addOnChangeListener(changeListener);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        pl.removeOnChangeListener(changeListener);
+        pl.unpinProject(projectId);
+    }
+
+    private void onProjectChanged() {
+        tb.refresh();
+        updateTitle();
+        updateSpeed();
     }
 
     @Override
@@ -90,7 +102,7 @@ public class PatternActivity extends AppCompatActivity {
         if(sm.isErrorState()) {
             sm.gotoState(sm.getStateCount()-1);
         }
-        led.setHexPattern(sm.getPattern(), false);
+        led.setPatternBits(sm.getPatternBits(), false);
         led.clearUndo();
         currentSpeed = sm.getSpeed();
     }
@@ -98,14 +110,20 @@ public class PatternActivity extends AppCompatActivity {
     @Override
     protected void onPause() {
         super.onPause();
-        pl.persistState();
+        pl.flushState();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
         pl.loadState();
-        sm = pl.getMachine();
+        if(!pl.hasProject(projectId)) {
+            pl.unpinProject(projectId);
+            projectId = pl.pinProject(projectId);
+        }
+        // the shared list only replaces the machine when the store changed
+        if(pl.getMachineById(projectId) == sm) return;
+        sm = pl.getMachineById(projectId);
         tb.setStateMachine(sm);
         tb.refresh();
         updateTitle();
@@ -2,64 +2,482 @@ package app.smd;
 
 import static java.lang.Math.min;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 @SuppressWarnings("unused")
 public class PersistedProjectList {
 
-    private final SharedPreferences sp;
+    private static final String demoAsset = "demo_projects.bin";
+    private static final int loadChunk = 32;  // machines decoded per hand over to the list
+    private static final int importChunksInFlight = 2;  // decoded ahead of the list at most
+    private static final Charset textCharset = Charset.forName("UTF-8");
+    private static final Executor loadExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ProjectLoader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static PersistedProjectList instance;
+
+    private final ProjectWriter writer;
+    private final ProjectStore store;  // only read here, writes go through the writer
+    private final SharedPreferences sp;  // the dedup mode, and the old single string format to migrate
     private final ProjectList pl;
     private final Context savedContext;
-    private OnChangeListener onChangeListener;
+    private final ArrayList<OnChangeListener> changeListeners;
+    private int generation;  // of the index last read or handed to the writer, -1 before that
+    private int version;  // incremented whenever the list is reloaded from the store
+    private Loading loading;  // the load in progress, null otherwise
 
     public PersistedProjectList(Context context, String key) {
+        this(context, key, true);
+    }
+
+    private PersistedProjectList(Context context, String key, boolean load) {
         savedContext = context;
+        writer = ProjectWriter.forDirectory(new File(context.getFilesDir(), key));
+        store = writer.getStore();
         sp = context.getSharedPreferences(key, Context.MODE_PRIVATE);
         pl = new ProjectList();
-        loadState();
-        onChangeListener = null;
+        pl.setLoader(this::loadProject);
+        pl.setDedupMode(sp.getInt("dedup", ProjectList.DEDUP_NONE));
+        generation = -1;
+        version = 0;
+        changeListeners = new ArrayList<>();
         pl.setOnChangeListener(this::fireOnChange);
+        if(load) loadState();
+    }
+
+    // the list every activity shares, so the store is only decoded once per process; it keeps the
+    // application context, the activities come and go. Main thread only.
+    public static PersistedProjectList getInstance(Context context) {
+        if(instance == null) createInstance(context, true);
+        else instance.finishLoading();
+        return instance;
+    }
+
+    // for the first screen, which shows placeholders until onLoaded runs on mainThread
+    public static PersistedProjectList getInstance(Context context, Executor mainThread, Runnable onLoaded) {
+        if(instance == null) createInstance(context, false);
+        instance.loadStateAsync(mainThread, onLoaded);
+        return instance;
+    }
+
+    private static void createInstance(Context context, boolean load) {
+        Context app = context.getApplicationContext();
+        instance = new PersistedProjectList(app, "smd", load);
+        app.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if(level >= TRIM_MEMORY_RUNNING_LOW) instance.trimMemory();
+            }
+
+            @Override
+            public void onConfigurationChanged(@NonNull Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                instance.trimMemory();
+            }
+        });
+    }
+
+    // drops every project that can be read back from the store, a background process should
+    // only hold its previews
+    public void trimMemory() {
+        persistState();
+        pl.trimMemory();
     }
 
     public PersistedProjectList(Context context) {
         this(context, "smd");
     }
 
+    // hands the projects changed since they were stored to the background writer, then the index
+    // if anything changed; cheap enough to call after every edit, bursts are written together
     public void persistState() {
-        SharedPreferences.Editor spe = sp.edit();
-        spe.putString("projects", pl.exportAll());
-        spe.putInt("selection", pl.getSelIndex());
-        spe.apply();
+        // the list is incomplete until the load ends
+        if(loading != null) return;
+        boolean changed = pl.isListDirty();
+        int count = pl.getProjectCount();
+        for(int i=0; i<count; ++i) {
+            if(!pl.isProjectDirty(i)) continue;
+            writer.writeProject(pl.getProjectId(i), pl.getMachine(i).snapshot());
+            pl.markProjectClean(i);
+            changed = true;
+        }
+        if(!changed) return;
+        writeIndex();
+        pl.markListClean();
+        // the writer removes them only once the index no longer lists them
+        for(int id : pl.takeRemovedIds()) writer.deleteProject(id);
+    }
+
+    private void writeIndex() {
+        int count = pl.getProjectCount();
+        ProjectStore.Index index = new ProjectStore.Index();
+        index.generation = ++generation;
+        index.nextId = pl.getNextId();
+        index.selection = pl.getSelIndex();
+        index.ids = new int[count];
+        index.previews = new ProjectList.Preview[count];
+        index.hashes = new long[count];
+        for(int i=0; i<count; ++i) {
+            index.ids[i] = pl.getProjectId(i);
+            index.previews[i] = pl.getPreview(i);
+            index.hashes[i] = pl.getContentHash(i);
+        }
+        writer.writeIndex(index);
+    }
+
+    // a project the list dropped from memory, the writer may still hold a newer version than the store
+    private StateMachine loadProject(int id) {
+        StateMachine unwritten = writer.getUnwrittenProject(id);
+        if(unwritten != null) return unwritten.snapshot();
+        return store.readProject(id);
+    }
+
+    // for onPause, starts writing right away instead of after the debounce
+    public void flushState() {
+        persistState();
+        writer.flush();
+    }
+
+    // returns once everything is on disk, blocks on the disk
+    public void flushAndWait() {
+        persistState();
+        writer.flushAndWait();
+    }
+
+    public ProjectWriter getWriter() {
+        return writer;
+    }
+
+    public boolean isLoaded() {
+        return loading == null;
     }
 
     public void loadState() {
-        String fullRepr = sp.getString("projects", "");
-        int selIndex = sp.getInt("selection", 0);
-        pl.clear();
-        if(fullRepr.isEmpty()) {
-            loadDemoProjects();
-        } else {
-            pl.importAll(fullRepr);
+        // a background load brings the newest state anyway
+        if(loading != null) return;
+        if(isCurrent()) return;
+        loading = new Loading(Runnable::run);
+        loading.run();
+    }
+
+    // like loadState, but reads and decodes on a background thread; the projects are handed to
+    // the list through mainThread in chunks, placeholder rows stand in for the rest until then,
+    // and onLoaded runs once all are in
+    public void loadStateAsync(Executor mainThread, Runnable onLoaded) {
+        if(loading == null && isCurrent()) {
+            onLoaded.run();
+            return;
+        }
+        if(loading == null) {
+            loading = new Loading(mainThread);
+            loadExecutor.execute(loading);
+        }
+        loading.callbacks.add(onLoaded);
+    }
+
+    // completes a background load right away, for a screen that needs the projects now
+    public void finishLoading() {
+        if(loading != null) loading.finish();
+    }
+
+    // the last index handed to the writer is ours, so the store holds this list once written
+    private boolean isCurrent() {
+        return generation >= 0 && writer.getRequestedGeneration() == generation;
+    }
+
+    // reads the store on whatever thread run() is called on, and applies what it read to the
+    // list through mainThread
+    private class Loading implements Runnable {
+
+        private final Executor mainThread;
+        private final int knownGeneration;
+        private final CountDownLatch done;
+        final ArrayList<Runnable> callbacks;
+        // written before they are handed over through mainThread or done
+        private boolean unchanged;
+        private boolean initial;  // the store was empty, the projects are new to it
+        private boolean migrated;  // from the string the SharedPreferences held before
+        private boolean completed;  // previews were missing from the index
+        private int total;  // entries in the index, the rows to show placeholders for
+        private int[] ids;
+        private StateMachine[] machines;
+        private ProjectList.Preview[] previews;
+        private long[] hashes;  // null if none are known
+        private int count;
+        private int selection;
+        private int nextId;
+        private int storedGeneration;
+        // main thread only
+        private boolean begun;
+        private int applied;
+
+        Loading(Executor mainThread) {
+            this.mainThread = mainThread;
+            knownGeneration = generation;
+            done = new CountDownLatch(1);
+            callbacks = new ArrayList<>();
+        }
+
+        @Override
+        public void run() {
+            try {
+                read();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void read() {
+            // another list on the store may still have writes pending
+            writer.flushAndWait();
+            // nothing to reload if the store was not written since it was last read or written here
+            int stored = store.readGeneration();
+            if(stored >= 0 && stored == knownGeneration) {
+                unchanged = true;
+                mainThread.execute(this::end);
+                return;
+            }
+            ProjectStore.Index index = store.open();
+            if(index == null) {
+                readInitialProjects();
+                return;
+            }
+            // only the previews are needed for the list, projects are read once they are used; an
+            // index from before the previews were stored is completed by reading the projects
+            total = index.ids.length;
+            ids = new int[total];
+            machines = new StateMachine[total];
+            previews = new ProjectList.Preview[total];
+            hashes = new long[total];
+            nextId = index.nextId;
+            storedGeneration = index.generation;
+            selection = -1;
+            int decoded = 0;
+            for(int i=0; i<total; ++i) {
+                if(index.previews[i] == null) {
+                    StateMachine sm = store.readProject(index.ids[i]);
+                    if(sm == null) continue;
+                    machines[count] = sm;
+                    completed = true;
+                    ++decoded;
+                } else {
+                    previews[count] = index.previews[i];
+                }
+                if(i == index.selection) selection = count;
+                ids[count] = index.ids[i];
+                hashes[count] = index.hashes[i];
+                ++count;
+                if(decoded == loadChunk) {
+                    decoded = 0;
+                    int to = count;
+                    mainThread.execute(() -> deliver(to));
+                }
+            }
+            mainThread.execute(this::end);
+        }
+
+        // an empty store is filled from the string the SharedPreferences held before, or the demos
+        private void readInitialProjects() {
+            initial = true;
+            String fullRepr = sp.getString("projects", "");
+            String[] reprs = null;
+            if(fullRepr.isEmpty()) {
+                machines = readDemoProjects();
+                selection = 0;
+            } else {
+                reprs = ProjectList.splitAll(fullRepr);
+                machines = new StateMachine[reprs.length];
+                migrated = true;
+                selection = sp.getInt("selection", 0);
+            }
+            total = machines.length;
+            ids = new int[total];
+            for(int i=0; i<total; ++i) ids[i] = i;
+            previews = new ProjectList.Preview[total];
+            nextId = total;
+            if(reprs != null) {
+                // the placeholders are shown while the old format decodes
+                mainThread.execute(() -> deliver(0));
+                for(int i=0; i<reprs.length; ++i) {
+                    machines[i] = new StateMachine(reprs[i]);
+                    if((i + 1) % loadChunk == 0) {
+                        int to = i + 1;
+                        mainThread.execute(() -> deliver(to));
+                    }
+                }
+            }
+            count = total;
+            mainThread.execute(this::end);
+        }
+
+        // the demos ship decoded in an asset, the programs in the resources are the fallback
+        private StateMachine[] readDemoProjects() {
+            Resources res = savedContext.getResources();
+            StateMachine[] demos;
+            try {
+                InputStream in = savedContext.getAssets().open(demoAsset);
+                try {
+                    demos = ProjectStore.readPack(new DataInputStream(new BufferedInputStream(in)));
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                demos = null;
+            }
+            if(demos == null) {
+                String[] programs = res.getStringArray(R.array.demo_projects);
+                demos = new StateMachine[programs.length];
+                for(int i=0; i<programs.length; ++i) demos[i] = new StateMachine(programs[i]);
+            }
+            String[] titles = res.getStringArray(R.array.demo_project_titles);
+            int demoCount = min(demos.length, titles.length);
+            for(int i=0; i<demoCount; ++i) demos[i].setName(titles[i]);
+            return Arrays.copyOf(demos, demoCount);
+        }
+
+        // hands entries up to to over to the list
+        private void deliver(int to) {
+            if(loading != this) return;
+            if(!begun) {
+                pl.beginRestore(total, nextId);
+                begun = true;
+            }
+            if(to <= applied) return;
+            pl.continueRestore(ids, machines, previews, hashes, applied, to, initial);
+            applied = to;
+        }
+
+        private void end() {
+            if(loading != this) return;
+            if(!unchanged) {
+                deliver(count);
+                pl.endRestore(selection);
+                if(!initial) generation = storedGeneration;
+                ++version;
+            }
+            loading = null;
+            if(initial) {
+                persistState();
+                if(migrated) {
+                    writer.flushAndWait();
+                    if(store.readGeneration() == generation) {
+                        sp.edit().remove("projects").remove("selection").apply();
+                    }
+                }
+            } else if(completed) {
+                writeIndex();
+            }
+            for(Runnable callback : callbacks) callback.run();
+        }
+
+        // main thread, does the rest of the work on the calling thread
+        void finish() {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            end();
         }
-        pl.selectProject(selIndex);
+
     }
 
-    private void loadDemoProjects() {
-        String[] demoProjects = savedContext.getResources().getStringArray(R.array.demo_projects);
-        String[] demoProjectsTitles = savedContext.getResources().getStringArray(R.array.demo_project_titles);
-        int demoCount = min(demoProjects.length, demoProjectsTitles.length);
-        for(int i = 0; i < demoCount; ++i) {
-            pl.importProject(demoProjectsTitles[i], demoProjects[i]);
+    // collects decoded projects on the importing thread and appends them chunk by chunk on the
+    // main thread, waiting while importChunksInFlight chunks are not appended yet
+    private class ImportSink implements ProjectStream.Sink {
+
+        private final Executor mainThread;
+        private final Semaphore inFlight;
+        private StateMachine[] chunk;
+        private int size;
+        int appended;  // main thread only, without the duplicates left out
+        int duplicates;  // main thread only, the ones left out
+
+        ImportSink(Executor mainThread) {
+            this.mainThread = mainThread;
+            inFlight = new Semaphore(importChunksInFlight);
+            chunk = new StateMachine[loadChunk];
         }
+
+        @Override
+        public void add(StateMachine sm) {
+            chunk[size++] = sm;
+            if(size == loadChunk) handOver();
+        }
+
+        void handOver() {
+            if(size == 0) return;
+            StateMachine[] machines = chunk;
+            int n = size;
+            chunk = new StateMachine[loadChunk];
+            size = 0;
+            inFlight.acquireUninterruptibly();
+            mainThread.execute(() -> {
+                int added = pl.appendProjects(machines, n);
+                appended += added;
+                duplicates += n - added;
+                // stored right away, so the list can drop them from memory
+                persistState();
+                inFlight.release();
+            });
+        }
+
+    }
+
+    // machines obtained before a reload are no longer part of the list once this changed
+    public int getVersion() {
+        return version;
+    }
+
+    public void addOnChangeListener(OnChangeListener listener) {
+        if(!changeListeners.contains(listener)) changeListeners.add(listener);
+    }
+
+    public void removeOnChangeListener(OnChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+
+    public void addOnEventListener(OnEventListener listener) {
+        pl.addOnEventListener(listener);
     }
 
-    public void setOnChangeListener(OnChangeListener listener) {
-        onChangeListener = listener;
+    public void removeOnEventListener(OnEventListener listener) {
+        pl.removeOnEventListener(listener);
     }
 
     private void fireOnChange() {
-        if(onChangeListener != null) onChangeListener.onChange();
+        for(int i=0; i<changeListeners.size(); ++i) {
+            changeListeners.get(i).onChange();
+        }
     }
 
     public ProjectList getWrappedProjectList() {
@@ -82,6 +500,31 @@ public class PersistedProjectList {
         return pl.getMachine();
     }
 
+    public int getSelectedId() {
+        return pl.getSelectedId();
+    }
+
+    // reads only this project if it is not in memory yet, null if it was deleted
+    public StateMachine getMachineById(int id) {
+        return pl.getMachineById(id);
+    }
+
+    public boolean hasProject(int id) {
+        return pl.hasProject(id);
+    }
+
+    // pins the project a screen was started for, or the selected one if that is gone, and
+    // returns the id pinned; the screen releases it with unpinProject
+    public int pinProject(int id) {
+        if(!pl.hasProject(id)) id = pl.getSelectedId();
+        pl.pinProject(id);
+        return id;
+    }
+
+    public void unpinProject(int id) {
+        pl.unpinProject(id);
+    }
+
     public void addProject(String name) {
         pl.addProject(name);
     }
@@ -90,14 +533,25 @@ public class PersistedProjectList {
         pl.cloneProject(name);
     }
 
-    public void importProject(String name, String programOrRepr) {
-        pl.importProject(name, programOrRepr);
+    // one of the ProjectList.IMPORT_ results
+    public int importProject(String name, String programOrRepr) {
+        return pl.importProject(name, programOrRepr);
     }
 
     public void deleteProject() {
         pl.deleteProject();
     }
 
+    // one of the ProjectList.DEDUP_ modes, kept for every later import
+    public void setDedupMode(int mode) {
+        pl.setDedupMode(mode);
+        sp.edit().putInt("dedup", mode).apply();
+    }
+
+    public int getDedupMode() {
+        return pl.getDedupMode();
+    }
+
     public String exportAll() {
         return pl.exportAll();
     }
@@ -110,4 +564,103 @@ public class PersistedProjectList {
         pl.importAll(fullRepr);
     }
 
+    // writes every project to out in the given ProjectStream format on a background thread and
+    // closes it; the projects in memory are snapshotted here, the others are read from the store
+    // there. progress and onFinish run on mainThread, onFinish gets -1 if writing failed.
+    public ProjectStream exportLibrary(OutputStream out, int format, Executor mainThread,
+                                       ProjectStream.OnProgressListener progress,
+                                       ProjectStream.OnFinishListener onFinish) {
+        persistState();
+        int count = pl.getProjectCount();
+        int[] ids = new int[count];
+        StateMachine[] machines = new StateMachine[count];
+        ProjectList.Preview[] previews = new ProjectList.Preview[count];
+        for(int i=0; i<count; ++i) {
+            ids[i] = pl.getProjectId(i);
+            StateMachine sm = pl.getLoadedMachine(i);
+            if(sm != null) machines[i] = sm.snapshot();
+            else previews[i] = pl.getPreview(i);
+        }
+        ProjectStream.Source source = new ProjectStream.Source() {
+            @Override
+            public int getCount() {
+                return count;
+            }
+
+            @Override
+            public StateMachine get(int index) {
+                if(machines[index] != null) return machines[index];
+                StateMachine sm = loadProject(ids[index]);
+                if(sm == null) {
+                    // unreadable, exported empty as the list shows it
+                    sm = new StateMachine();
+                    if(previews[index] != null) sm.setName(previews[index].name);
+                }
+                return sm;
+            }
+        };
+        ProjectStream stream = new ProjectStream();
+        stream.setOnProgressListener((projects, chars) -> mainThread.execute(() -> progress.onProgress(projects, chars)));
+        new Thread(() -> {
+            int written;
+            try {
+                if(format == ProjectStream.FORMAT_BINARY) {
+                    written = stream.writeBinary(source, out);
+                } else {
+                    written = stream.writeText(source, new OutputStreamWriter(out, textCharset));
+                }
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    written = -1;
+                }
+            }
+            int result = written;
+            mainThread.execute(() -> onFinish.onFinish(result));
+        }, "ProjectExport").start();
+        return stream;
+    }
+
+    // projects appended by an import, -1 if reading failed after them, and the duplicates the
+    // dedup mode left out
+    public interface OnImportFinishListener {
+        void onFinish(int projects, int duplicates);
+    }
+
+    // reads projects from in, telling the format by its start, on a background thread and closes
+    // it; they are appended to the list through mainThread in chunks as they decode, so memory
+    // holds only a few chunks beyond the list. Cancelling keeps what was appended so far.
+    public ProjectStream importLibrary(InputStream in, Executor mainThread,
+                                      ProjectStream.OnProgressListener progress,
+                                      OnImportFinishListener onFinish) {
+        ProjectStream stream = new ProjectStream();
+        stream.setParallelDecoding(true);
+        stream.setOnProgressListener((projects, chars) -> mainThread.execute(() -> progress.onProgress(projects, chars)));
+        ImportSink sink = new ImportSink(mainThread);
+        new Thread(() -> {
+            int read = -1;
+            try {
+                BufferedInputStream buffered = new BufferedInputStream(in);
+                if(ProjectStream.detectFormat(buffered) == ProjectStream.FORMAT_BINARY) {
+                    read = stream.readBinary(buffered, sink);
+                } else {
+                    read = stream.readText(new InputStreamReader(buffered, textCharset), sink);
+                }
+                // a failed read keeps the projects before the error, as a cancelled one does
+                sink.handOver();
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                    // everything needed was read
+                }
+                // whatever happened, the list is told the import is over
+                boolean failed = read < 0;
+                mainThread.execute(() -> onFinish.onFinish(failed ? -1 : sink.appended, sink.duplicates));
+            }
+        }, "ProjectImport").start();
+        return stream;
+    }
+
 }
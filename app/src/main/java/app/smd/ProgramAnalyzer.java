@@ -0,0 +1,452 @@
+package app.smd;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+// reachability, components and error paths over the resolved transfers of a StateMachine; edits
+// of a state update the results from that state on, edits that renumber the states build them
+// again on the next query
+@SuppressWarnings("unused")
+public class ProgramAnalyzer {
+
+    private static final int NUM_TX = StateMachine.NUM_TX;
+
+    private final StateMachine sm;
+    private final OnEventListener eventListener = this::onStateMachineEvent;
+    private boolean valid;  // edges, preds, depth and reachesError are current
+    private boolean componentsValid;  // built on demand, no screen asks for them after each edit
+    private int n;
+    private int[] edges;  // per state and tx, the target or -1, OP_ERROR for the error state
+    private int[][] preds;  // per state, the state and tx of the edges to it
+    private int[] predCount;
+    private int[] depth;  // from the first state, -1 if unreachable
+    private int[] parent;  // state and tx of an edge on a shortest path to the state
+    private int[] component;
+    private int numComponents;
+    private boolean[] terminal;  // per component, no transfer leaves it
+    private boolean[] reachesError;
+    // scratch for the updates
+    private int[] queue;
+    private int[] work;
+    private boolean[] affected;
+
+    public ProgramAnalyzer(StateMachine sm) {
+        this.sm = sm;
+        valid = false;
+        componentsValid = false;
+        sm.addOnEventListener(eventListener);
+    }
+
+    public void detach() {
+        sm.removeOnEventListener(eventListener);
+    }
+
+    // only edits of the transfer graph matter, playback, patterns and names do not
+    private void onStateMachineEvent(int event, int a, int b) {
+        switch (event) {
+            case StateMachine.EV_TRANSFER_CHANGED:
+                if(a >= 0) updateState(a);
+                else updateDefault(b);
+                break;
+            case StateMachine.EV_SPEED_CHANGED:
+                // the global speed stops no auto transfer
+                if(a >= 0) updateState(a);
+                break;
+            case StateMachine.EV_STATE_CHANGED:
+                updateState(a);
+                break;
+            case StateMachine.EV_RELOADED:
+            case StateMachine.EV_STATE_INSERTED:
+            case StateMachine.EV_STATE_REMOVED:
+            case StateMachine.EV_STATE_MOVED:
+                // the states are renumbered, so is every edge
+                valid = false;
+                componentsValid = false;
+                break;
+        }
+    }
+
+    private void update() {
+        if(valid) return;
+        n = sm.getStateCount();
+        queue = new int[n];
+        work = new int[n];
+        affected = new boolean[n];
+        buildEdges();
+        findReachable();
+        findErrorReaching();
+        valid = true;
+    }
+
+    private void updateComponents() {
+        update();
+        if(componentsValid) return;
+        findComponents();
+        componentsValid = true;
+    }
+
+    // the edge getResolvedTransfer gives, read without compiling the whole transition table
+    private int resolveEdge(int s, int tx) {
+        // auto transfers never fire at the stopped speed
+        if(tx == StateMachine.TX_AUTO && sm.getSpeed(s) == 3) return -1;
+        int op = sm.getRawTransfer(s, tx);
+        if(op == StateMachine.OP_INHERIT) op = sm.getDefaultTransfer(tx);
+        int t = StateMachine.resolveOp(s, op, n);
+        return t >= 0 || t == StateMachine.OP_ERROR ? t : -1;
+    }
+
+    private void buildEdges() {
+        edges = new int[n * NUM_TX];
+        preds = new int[n][];
+        predCount = new int[n];
+        for(int s=0; s<n; ++s) {
+            for(int tx=0; tx<NUM_TX; ++tx) {
+                int t = resolveEdge(s, tx);
+                edges[s * NUM_TX + tx] = t;
+                if(t >= 0) addPred(t, s * NUM_TX + tx);
+            }
+        }
+    }
+
+    private void addPred(int t, int slot) {
+        int[] bucket = preds[t];
+        int count = predCount[t];
+        if(bucket == null) {
+            bucket = preds[t] = new int[2];
+        } else if(count == bucket.length) {
+            bucket = preds[t] = Arrays.copyOf(bucket, count * 2);
+        }
+        bucket[count] = slot;
+        predCount[t] = count + 1;
+    }
+
+    private void removePred(int t, int slot) {
+        int[] bucket = preds[t];
+        int count = predCount[t];
+        for(int k=0; k<count; ++k) {
+            if(bucket[k] != slot) continue;
+            bucket[k] = bucket[count - 1];
+            predCount[t] = count - 1;
+            return;
+        }
+    }
+
+    private void updateState(int s) {
+        if(!valid || s < 0 || s >= n) return;
+        for(int tx=0; tx<NUM_TX; ++tx) setEdge(s, tx, resolveEdge(s, tx));
+    }
+
+    // a default transfer changes the states that inherit it
+    private void updateDefault(int tx) {
+        if(!valid || tx < 0 || tx >= NUM_TX) return;
+        for(int s=0; s<n; ++s) {
+            if(sm.getRawTransfer(s, tx) == StateMachine.OP_INHERIT) setEdge(s, tx, resolveEdge(s, tx));
+        }
+    }
+
+    private void setEdge(int s, int tx, int t) {
+        int slot = s * NUM_TX + tx;
+        int old = edges[slot];
+        if(old == t) return;
+        edges[slot] = t;
+        componentsValid = false;
+        if(old >= 0) removePred(old, slot);
+        if(t >= 0) addPred(t, slot);
+        if(old >= 0 && parent[old] == slot) reroot(old);
+        if(t >= 0 && depth[s] >= 0 && (depth[t] < 0 || depth[t] > depth[s] + 1)) {
+            depth[t] = depth[s] + 1;
+            parent[t] = slot;
+            lower(t);
+        }
+        // the new target may reach the error only through the old edge, so that goes first
+        boolean reached = old == StateMachine.OP_ERROR || (old >= 0 && reachesError[old]);
+        if(t == StateMachine.OP_ERROR) markReachesError(s);
+        else if(reached && reachesError[s]) recheckError(s);
+        if(t >= 0 && reachesError[t]) markReachesError(s);
+    }
+
+    // breadth first, so the parents give shortest input sequences
+    private void findReachable() {
+        depth = new int[n];
+        parent = new int[n];
+        Arrays.fill(depth, -1);
+        Arrays.fill(parent, -1);
+        depth[0] = 0;
+        lower(0);
+    }
+
+    // start got closer to the first state, and so may what it leads to
+    private void lower(int start) {
+        int head = 0, tail = 0;
+        queue[tail++] = start;
+        while(head < tail) {
+            int s = queue[head++];
+            for(int tx=0; tx<NUM_TX; ++tx) {
+                int t = edges[s * NUM_TX + tx];
+                if(t >= 0 && (depth[t] < 0 || depth[t] > depth[s] + 1)) {
+                    depth[t] = depth[s] + 1;
+                    parent[t] = s * NUM_TX + tx;
+                    queue[tail++] = t;
+                }
+            }
+        }
+    }
+
+    // the edge root was reached through is gone: the states whose shortest path ran through it
+    // are entered again from the nearest state outside them, nearest first
+    private void reroot(int root) {
+        int count = 0;
+        queue[count++] = root;
+        affected[root] = true;
+        for(int head=0; head<count; ++head) {
+            int s = queue[head];
+            for(int tx=0; tx<NUM_TX; ++tx) {
+                int t = edges[s * NUM_TX + tx];
+                if(t >= 0 && !affected[t] && parent[t] == s * NUM_TX + tx) {
+                    affected[t] = true;
+                    queue[count++] = t;
+                }
+            }
+        }
+        PriorityQueue<Long> nearest = new PriorityQueue<>();
+        for(int k=0; k<count; ++k) {
+            int t = queue[k];
+            depth[t] = -1;
+            parent[t] = -1;
+        }
+        for(int k=0; k<count; ++k) {
+            int t = queue[k];
+            for(int q=0; q<predCount[t]; ++q) {
+                int slot = preds[t][q];
+                int s = slot / NUM_TX;
+                if(affected[s] || depth[s] < 0) continue;
+                if(depth[t] < 0 || depth[s] + 1 < depth[t]) {
+                    depth[t] = depth[s] + 1;
+                    parent[t] = slot;
+                }
+            }
+            if(depth[t] >= 0) nearest.add(((long) depth[t] << 32) | t);
+        }
+        while(!nearest.isEmpty()) {
+            long entry = nearest.poll();
+            int s = (int) entry;
+            if(!affected[s] || depth[s] != (int) (entry >>> 32)) continue;
+            affected[s] = false;
+            for(int tx=0; tx<NUM_TX; ++tx) {
+                int t = edges[s * NUM_TX + tx];
+                if(t >= 0 && affected[t] && (depth[t] < 0 || depth[t] > depth[s] + 1)) {
+                    depth[t] = depth[s] + 1;
+                    parent[t] = s * NUM_TX + tx;
+                    nearest.add(((long) depth[t] << 32) | t);
+                }
+            }
+        }
+        // what is left can not be reached any more
+        for(int k=0; k<count; ++k) affected[queue[k]] = false;
+    }
+
+    // Tarjan's algorithm with an explicit stack, programs can be deeper than the thread stack
+    private void findComponents() {
+        component = new int[n];
+        Arrays.fill(component, -1);
+        int[] index = new int[n];
+        int[] low = new int[n];
+        Arrays.fill(index, -1);
+        boolean[] onStack = new boolean[n];
+        int[] stack = new int[n];
+        int stackSize = 0;
+        int[] callState = new int[n];
+        int[] callTx = new int[n];
+        int callSize = 0;
+        int counter = 0;
+        numComponents = 0;
+        for(int root=0; root<n; ++root) {
+            if(index[root] >= 0) continue;
+            callState[0] = root;
+            callTx[0] = 0;
+            callSize = 1;
+            index[root] = low[root] = counter++;
+            stack[stackSize++] = root;
+            onStack[root] = true;
+            while(callSize > 0) {
+                int s = callState[callSize - 1];
+                int tx = callTx[callSize - 1];
+                if(tx < NUM_TX) {
+                    callTx[callSize - 1] = tx + 1;
+                    int t = edges[s * NUM_TX + tx];
+                    if(t < 0) continue;
+                    if(index[t] < 0) {
+                        index[t] = low[t] = counter++;
+                        stack[stackSize++] = t;
+                        onStack[t] = true;
+                        callState[callSize] = t;
+                        callTx[callSize] = 0;
+                        ++callSize;
+                    } else if(onStack[t]) {
+                        low[s] = Math.min(low[s], index[t]);
+                    }
+                    continue;
+                }
+                if(low[s] == index[s]) {
+                    int t;
+                    do {
+                        t = stack[--stackSize];
+                        onStack[t] = false;
+                        component[t] = numComponents;
+                    } while(t != s);
+                    ++numComponents;
+                }
+                --callSize;
+                if(callSize > 0) {
+                    int p = callState[callSize - 1];
+                    low[p] = Math.min(low[p], low[s]);
+                }
+            }
+        }
+        terminal = new boolean[numComponents];
+        Arrays.fill(terminal, true);
+        for(int s=0; s<n; ++s) {
+            for(int tx=0; tx<NUM_TX; ++tx) {
+                int t = edges[s * NUM_TX + tx];
+                if(t == StateMachine.OP_ERROR || (t >= 0 && component[t] != component[s])) {
+                    terminal[component[s]] = false;
+                }
+            }
+        }
+    }
+
+    private boolean hasErrorEdge(int s) {
+        for(int tx=0; tx<NUM_TX; ++tx) {
+            if(edges[s * NUM_TX + tx] == StateMachine.OP_ERROR) return true;
+        }
+        return false;
+    }
+
+    // backwards from every state with a transfer to the error
+    private void findErrorReaching() {
+        reachesError = new boolean[n];
+        for(int s=0; s<n; ++s) {
+            if(hasErrorEdge(s)) markReachesError(s);
+        }
+    }
+
+    private void markReachesError(int start) {
+        if(reachesError[start]) return;
+        reachesError[start] = true;
+        int tail = 0;
+        work[tail++] = start;
+        while(tail > 0) {
+            int t = work[--tail];
+            for(int q=0; q<predCount[t]; ++q) {
+                int s = preds[t][q] / NUM_TX;
+                if(reachesError[s]) continue;
+                reachesError[s] = true;
+                work[tail++] = s;
+            }
+        }
+    }
+
+    // start lost an edge towards the error: the states that reached it only through start do not
+    // any more, the others are marked again from what still leads out to the error
+    private void recheckError(int start) {
+        int count = 0;
+        queue[count++] = start;
+        affected[start] = true;
+        for(int head=0; head<count; ++head) {
+            int t = queue[head];
+            for(int q=0; q<predCount[t]; ++q) {
+                int s = preds[t][q] / NUM_TX;
+                if(affected[s] || !reachesError[s]) continue;
+                affected[s] = true;
+                queue[count++] = s;
+            }
+        }
+        for(int k=0; k<count; ++k) reachesError[queue[k]] = false;
+        int tail = 0;
+        for(int k=0; k<count; ++k) {
+            int s = queue[k];
+            for(int tx=0; tx<NUM_TX; ++tx) {
+                int t = edges[s * NUM_TX + tx];
+                if(t == StateMachine.OP_ERROR || (t >= 0 && !affected[t] && reachesError[t])) {
+                    reachesError[s] = true;
+                    work[tail++] = s;
+                    break;
+                }
+            }
+        }
+        while(tail > 0) {
+            int t = work[--tail];
+            for(int q=0; q<predCount[t]; ++q) {
+                int s = preds[t][q] / NUM_TX;
+                if(!affected[s] || reachesError[s]) continue;
+                reachesError[s] = true;
+                work[tail++] = s;
+            }
+        }
+        for(int k=0; k<count; ++k) affected[queue[k]] = false;
+    }
+
+    public boolean isReachable(int state) {
+        update();
+        return state >= 0 && state < n && depth[state] >= 0;
+    }
+
+    public int getUnreachableCount() {
+        update();
+        int count = 0;
+        for(int s=0; s<n; ++s) {
+            if(depth[s] < 0) ++count;
+        }
+        return count;
+    }
+
+    public int getComponentCount() {
+        updateComponents();
+        return numComponents;
+    }
+
+    public int getComponent(int state) {
+        updateComponents();
+        if(state < 0 || state >= n) return -1;
+        return component[state];
+    }
+
+    // once playback gets here it can never leave the state's component, a dead end if it is alone
+    public boolean isAbsorbing(int state) {
+        updateComponents();
+        if(state < 0 || state >= n) return false;
+        return terminal[component[state]];
+    }
+
+    public boolean canReachError(int state) {
+        update();
+        return state >= 0 && state < n && reachesError[state];
+    }
+
+    // shortest transfer sequence from the first state into the error state, null if there is none
+    public int[] getErrorWitness() {
+        update();
+        // the reachable state closest to the first with a transfer to the error
+        int errorState = -1;
+        int errorTx = -1;
+        for(int s=0; s<n; ++s) {
+            if(depth[s] < 0 || (errorState >= 0 && depth[s] >= depth[errorState])) continue;
+            for(int tx=0; tx<NUM_TX; ++tx) {
+                if(edges[s * NUM_TX + tx] != StateMachine.OP_ERROR) continue;
+                errorState = s;
+                errorTx = tx;
+                break;
+            }
+        }
+        if(errorState < 0) return null;
+        int[] witness = new int[depth[errorState] + 1];
+        witness[witness.length - 1] = errorTx;
+        int s = errorState;
+        for(int k=witness.length-2; k>=0; --k) {
+            witness[k] = parent[s] % NUM_TX;
+            s = parent[s] / NUM_TX;
+        }
+        return witness;
+    }
+
+}
@@ -0,0 +1,361 @@
+package app.smd;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+@SuppressWarnings("unused")
+public class ProgramCodec {
+
+    public static final int PREFIX_DIGITS = 10;  // magic and state count
+    public static final int HEADER_DIGITS = 12;
+    public static final int TRANSFER_DIGITS = 11;
+    public static final int PATTERN_DIGITS = 16;
+    public static final int DATA_OFFSET = PREFIX_DIGITS + HEADER_DIGITS;
+
+    private static final int OP_BITS = 7;
+    private static final int OP_MASK = 0x7f;
+    private static final int HEADER_SPEED_BITS = 6;
+    private static final int TRANSFER_SPEED_BITS = 2;
+    private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+    private static final int MAX_VARINT_BYTES = 5;
+    public static final int MAX_TRANSFER_BYTES = 1 + StateMachine.NUM_TX * MAX_VARINT_BYTES;
+
+    private char[] buffer;
+    private int numStates;
+    private int length;
+
+    public ProgramCodec() {
+        buffer = new char[256];
+        numStates = 0;
+        length = 0;
+    }
+
+    public static int transferDataLength(int numStates) {
+        return (numStates * TRANSFER_DIGITS + 1) & ~1;
+    }
+
+    public static int programLength(int numStates) {
+        return DATA_OFFSET + transferDataLength(numStates) + numStates * PATTERN_DIGITS;
+    }
+
+    public static int transferOffset(int index) {
+        return DATA_OFFSET + index * TRANSFER_DIGITS;
+    }
+
+    public static int patternOffset(int numStates, int index) {
+        return DATA_OFFSET + transferDataLength(numStates) + index * PATTERN_DIGITS;
+    }
+
+    // value of each ascii character as a hex digit, -1 if it is not one
+    private static final byte[] hexValues = new byte[128];
+    static {
+        Arrays.fill(hexValues, (byte) -1);
+        for(int i=0; i<16; ++i) {
+            hexValues[hexDigits[i]] = (byte) i;
+            hexValues[Character.toUpperCase(hexDigits[i])] = (byte) i;
+        }
+    }
+
+    private static int hexValue(char c) {
+        return c < 128 ? hexValues[c] : -1;
+    }
+
+    // returns -1 if the range is out of bounds or contains a non-hex digit, so at most 15 digits
+    public static long readHex(CharSequence s, int start, int digits) {
+        if(start < 0 || digits > 15 || start + digits > s.length()) return -1;
+        long value = 0;
+        for(int i=start; i<start+digits; ++i) {
+            int d = hexValue(s.charAt(i));
+            if(d < 0) return -1;
+            value = (value << 4) | d;
+        }
+        return value;
+    }
+
+    public static boolean isHex(CharSequence s, int start, int digits) {
+        if(start < 0 || start + digits > s.length()) return false;
+        for(int i=start; i<start+digits; ++i) {
+            if(hexValue(s.charAt(i)) < 0) return false;
+        }
+        return true;
+    }
+
+    // offset of the first non-hex digit in s[start..end), -1 if there is none
+    public static int findNonHex(CharSequence s, int start, int end) {
+        for(int i=start; i<end; ++i) {
+            if(hexValue(s.charAt(i)) < 0) return i;
+        }
+        return -1;
+    }
+
+    // up to 16 digits, the caller is expected to check them with isHex
+    public static long readPattern(CharSequence s, int start, int digits) {
+        long value = 0;
+        for(int i=start; i<start+digits; ++i) {
+            value = (value << 4) | hexValue(s.charAt(i));
+        }
+        return value;
+    }
+
+    public static boolean isPattern(CharSequence s) {
+        return s != null && s.length() == PATTERN_DIGITS && isHex(s, 0, PATTERN_DIGITS);
+    }
+
+    public static void writeHex(char[] buf, int pos, long value, int digits) {
+        for(int i=pos+digits-1; i>=pos; --i) {
+            buf[i] = hexDigits[(int) value & 0xf];
+            value >>>= 4;
+        }
+    }
+
+    private static int decodeOp(long field) {
+        int op = (int) field & OP_MASK;
+        if(op >= 0x80 - StateMachine.NUM_OP) op -= 0x80;
+        return op;
+    }
+
+    // whether an op can be stored in a 7 bit field of the v1 format
+    public static boolean isLegacyOp(int op) {
+        return op >= -StateMachine.NUM_OP && op < 0x80 - StateMachine.NUM_OP;
+    }
+
+    private static long packOps(int[] ops, int offset) {
+        long word = 0;
+        for(int tx=0; tx<StateMachine.NUM_TX; ++tx) {
+            word = (word << OP_BITS) | (ops[offset + tx] & OP_MASK);
+        }
+        return word;
+    }
+
+    private static void unpackOps(long word, int[] ops, int offset) {
+        for(int tx=StateMachine.NUM_TX-1; tx>=0; --tx) {
+            ops[offset + tx] = decodeOp(word);
+            word >>>= OP_BITS;
+        }
+    }
+
+    public static long packHeader(int[] defaultTransfer, int globalSpeed) {
+        return (packOps(defaultTransfer, 0) << HEADER_SPEED_BITS) | (globalSpeed & 0x3f);
+    }
+
+    public static int unpackHeader(long word, int[] defaultTransfer) {
+        unpackOps(word >>> HEADER_SPEED_BITS, defaultTransfer, 0);
+        return (int) word & 0x3f;
+    }
+
+    public static long packTransfers(int[] transfer, int offset, int speed) {
+        return (packOps(transfer, offset) << TRANSFER_SPEED_BITS) | (speed & 0x3);
+    }
+
+    public static int unpackTransfers(long word, int[] transfer, int offset) {
+        unpackOps(word >>> TRANSFER_SPEED_BITS, transfer, offset);
+        return (int) word & 0x3;
+    }
+
+    public static String transfersToString(long word) {
+        char[] buf = new char[TRANSFER_DIGITS];
+        writeHex(buf, 0, word, TRANSFER_DIGITS);
+        return new String(buf);
+    }
+
+    // v2 stores counts and ops as little endian base 128 varints, written as hex bytes
+    public static int writeVarint(char[] buf, int pos, int value) {
+        while((value & ~0x7f) != 0) {
+            writeHex(buf, pos, (value & 0x7f) | 0x80, 2);
+            pos += 2;
+            value >>>= 7;
+        }
+        writeHex(buf, pos, value, 2);
+        return pos + 2;
+    }
+
+    public static void writeVarint(DataOutput out, int value) throws IOException {
+        while((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    // -1 if the varint is too long or does not fit an int
+    public static int readVarint(DataInput in) throws IOException {
+        int value = 0;
+        for(int i=0; i<MAX_VARINT_BYTES; ++i) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << (7 * i);
+            if((b & 0x80) == 0) return value < 0 ? -1 : value;
+        }
+        return -1;
+    }
+
+    // speed byte followed by the ops, the v2 form of a state's transfers
+    public static int writeTransfers(char[] buf, int pos, int[] transfer, int offset, int speed) {
+        writeHex(buf, pos, speed, 2);
+        pos += 2;
+        for(int tx=0; tx<StateMachine.NUM_TX; ++tx) {
+            pos = writeVarint(buf, pos, transfer[offset + tx] + StateMachine.NUM_OP);
+        }
+        return pos;
+    }
+
+    public static String transfersToString(int[] transfer, int offset, int speed) {
+        char[] buf = new char[MAX_TRANSFER_BYTES * 2];
+        return new String(buf, 0, writeTransfers(buf, 0, transfer, offset, speed));
+    }
+
+    public static String patternToString(long bits) {
+        char[] buf = new char[PATTERN_DIGITS];
+        writeHex(buf, 0, bits, PATTERN_DIGITS);
+        return new String(buf);
+    }
+
+    public void beginProgram(int numStates) {
+        this.numStates = numStates;
+        length = programLength(numStates);
+        if(buffer.length < length) buffer = new char[Math.max(length, buffer.length * 2)];
+        StateMachine.magic.getChars(0, 8, buffer, 0);
+        writeHex(buffer, 8, numStates, 2);
+        if(numStates % 2 != 0) buffer[patternOffset(numStates, 0) - 1] = '0';
+    }
+
+    // v2 is written sequentially, the transfers of every state first, then the patterns
+    public void beginProgramV2(int numStates) {
+        this.numStates = numStates;
+        length = 0;
+        reserve(PREFIX_DIGITS);
+        StateMachine.magicV2.getChars(0, 8, buffer, 0);
+        length = writeVarint(buffer, 8, numStates);
+    }
+
+    private void reserve(int digits) {
+        if(buffer.length < length + digits) buffer = Arrays.copyOf(buffer, Math.max(length + digits, buffer.length * 2));
+    }
+
+    public void appendHeader(int[] defaultTransfer, int globalSpeed) {
+        reserve(MAX_TRANSFER_BYTES * 2);
+        length = writeTransfers(buffer, length, defaultTransfer, 0, globalSpeed);
+    }
+
+    public void appendTransfers(int[] transfer, int offset, int speed) {
+        reserve(MAX_TRANSFER_BYTES * 2);
+        length = writeTransfers(buffer, length, transfer, offset, speed);
+    }
+
+    public void appendPattern(long bits) {
+        reserve(PATTERN_DIGITS);
+        writeHex(buffer, length, bits, PATTERN_DIGITS);
+        length += PATTERN_DIGITS;
+    }
+
+    public void putHeader(long word) {
+        writeHex(buffer, PREFIX_DIGITS, word, HEADER_DIGITS);
+    }
+
+    public void putTransfers(int index, long word) {
+        writeHex(buffer, transferOffset(index), word, TRANSFER_DIGITS);
+    }
+
+    public void putPattern(int index, long bits) {
+        writeHex(buffer, patternOffset(numStates, index), bits, PATTERN_DIGITS);
+    }
+
+    public String finishProgram() {
+        return new String(buffer, 0, length);
+    }
+
+    // sequential reader for the v2 format and the representation fields, errors are sticky and
+    // checked once at the end
+    public static class Reader {
+        private CharSequence s;
+        private int pos;
+        private int end;
+        private boolean failed;
+        private int errorOffset;
+
+        public void reset(CharSequence s, int start, int end) {
+            this.s = s;
+            this.pos = start;
+            this.end = Math.min(end, s.length());
+            failed = false;
+            errorOffset = -1;
+        }
+
+        public int getPosition() {
+            return pos;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+
+        // offset of the character the first error was found at, -1 if there was none
+        public int getErrorOffset() {
+            return errorOffset;
+        }
+
+        private void fail(int offset) {
+            if(failed) return;
+            failed = true;
+            errorOffset = offset;
+        }
+
+        public int readByte() {
+            if(failed) return 0;
+            if(pos + 2 > end) { fail(end); return 0; }
+            int value = (int) readHex(s, pos, 2);
+            if(value < 0) { fail(findNonHex(s, pos, pos + 2)); return 0; }
+            pos += 2;
+            return value;
+        }
+
+        public int readVarint() {
+            int value = 0;
+            for(int i=0; i<MAX_VARINT_BYTES; ++i) {
+                int b = readByte();
+                value |= (b & 0x7f) << (7 * i);
+                if((b & 0x80) == 0) break;
+                if(i == MAX_VARINT_BYTES - 1) fail(pos);
+            }
+            if(value < 0) fail(pos);
+            return failed ? 0 : value;
+        }
+
+        // an optional minus sign and up to 9 decimal digits
+        public int readDecimal() {
+            if(failed) return 0;
+            boolean negative = pos < end && s.charAt(pos) == '-';
+            int i = negative ? pos + 1 : pos;
+            int value = 0;
+            int digits = 0;
+            while(i < end && digits < 10) {
+                char c = s.charAt(i);
+                if(c < '0' || c > '9') break;
+                value = value * 10 + (c - '0');
+                ++digits;
+                ++i;
+            }
+            if(digits == 0 || digits > 9) { fail(i); return 0; }
+            pos = i;
+            return negative ? -value : value;
+        }
+
+        public void expect(char c) {
+            if(failed) return;
+            if(pos >= end || s.charAt(pos) != c) { fail(pos); return; }
+            ++pos;
+        }
+
+        // returns the speed byte and fills in the ops
+        public int readTransfers(int[] transfer, int offset) {
+            int speed = readByte();
+            for(int tx=0; tx<StateMachine.NUM_TX; ++tx) {
+                transfer[offset + tx] = readVarint() - StateMachine.NUM_OP;
+            }
+            return speed;
+        }
+
+    }
+
+}
@@ -0,0 +1,115 @@
+package app.smd;
+
+import java.util.Arrays;
+
+// decides whether two programs look the same from the outside for every input sequence: the
+// pattern, the delay and the paused flag after each transfer, starting from resetPlayback()
+@SuppressWarnings("unused")
+public class ProgramEquivalence {
+
+    private static final int NUM_TX = StateMachine.NUM_TX;
+
+    private final StateMachine a, b;
+    private final int offset;  // playback keys of b come after the ones of a
+    private final int[] parent;
+    private final int[] size;
+    // pairs to visit, breadth first, with the entry and transfer they were reached from
+    private int[] queueA, queueB, queueFrom, queueTx;
+    private int queueLength;
+
+    private ProgramEquivalence(StateMachine a, StateMachine b) {
+        this.a = a;
+        this.b = b;
+        offset = a.getPlaybackKeyCount();
+        int total = offset + b.getPlaybackKeyCount();
+        parent = new int[total];
+        size = new int[total];
+        for(int k=0; k<total; ++k) parent[k] = k;
+        Arrays.fill(size, 1);
+        queueA = new int[64];
+        queueB = new int[64];
+        queueFrom = new int[64];
+        queueTx = new int[64];
+        queueLength = 0;
+    }
+
+    public static boolean areEquivalent(StateMachine a, StateMachine b) {
+        return findDistinguishingTrace(a, b) == null;
+    }
+
+    // a shortest transfer sequence after which the two programs look different, empty if they do
+    // right after reset, null if there is none
+    public static int[] findDistinguishingTrace(StateMachine a, StateMachine b) {
+        return new ProgramEquivalence(a, b).search();
+    }
+
+    private int find(int k) {
+        while(parent[k] != k) {
+            parent[k] = parent[parent[k]];
+            k = parent[k];
+        }
+        return k;
+    }
+
+    private boolean union(int x, int y) {
+        x = find(x);
+        y = find(y);
+        if(x == y) return false;
+        if(size[x] < size[y]) {
+            int t = x;
+            x = y;
+            y = t;
+        }
+        parent[y] = x;
+        size[x] += size[y];
+        return true;
+    }
+
+    private void push(int keyA, int keyB, int from, int tx) {
+        if(queueLength == queueA.length) {
+            int capacity = queueLength * 2;
+            queueA = Arrays.copyOf(queueA, capacity);
+            queueB = Arrays.copyOf(queueB, capacity);
+            queueFrom = Arrays.copyOf(queueFrom, capacity);
+            queueTx = Arrays.copyOf(queueTx, capacity);
+        }
+        queueA[queueLength] = keyA;
+        queueB[queueLength] = keyB;
+        queueFrom[queueLength] = from;
+        queueTx[queueLength] = tx;
+        ++queueLength;
+    }
+
+    private boolean looksSame(int keyA, int keyB) {
+        return a.getPlaybackKeyPattern(keyA) == b.getPlaybackKeyPattern(keyB)
+                && a.getPlaybackKeyDelay(keyA) == b.getPlaybackKeyDelay(keyB)
+                && StateMachine.isPlaybackKeyPaused(keyA) == StateMachine.isPlaybackKeyPaused(keyB);
+    }
+
+    // Hopcroft and Karp's union-find check: a pair already joined through other pairs is known
+    // to look the same, since every joined pair was compared first; breadth first order keeps
+    // the first difference found a shortest one
+    private int[] search() {
+        push(a.getInitialPlaybackKey(), b.getInitialPlaybackKey(), -1, -1);
+        for(int head=0; head<queueLength; ++head) {
+            int keyA = queueA[head];
+            int keyB = queueB[head];
+            if(find(keyA) == find(offset + keyB)) continue;
+            if(!looksSame(keyA, keyB)) return trace(head);
+            union(keyA, offset + keyB);
+            for(int tx=0; tx<NUM_TX; ++tx) {
+                push(a.nextPlaybackKey(keyA, tx), b.nextPlaybackKey(keyB, tx), head, tx);
+            }
+        }
+        return null;
+    }
+
+    private int[] trace(int entry) {
+        int length = 0;
+        for(int e=entry; queueFrom[e] >= 0; e=queueFrom[e]) ++length;
+        int[] trace = new int[length];
+        for(int e=entry; queueFrom[e] >= 0; e=queueFrom[e]) trace[--length] = queueTx[e];
+        return trace;
+    }
+
+}
@@ -0,0 +1,258 @@
+package app.smd;
+
+import java.util.Arrays;
+
+// merges states that behave the same and drops the ones that can not be reached from the first
+@SuppressWarnings("unused")
+public class ProgramOptimizer {
+
+    private static final int NUM_TX = StateMachine.NUM_TX;
+
+    private final StateMachine sm;
+    private int n;  // reachable states
+    private int[] reachable;  // original index of each reachable state, in original order
+    private int[] compact;  // reachable index of each original state, -1 if unreachable
+    private int[] table;  // resolved transfers between reachable indices, negative ops kept
+
+    // partition refinement, the states of block b are elements[blockStart[b]..blockEnd[b]-1]
+    private int[] elements;
+    private int[] location;
+    private int[] blockOf;
+    private int[] blockStart;
+    private int[] blockEnd;
+    private int[] marked;
+    private int numBlocks;
+    private int[] predStart;  // per tx and state, into predecessors
+    private int[] predecessors;
+    private int[] worklist;
+    private int worklistLength;
+    private boolean[] inWorklist;  // per block and tx
+
+    private ProgramOptimizer(StateMachine sm) {
+        this.sm = sm;
+    }
+
+    // returns an equivalent program started from the first state, the original is not modified
+    public static StateMachine optimize(StateMachine sm) {
+        ProgramOptimizer po = new ProgramOptimizer(sm);
+        po.findReachable();
+        po.buildTable();
+        po.initialPartition();
+        po.buildPredecessors();
+        po.refine();
+        return po.build();
+    }
+
+    private void findReachable() {
+        int total = sm.getStateCount();
+        boolean[] seen = new boolean[total];
+        int[] queue = new int[total];
+        int head = 0, tail = 0;
+        queue[tail++] = 0;
+        seen[0] = true;
+        while(head < tail) {
+            int s = queue[head++];
+            for(int tx=0; tx<NUM_TX; ++tx) {
+                int t = sm.getResolvedTransfer(s, tx);
+                if(t >= 0 && !seen[t]) {
+                    seen[t] = true;
+                    queue[tail++] = t;
+                }
+            }
+        }
+        n = tail;
+        reachable = new int[n];
+        compact = new int[total];
+        int k = 0;
+        for(int i=0; i<total; ++i) {
+            compact[i] = seen[i] ? k : -1;
+            if(seen[i]) reachable[k++] = i;
+        }
+    }
+
+    private void buildTable() {
+        table = new int[n * NUM_TX];
+        for(int s=0; s<n; ++s) {
+            for(int tx=0; tx<NUM_TX; ++tx) {
+                int t = sm.getResolvedTransfer(reachable[s], tx);
+                table[s * NUM_TX + tx] = t >= 0 ? compact[t] : t;
+            }
+        }
+    }
+
+    // states can only be equivalent with the same pattern, speed and kind of transfers
+    private int compareSignature(int a, int b) {
+        int c = Long.compare(sm.getPatternBits(reachable[a]), sm.getPatternBits(reachable[b]));
+        if(c != 0) return c;
+        c = Integer.compare(sm.getSpeed(reachable[a]), sm.getSpeed(reachable[b]));
+        if(c != 0) return c;
+        for(int tx=0; tx<NUM_TX; ++tx) {
+            int ka = Math.min(table[a * NUM_TX + tx], 0);
+            int kb = Math.min(table[b * NUM_TX + tx], 0);
+            if(ka != kb) return Integer.compare(ka, kb);
+        }
+        return 0;
+    }
+
+    private void initialPartition() {
+        Integer[] sorted = new Integer[n];
+        for(int s=0; s<n; ++s) sorted[s] = s;
+        Arrays.sort(sorted, this::compareSignature);
+        elements = new int[n];
+        location = new int[n];
+        blockOf = new int[n];
+        blockStart = new int[n];
+        blockEnd = new int[n];
+        marked = new int[n];
+        numBlocks = 0;
+        for(int k=0; k<n; ++k) {
+            int s = sorted[k];
+            if(k == 0 || compareSignature(sorted[k - 1], s) != 0) {
+                blockStart[numBlocks] = k;
+                ++numBlocks;
+            }
+            blockEnd[numBlocks - 1] = k + 1;
+            elements[k] = s;
+            location[s] = k;
+            blockOf[s] = numBlocks - 1;
+        }
+    }
+
+    private void buildPredecessors() {
+        predStart = new int[NUM_TX * (n + 1)];
+        for(int tx=0; tx<NUM_TX; ++tx) {
+            for(int s=0; s<n; ++s) {
+                int t = table[s * NUM_TX + tx];
+                if(t >= 0) ++predStart[tx * (n + 1) + t + 1];
+            }
+        }
+        for(int k=1; k<predStart.length; ++k) predStart[k] += predStart[k - 1];
+        predecessors = new int[predStart[predStart.length - 1]];
+        int[] fill = predStart.clone();
+        for(int tx=0; tx<NUM_TX; ++tx) {
+            for(int s=0; s<n; ++s) {
+                int t = table[s * NUM_TX + tx];
+                if(t >= 0) predecessors[fill[tx * (n + 1) + t]++] = s;
+            }
+        }
+    }
+
+    private void pushSplitter(int block, int tx) {
+        int code = block * NUM_TX + tx;
+        if(inWorklist[code]) return;
+        inWorklist[code] = true;
+        worklist[worklistLength++] = code;
+    }
+
+    // Hopcroft's algorithm, every initial block is a splitter since some transfers leave the graph
+    private void refine() {
+        inWorklist = new boolean[n * NUM_TX];
+        worklist = new int[n * NUM_TX];
+        worklistLength = 0;
+        for(int b=0; b<numBlocks; ++b) {
+            for(int tx=0; tx<NUM_TX; ++tx) pushSplitter(b, tx);
+        }
+        int[] touched = new int[n];
+        int[] splitterStates = new int[n];
+        while(worklistLength > 0) {
+            int code = worklist[--worklistLength];
+            inWorklist[code] = false;
+            int splitter = code / NUM_TX;
+            int tx = code % NUM_TX;
+            int numTouched = 0;
+            // marking reorders elements, possibly inside the splitter too, so walk a copy
+            int size = blockEnd[splitter] - blockStart[splitter];
+            System.arraycopy(elements, blockStart[splitter], splitterStates, 0, size);
+            for(int k=0; k<size; ++k) {
+                int t = splitterStates[k];
+                int base = tx * (n + 1);
+                for(int q=predStart[base + t]; q<predStart[base + t + 1]; ++q) {
+                    int p = predecessors[q];
+                    int b = blockOf[p];
+                    int pos = location[p];
+                    int dst = blockStart[b] + marked[b];
+                    if(pos < dst) continue;  // already marked
+                    if(marked[b] == 0) touched[numTouched++] = b;
+                    int other = elements[dst];
+                    elements[dst] = p;
+                    location[p] = dst;
+                    elements[pos] = other;
+                    location[other] = pos;
+                    ++marked[b];
+                }
+            }
+            for(int k=0; k<numTouched; ++k) {
+                int b = touched[k];
+                int m = marked[b];
+                marked[b] = 0;
+                if(m == blockEnd[b] - blockStart[b]) continue;
+                // the marked part becomes a new block
+                int nb = numBlocks++;
+                blockStart[nb] = blockStart[b];
+                blockEnd[nb] = blockStart[b] + m;
+                blockStart[b] = blockEnd[nb];
+                for(int q=blockStart[nb]; q<blockEnd[nb]; ++q) blockOf[elements[q]] = nb;
+                int smaller = m <= blockEnd[b] - blockStart[b] ? nb : b;
+                for(int a=0; a<NUM_TX; ++a) {
+                    if(inWorklist[b * NUM_TX + a]) {
+                        pushSplitter(nb, a);
+                    } else {
+                        pushSplitter(smaller, a);
+                    }
+                }
+            }
+        }
+    }
+
+    // picks the shortest op that resolves to target in state index, preferring the default
+    private static int chooseOp(int index, int target, int defaultOp, int numStates) {
+        if(StateMachine.resolveOp(index, defaultOp, numStates) == target) return StateMachine.OP_INHERIT;
+        if(target < 0) return target;
+        if(StateMachine.resolveOp(index, StateMachine.OP_NEXT, numStates) == target) return StateMachine.OP_NEXT;
+        if(StateMachine.resolveOp(index, StateMachine.OP_PREV, numStates) == target) return StateMachine.OP_PREV;
+        if(target == index) return StateMachine.OP_NONE;
+        return target;
+    }
+
+    private StateMachine build() {
+        // blocks are numbered in the order of their first state, so the first state stays first
+        int[] newIndex = new int[numBlocks];
+        Arrays.fill(newIndex, -1);
+        int[] representative = new int[numBlocks];
+        int count = 0;
+        for(int s=0; s<n; ++s) {
+            int b = blockOf[s];
+            if(newIndex[b] >= 0) continue;
+            newIndex[b] = count;
+            representative[count] = s;
+            ++count;
+        }
+        int[] defaults = new int[NUM_TX];
+        for(int tx=0; tx<NUM_TX; ++tx) {
+            int op = sm.getDefaultTransfer(tx);
+            if(op >= 0) op = op < compact.length && compact[op] >= 0 ? newIndex[blockOf[compact[op]]] : StateMachine.OP_ERROR;
+            defaults[tx] = op;
+        }
+        StateMachine out = new StateMachine();
+        out.beginBatch();
+        out.setName(sm.getName());
+        out.setGlobalSpeed(sm.getGlobalSpeed());
+        for(int tx=0; tx<NUM_TX; ++tx) out.setDefaultTransfer(tx, defaults[tx]);
+        for(int i=1; i<count; ++i) out.addState();
+        for(int i=0; i<count; ++i) {
+            int s = representative[i];
+            out.gotoState(i);
+            out.setPatternBits(sm.getPatternBits(reachable[s]));
+            out.setSpeed(sm.getSpeed(reachable[s]));
+            for(int tx=0; tx<NUM_TX; ++tx) {
+                int t = table[s * NUM_TX + tx];
+                int target = t >= 0 ? newIndex[blockOf[t]] : t;
+                out.setRawTransfer(tx, chooseOp(i, target, defaults[tx], count));
+            }
+        }
+        out.resetPlayback();
+        out.endBatch();
+        return out;
+    }
+
+}
@@ -1,30 +1,90 @@
 package app.smd;
 
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
 
 public class ProjectList {
 
+    public static final int previewStates = 7;  // the most a row of the project list shows
+    private static final int defaultMaterializedLimit = 8;
+
+    // what an import does with a project whose program is already in the list
+    public static final int DEDUP_NONE = 0;  // adds it anyway
+    public static final int DEDUP_SKIP = 1;  // drops it
+    public static final int DEDUP_LINK = 2;  // selects the project already holding it; drops it in bulk imports
+
+    // what importProject did
+    public static final int IMPORT_ADDED = 0;  // a new project, selected
+    public static final int IMPORT_SKIPPED = 1;  // a duplicate, dropped
+    public static final int IMPORT_LINKED = 2;  // a duplicate, the project holding it was selected
+
     public static class Preview {
         int numStates;
-        List<String> patterns;
+        long[] patterns;  // of the first previewStates states
         String name;
     }
 
+    // reads the machine of a project that is not in memory, null if it can not be read
+    public interface Loader {
+        StateMachine loadProject(int id);
+    }
+
     private static class Project {
-        StateMachine stateMachine;
-        String repr;
+        int id;  // stable for the life of the project, the key it is stored under
+        StateMachine stateMachine;  // null until the project is first used and after eviction
         Preview preview;
+        boolean dirty;  // changed since it was last stored
+        long hash;  // contentHash of the machine, 0 until it is computed and after a change
+        int index = -1;  // position in the list, -1 once removed
     }
 
     private final ArrayList<Project> projects;
+    private final HashMap<Integer, Project> byId;
+    private final HashMap<Integer, Integer> pins;  // by id, open screens holding the machine
     private int selIndex;
+    private int nextId;
+    private boolean listDirty;  // order or selection changed since the list was last stored
+    private final ArrayList<Integer> removedIds;  // deleted projects still in the store
+    private Loader loader;
+    private final ArrayList<Project> materialized;  // projects with a machine, least recently used first
+    private int materializedLimit;
+    private int placeholders;  // rows announced by beginRestore whose projects did not arrive yet
+    private int dedupMode;
+    // the projects by contentHash once dedup needed it, null before; the projects added or edited
+    // since are hashed on the next lookup
+    private HashMap<Long, ArrayList<Project>> byHash;
+    private final ArrayList<Project> unhashed;
     private OnChangeListener onChangeListener;
+    private final ArrayList<OnEventListener> eventListeners;
+
+    // OnEventListener events, with their a and b arguments
+    public static final int EV_RELOADED = 0;  // the whole list was replaced
+    public static final int EV_PROJECT_INSERTED = 1;  // index
+    public static final int EV_PROJECT_REMOVED = 2;  // index
+    public static final int EV_PROJECT_CHANGED = 3;  // index, its preview changed
+    public static final int EV_SELECTION_CHANGED = 4;  // old and new selection
+    public static final int EV_PROJECTS_LOADED = 5;  // index and count, placeholders became projects
+    public static final int EV_PROJECTS_INSERTED = 6;  // index and count
 
     public ProjectList() {
         projects = new ArrayList<>();
+        byId = new HashMap<>();
+        pins = new HashMap<>();
         selIndex = -1;
+        nextId = 0;
+        listDirty = false;
+        removedIds = new ArrayList<>();
+        loader = null;
+        materialized = new ArrayList<>();
+        materializedLimit = defaultMaterializedLimit;
+        placeholders = 0;
+        dedupMode = DEDUP_NONE;
+        byHash = null;
+        unhashed = new ArrayList<>();
         onChangeListener = null;
+        eventListeners = new ArrayList<>();
     }
 
     public void setOnChangeListener(OnChangeListener listener) {
@@ -35,28 +95,230 @@ public class ProjectList {
         if(onChangeListener != null) onChangeListener.onChange();
     }
 
+    public void addOnEventListener(OnEventListener listener) {
+        if(!eventListeners.contains(listener)) eventListeners.add(listener);
+    }
+
+    public void removeOnEventListener(OnEventListener listener) {
+        eventListeners.remove(listener);
+    }
+
+    private void fireEvent(int event, int a, int b) {
+        for(int i=0; i<eventListeners.size(); ++i) {
+            eventListeners.get(i).onEvent(event, a, b);
+        }
+    }
+
     private Preview extractPreview(StateMachine sm) {
         Preview p = new Preview();
         p.numStates = sm.getStateCount();
-        p.patterns = new ArrayList<>();
-        for(int i=0; i<p.numStates; ++i) {
-            p.patterns.add(sm.getThumbnail(i, false));
+        p.patterns = new long[Math.min(p.numStates, previewStates)];
+        for(int i=0; i<p.patterns.length; ++i) {
+            p.patterns[i] = sm.getPatternBits(i);
         }
         p.name = sm.getName();
         return p;
     }
 
-    private Project createProject(StateMachine sm) {
+    private Project createProject(int id, StateMachine sm) {
         Project p = new Project();
+        p.id = id;
+        p.dirty = true;
+        attachMachine(p, sm);
+        return p;
+    }
+
+    private void attachMachine(Project p, StateMachine sm) {
         p.stateMachine = sm;
-        p.repr = sm.getRepresentation();
         p.preview = extractPreview(sm);
         sm.setOnChangeListener(() -> {
-            p.repr = p.stateMachine.getRepresentation();
-            p.preview = extractPreview(p.stateMachine);
+            p.dirty = true;
+            unhash(p);
+            int previewChanges = StateMachine.CHANGE_PATTERN | StateMachine.CHANGE_STATES | StateMachine.CHANGE_NAME;
+            if((p.stateMachine.getLastChanges() & previewChanges) != 0) {
+                p.preview = extractPreview(p.stateMachine);
+                if(p.index >= 0) fireEvent(EV_PROJECT_CHANGED, p.index, 0);
+            }
             fireOnChange();
         });
-        return p;
+        touch(p);
+    }
+
+    // the machine of a project, read through the loader if it is not in memory
+    private StateMachine materialize(Project p) {
+        if(p.stateMachine != null) {
+            touch(p);
+            return p.stateMachine;
+        }
+        attachMachine(p, load(p));
+        evict(materializedLimit, p);
+        return p.stateMachine;
+    }
+
+    private StateMachine load(Project p) {
+        StateMachine sm = loader != null ? loader.loadProject(p.id) : null;
+        if(sm == null) {
+            // unreadable, an empty project keeps the name until it is edited or deleted
+            sm = new StateMachine();
+            sm.setName(p.preview.name);
+        }
+        return sm;
+    }
+
+    // 64 bit FNV-1a of the program, which leaves out the name and the editing state; never 0
+    public static long contentHash(StateMachine sm) {
+        String program = sm.getProgram();
+        long hash = 0xcbf29ce484222325L;
+        for(int i=0; i<program.length(); ++i) {
+            hash ^= program.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash != 0 ? hash : 1;
+    }
+
+    // reads the project without keeping it in memory if its hash is not known yet
+    private long hashOf(Project p) {
+        if(p.hash == 0) p.hash = contentHash(p.stateMachine != null ? p.stateMachine : load(p));
+        return p.hash;
+    }
+
+    // hashes can collide, the programs decide
+    private boolean hasProgram(Project p, StateMachine sm, long hash) {
+        if(hashOf(p) != hash) return false;
+        StateMachine own = p.stateMachine != null ? p.stateMachine : load(p);
+        return own.getProgram().equals(sm.getProgram());
+    }
+
+    // index of a project with the same program as sm, -1 if there is none; the first lookup
+    // hashes the whole list, reading the projects whose hash the store did not have, later ones
+    // only what changed since
+    public int findProject(StateMachine sm) {
+        long hash = contentHash(sm);
+        Project p = findIn(hashIndex().get(hash), sm, hash);
+        return p != null ? p.index : -1;
+    }
+
+    private Project findIn(ArrayList<Project> same, StateMachine sm, long hash) {
+        if(same == null) return null;
+        for(Project p : same) {
+            if(hasProgram(p, sm, hash)) return p;
+        }
+        return null;
+    }
+
+    private HashMap<Long, ArrayList<Project>> hashIndex() {
+        if(byHash == null) {
+            byHash = new HashMap<>();
+            unhashed.clear();
+            for(Project p : projects) addByHash(p);
+        }
+        for(Project p : unhashed) {
+            if(p.index >= 0) addByHash(p);
+        }
+        unhashed.clear();
+        return byHash;
+    }
+
+    private void addByHash(Project p) {
+        long hash = hashOf(p);
+        ArrayList<Project> same = byHash.get(hash);
+        if(same == null) {
+            same = new ArrayList<>(1);
+            byHash.put(hash, same);
+        }
+        if(!same.contains(p)) same.add(p);
+    }
+
+    private void removeByHash(Project p) {
+        if(byHash == null || p.hash == 0) return;
+        ArrayList<Project> same = byHash.get(p.hash);
+        if(same == null) return;
+        same.remove(p);
+        if(same.isEmpty()) byHash.remove(p.hash);
+    }
+
+    // a project new to the list or with a changed program, hashed again on the next lookup
+    private void unhash(Project p) {
+        removeByHash(p);
+        // one with no hash is queued already, or not in the list
+        if(byHash != null && p.hash != 0 && p.index >= 0) unhashed.add(p);
+        p.hash = 0;
+    }
+
+    public void setDedupMode(int mode) {
+        dedupMode = mode;
+    }
+
+    public int getDedupMode() {
+        return dedupMode;
+    }
+
+    // the stored hash of a project, 0 if it is not known
+    long getContentHash(int index) {
+        return projects.get(index).hash;
+    }
+
+    // linear in the machines kept in memory, which are few
+    private void touch(Project p) {
+        int k = materialized.lastIndexOf(p);
+        if(k == materialized.size() - 1 && k >= 0) return;
+        if(k >= 0) materialized.remove(k);
+        materialized.add(p);
+    }
+
+    // drops the least recently used machines beyond limit; changed ones are kept until they are
+    // stored, the selected and the pinned ones while they are, and keep which is about to be
+    // handed out
+    private void evict(int limit, Project keep) {
+        Project selected = selIndex >= 0 ? projects.get(selIndex) : null;
+        for(int k=0; k<materialized.size() && materialized.size() > limit; ) {
+            Project p = materialized.get(k);
+            if(p.dirty || p == selected || p == keep || pins.containsKey(p.id)) {
+                ++k;
+                continue;
+            }
+            p.stateMachine.setOnChangeListener(null);
+            p.stateMachine = null;
+            materialized.remove(k);
+        }
+    }
+
+    private void forget(Project p) {
+        materialized.remove(p);
+    }
+
+    // the positions from index on after an insert or remove there, which moved them anyway
+    private void renumber(int index) {
+        for(int i=index; i<projects.size(); ++i) projects.get(i).index = i;
+    }
+
+    // the projects leaving the list all at once
+    private void detachAll() {
+        for(Project p : projects) p.index = -1;
+        projects.clear();
+    }
+
+    void setLoader(Loader loader) {
+        this.loader = loader;
+    }
+
+    // how many machines are kept in memory besides the changed and the selected ones
+    public void setMaterializedLimit(int limit) {
+        materializedLimit = Math.max(limit, 0);
+        evict(materializedLimit, null);
+    }
+
+    public int getMaterializedCount() {
+        return materialized.size();
+    }
+
+    // under memory pressure, everything that can be read back again goes
+    public void trimMemory() {
+        evict(0, null);
+    }
+
+    private Project createProject(StateMachine sm) {
+        return createProject(nextId++, sm);
     }
 
     public int getProjectCount() {
@@ -64,18 +326,174 @@ public class ProjectList {
     }
 
     public void selectProject(int index) {
-        if(index >= 0 && index < projects.size()) {
+        if(index >= 0 && index < projects.size() && index != selIndex) {
+            int oldSel = selIndex;
             selIndex = index;
+            listDirty = true;
+            fireEvent(EV_SELECTION_CHANGED, oldSel, selIndex);
         }
     }
 
+    private void insertProject(int index, Project p) {
+        int oldSel = selIndex;
+        projects.add(index, p);
+        renumber(index);
+        byId.put(p.id, p);
+        if(byHash != null) unhashed.add(p);
+        selIndex = index;
+        listDirty = true;
+        fireEvent(EV_PROJECT_INSERTED, index, 0);
+        fireEvent(EV_SELECTION_CHANGED, oldSel, selIndex);
+        fireOnChange();
+    }
+
     public int getSelIndex() {
         return selIndex;
     }
 
     public StateMachine getMachine() {
         if(selIndex < 0) return null;
-        return projects.get(selIndex).stateMachine;
+        return materialize(projects.get(selIndex));
+    }
+
+    public StateMachine getMachine(int index) {
+        if(index < 0 || index >= projects.size()) return null;
+        return materialize(projects.get(index));
+    }
+
+    public int getProjectId(int index) {
+        if(index < 0 || index >= projects.size()) return -1;
+        return projects.get(index).id;
+    }
+
+    // by the stable id, independent of the position; null if there is no such project
+    public StateMachine getMachineById(int id) {
+        Project p = byId.get(id);
+        return p != null ? materialize(p) : null;
+    }
+
+    public boolean hasProject(int id) {
+        return byId.containsKey(id);
+    }
+
+    public int indexOfProject(int id) {
+        Project p = byId.get(id);
+        return p != null ? p.index : -1;
+    }
+
+    public int getSelectedId() {
+        if(selIndex < 0) return -1;
+        return projects.get(selIndex).id;
+    }
+
+    // keeps the machine of a project in memory while a screen edits it, so the machine the
+    // screen holds stays the one in the list; pins outlive a reload of the list
+    public boolean pinProject(int id) {
+        if(!byId.containsKey(id)) return false;
+        Integer count = pins.get(id);
+        pins.put(id, count != null ? count + 1 : 1);
+        return true;
+    }
+
+    public void unpinProject(int id) {
+        Integer count = pins.get(id);
+        if(count == null) return;
+        if(count > 1) pins.put(id, count - 1);
+        else pins.remove(id);
+    }
+
+    // dirty tracking for the store, ids are handed out from getNextId() on
+
+    int getNextId() {
+        return nextId;
+    }
+
+    boolean isProjectDirty(int index) {
+        return projects.get(index).dirty;
+    }
+
+    void markProjectClean(int index) {
+        projects.get(index).dirty = false;
+        evict(materializedLimit, null);
+    }
+
+    boolean isListDirty() {
+        return listDirty || !removedIds.isEmpty();
+    }
+
+    void markListClean() {
+        listDirty = false;
+    }
+
+    int[] takeRemovedIds() {
+        int[] ids = new int[removedIds.size()];
+        for(int i=0; i<ids.length; ++i) ids[i] = removedIds.get(i);
+        removedIds.clear();
+        return ids;
+    }
+
+    // replaces the list with projects from the store, none of them dirty; a project comes with
+    // either its machine or its preview, the machine is then read on first use
+    void restore(int[] ids, StateMachine[] machines, Preview[] previews, long[] hashes, int count, int storedNextId, int selection) {
+        beginRestore(count, storedNextId);
+        continueRestore(ids, machines, previews, hashes, 0, count, false);
+        endRestore(selection);
+    }
+
+    // restoring in steps lets the list show count placeholder rows until the projects arrive
+    void beginRestore(int count, int storedNextId) {
+        detachAll();
+        byHash = null;
+        byId.clear();
+        removedIds.clear();
+        materialized.clear();
+        placeholders = count;
+        nextId = storedNextId;
+        selIndex = -1;
+        listDirty = false;
+        fireEvent(EV_RELOADED, 0, 0);
+    }
+
+    // appends entries from..to of the arrays in place of as many placeholders; dirty ones are
+    // new to the store; hashes may be null
+    void continueRestore(int[] ids, StateMachine[] machines, Preview[] previews, long[] hashes, int from, int to, boolean dirty) {
+        int first = projects.size();
+        for(int i=from; i<to; ++i) {
+            Project p;
+            if(machines[i] != null) {
+                p = createProject(ids[i], machines[i]);
+            } else {
+                p = new Project();
+                p.id = ids[i];
+                p.preview = previews[i];
+            }
+            if(hashes != null) p.hash = hashes[i];
+            p.dirty = dirty;
+            p.index = projects.size();
+            projects.add(p);
+            byId.put(p.id, p);
+            if(byHash != null) unhashed.add(p);
+        }
+        placeholders = Math.max(placeholders - (to - from), 0);
+        listDirty |= dirty;
+        fireEvent(EV_PROJECTS_LOADED, first, to - from);
+    }
+
+    // placeholders left over belonged to projects that could not be read
+    void endRestore(int selection) {
+        int count = projects.size();
+        boolean dropped = placeholders > 0;
+        placeholders = 0;
+        selIndex = selection >= 0 && selection < count ? selection : count > 0 ? 0 : -1;
+        evict(materializedLimit, null);
+        if(dropped) fireEvent(EV_RELOADED, 0, 0);
+        else fireEvent(EV_SELECTION_CHANGED, -1, selIndex);
+        fireOnChange();
+    }
+
+    // rows beyond getProjectCount() still loading
+    public int getPlaceholderCount() {
+        return placeholders;
     }
 
     public Preview getPreview(int index) {
@@ -87,67 +505,164 @@ public class ProjectList {
         int newSel = selIndex + 1;
         StateMachine sm = new StateMachine();
         sm.setName(name);
-        projects.add(newSel, createProject(sm));
-        selIndex = newSel;
-        fireOnChange();
+        insertProject(newSel, createProject(sm));
     }
 
     public void cloneProject(String name) {
         if(selIndex < 0) return;
         int newSel = selIndex + 1;
-        StateMachine sm = new StateMachine(projects.get(selIndex).stateMachine, false);
+        StateMachine sm = new StateMachine(materialize(projects.get(selIndex)), false);
         sm.setName(name);
-        projects.add(newSel, createProject(sm));
-        selIndex = newSel;
-        fireOnChange();
+        insertProject(newSel, createProject(sm));
     }
 
-    public void importProject(String name, String programOrRepr) {
+    // one of the IMPORT_ results; after IMPORT_LINKED the selection is the project holding the program
+    public int importProject(String name, String programOrRepr) {
         int newSel = selIndex + 1;
         StateMachine sm = new StateMachine(programOrRepr);
+        if(dedupMode != DEDUP_NONE) {
+            int existing = findProject(sm);
+            if(existing >= 0) {
+                if(dedupMode == DEDUP_SKIP) return IMPORT_SKIPPED;
+                selectProject(existing);
+                return IMPORT_LINKED;
+            }
+        }
         if(name != null) sm.setName(name);
-        projects.add(newSel, createProject(sm));
-        selIndex = newSel;
+        insertProject(newSel, createProject(sm));
+        return IMPORT_ADDED;
+    }
+
+    // whether sm holds the program of a project, in the list or added by the import running
+    private boolean isDuplicate(StateMachine sm) {
+        return dedupMode != DEDUP_NONE && findProject(sm) >= 0;
+    }
+
+    // new projects at the end of the list, in one step; returns how many were added, duplicates
+    // are left out unless the dedup mode is DEDUP_NONE
+    public int appendProjects(StateMachine[] machines, int count) {
+        int first = projects.size();
+        for(int i=0; i<count; ++i) {
+            if(isDuplicate(machines[i])) continue;
+            Project p = createProject(machines[i]);
+            p.index = projects.size();
+            projects.add(p);
+            byId.put(p.id, p);
+            if(byHash != null) unhashed.add(p);
+        }
+        int added = projects.size() - first;
+        if(added == 0) return 0;
+        listDirty = true;
+        evict(materializedLimit, null);
+        fireEvent(EV_PROJECTS_INSERTED, first, added);
+        if(selIndex < 0) {
+            selIndex = 0;
+            fireEvent(EV_SELECTION_CHANGED, -1, 0);
+        }
         fireOnChange();
+        return added;
     }
 
     public void deleteProject() {
-        projects.remove(selIndex);
+        int oldSel = selIndex;
+        Project removed = projects.remove(selIndex);
+        removeByHash(removed);
+        removed.index = -1;
+        renumber(selIndex);
+        byId.remove(removed.id);
+        forget(removed);
+        removedIds.add(removed.id);
         if(selIndex >= projects.size()) --selIndex;
+        listDirty = true;
+        fireEvent(EV_PROJECT_REMOVED, oldSel, 0);
+        fireEvent(EV_SELECTION_CHANGED, oldSel, selIndex);
         fireOnChange();
     }
 
-    private String escapeRepr(String name) {
-        // replace every ; with \;
-        return name.replaceAll(";", "\\\\;");
-    }
-
-    private String unescapeRepr(String name) {
+    private static String unescapeRepr(String name) {
         // replace every \; with ;
         return name.replaceAll("\\\\;", ";");
     }
 
     public String exportAll() {
-        StringBuilder sb = new StringBuilder();
-        for(Project p : projects) {
-            if (sb.length() > 0) sb.append(";");
-            sb.append(escapeRepr(p.repr));
-        }
-        return sb.toString();
+        StringWriter out = new StringWriter();
+        new ProjectStream().writeText(getSource(), out);
+        return out.toString();
+    }
+
+    // the projects for export on the calling thread, read without pushing the used projects out
+    // of memory
+    public ProjectStream.Source getSource() {
+        return new ProjectStream.Source() {
+            @Override
+            public int getCount() {
+                return projects.size();
+            }
+
+            @Override
+            public StateMachine get(int index) {
+                Project p = projects.get(index);
+                return p.stateMachine != null ? p.stateMachine : load(p);
+            }
+        };
+    }
+
+    // the machine if it is in memory, null if it would have to be read
+    StateMachine getLoadedMachine(int index) {
+        return projects.get(index).stateMachine;
     }
 
     public void clear() {
-        projects.clear();
+        for(Project p : projects) removedIds.add(p.id);
+        detachAll();
+        byHash = null;
+        byId.clear();
+        materialized.clear();
         selIndex = -1;
+        listDirty = true;
+        fireEvent(EV_RELOADED, 0, 0);
         fireOnChange();
     }
 
+    // the representations of a full export, unescaped
+    static String[] splitAll(String fullRepr) {
+        // split by ; but not by \;
+        String[] reprs = fullRepr.split("(?<!\\\\);");
+        for(int i=0; i<reprs.length; ++i) reprs[i] = unescapeRepr(reprs[i]);
+        return reprs;
+    }
+
     public void importAll(String fullRepr) {
-        for(String escapedRepr : fullRepr.split("(?<!\\\\);")) {
-            // split by ; but not by \;
-            selIndex += 1;
-            projects.add(selIndex, createProject(new StateMachine(unescapeRepr(escapedRepr))));
-        }
+        // decoded across the cores, then inserted after the selection in one step
+        ArrayList<Project> added = new ArrayList<>();
+        // the projects read so far are not in the list yet, they are looked up apart
+        HashMap<Long, ArrayList<Project>> addedByHash = new HashMap<>();
+        ProjectStream stream = new ProjectStream();
+        stream.setParallelDecoding(true);
+        stream.readText(new StringReader(fullRepr), sm -> {
+            if(dedupMode != DEDUP_NONE) {
+                long hash = contentHash(sm);
+                if(findIn(hashIndex().get(hash), sm, hash) != null || findIn(addedByHash.get(hash), sm, hash) != null) return;
+            }
+            Project p = createProject(sm);
+            added.add(p);
+            byId.put(p.id, p);
+            if(dedupMode != DEDUP_NONE) {
+                p.hash = contentHash(sm);
+                ArrayList<Project> same = addedByHash.get(p.hash);
+                if(same == null) {
+                    same = new ArrayList<>(1);
+                    addedByHash.put(p.hash, same);
+                }
+                same.add(p);
+            }
+        });
+        projects.addAll(selIndex + 1, added);
+        renumber(selIndex + 1);
+        if(byHash != null) unhashed.addAll(added);
+        selIndex += added.size();
+        listDirty = true;
+        fireEvent(EV_RELOADED, 0, 0);
         fireOnChange();
     }
 
@@ -6,46 +6,82 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import androidx.recyclerview.widget.SimpleItemAnimator;
 
-import android.annotation.SuppressLint;
 import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.provider.DocumentsContract;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.ViewTreeObserver;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 public class ProjectListActivity extends AppCompatActivity {
 
     private PersistedProjectList pl;
+    private RecyclerView rv;
     private ProjectListAdapter pla;
+    private ProjectStream transfer;  // the library export or import running, null otherwise
+    private Uri exportUri;  // the document the running export writes, null for an import
+
+    private static final int requestExportText = 1;
+    private static final int requestExportBinary = 2;
+    private static final int requestImport = 3;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupMetrics.markStart();
         setContentView(R.layout.activity_project_list);
 
-        pl = new PersistedProjectList(this);
+        // the store is read in the background, the list shows placeholder rows until then
+        pl = PersistedProjectList.getInstance(this, this::runOnUiThread, this::onProjectsLoaded);
 
-        RecyclerView rv = findViewById(R.id.listProjects);
+        rv = findViewById(R.id.listProjects);
         RecyclerView.LayoutManager lm = new LinearLayoutManager(this);
         rv.setLayoutManager(lm);
         pla = new ProjectListAdapter(pl.getWrappedProjectList());
         rv.setAdapter(pla);
         SimpleItemAnimator rva = (SimpleItemAnimator) rv.getItemAnimator();
         if(rva != null) rva.setSupportsChangeAnimations(false);
+
+        rv.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                rv.getViewTreeObserver().removeOnPreDrawListener(this);
+                StartupMetrics.markFirstFrame();
+                return true;
+            }
+        });
+    }
+
+    // may run before getInstance returned, when the list was loaded already
+    private void onProjectsLoaded() {
+        StartupMetrics.markFullList(PersistedProjectList.getInstance(this).getProjectCount());
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // the shared list outlives this activity, the adapter must unsubscribe from it
+        rv.setAdapter(null);
+        if(transfer != null && isFinishing()) transfer.cancel();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        pl.persistState();
+        pl.flushState();
     }
 
-    @SuppressLint("NotifyDataSetChanged")
     @Override
     protected void onResume() {
         super.onResume();
         pl.loadState();
-        pla.notifyDataSetChanged();
     }
 
     @Override
@@ -55,35 +91,135 @@ public class ProjectListActivity extends AppCompatActivity {
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        // the library is transferred through the storage access framework, which came with KitKat
+        boolean saf = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        menu.findItem(R.id.miImportLibrary).setVisible(saf && transfer == null);
+        menu.findItem(R.id.miExportLibrary).setVisible(saf && transfer == null);
+        menu.findItem(R.id.miExportLibraryBinary).setVisible(saf && transfer == null);
+        menu.findItem(R.id.miCancelTransfer).setVisible(transfer != null);
+        int mode = pl.getDedupMode();
+        int checked = mode == ProjectList.DEDUP_SKIP ? R.id.miDuplicatesSkip
+                : mode == ProjectList.DEDUP_LINK ? R.id.miDuplicatesLink : R.id.miDuplicatesKeep;
+        menu.findItem(checked).setChecked(true);
+        return true;
+    }
+
+    private void startTransfer(int requestCode) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return;
+        Intent intent;
+        if(requestCode == requestImport) {
+            intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+            intent.setType("*/*");
+        } else {
+            intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+            boolean binary = requestCode == requestExportBinary;
+            intent.setType(binary ? "application/octet-stream" : "text/plain");
+            intent.putExtra(Intent.EXTRA_TITLE, binary ? "projects.smdp" : "projects.txt");
+        }
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        startActivityForResult(intent, requestCode);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if(resultCode != RESULT_OK || data == null || data.getData() == null) return;
+        if(transfer != null || !pl.isLoaded()) return;
+        Uri uri = data.getData();
+        try {
+            if(requestCode == requestImport) {
+                InputStream in = getContentResolver().openInputStream(uri);
+                if(in == null) throw new FileNotFoundException();
+                transfer = pl.importLibrary(in, this::runOnUiThread, (projects, chars) ->
+                        setTransferStatus(String.format(getString(R.string.import_progress_template), projects)),
+                        this::onTransferFinished);
+            } else if(requestCode == requestExportText || requestCode == requestExportBinary) {
+                OutputStream out = getContentResolver().openOutputStream(uri);
+                if(out == null) throw new FileNotFoundException();
+                int format = requestCode == requestExportBinary ? ProjectStream.FORMAT_BINARY : ProjectStream.FORMAT_TEXT;
+                int total = pl.getProjectCount();
+                transfer = pl.exportLibrary(out, format, this::runOnUiThread, (projects, chars) ->
+                        setTransferStatus(String.format(getString(R.string.export_progress_template), projects, total)),
+                        projects -> onTransferFinished(projects, 0));
+                exportUri = uri;
+            }
+        } catch (FileNotFoundException e) {
+            setTransferStatus(getString(R.string.transfer_failed));
+        }
+        invalidateOptionsMenu();
+    }
+
+    // duplicates only come from imports
+    private void onTransferFinished(int projects, int duplicates) {
+        if(transfer == null) return;
+        if(transfer.isCancelled()) {
+            setTransferStatus(getString(R.string.transfer_cancelled));
+        } else if(projects < 0) {
+            setTransferStatus(getString(R.string.transfer_failed));
+        } else if(duplicates > 0) {
+            setTransferStatus(String.format(getString(R.string.transfer_done_duplicates_template), projects, duplicates));
+        } else {
+            setTransferStatus(String.format(getString(R.string.transfer_done_template), projects));
+        }
+        // an export that did not write every project leaves a file that would not import, or
+        // import only in part, so it goes; where the provider refuses, the user is told
+        if(exportUri != null && projects < 0 && !deleteDocument(exportUri)) {
+            setTransferStatus(getString(R.string.export_incomplete));
+        }
+        transfer = null;
+        exportUri = null;
+        invalidateOptionsMenu();
+    }
+
+    private boolean deleteDocument(Uri uri) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return false;
+        try {
+            return DocumentsContract.deleteDocument(getContentResolver(), uri);
+        } catch (FileNotFoundException | UnsupportedOperationException | SecurityException e) {
+            return false;
+        }
+    }
+
+    // the progress and outcome of a transfer are shown under the title
+    private void setTransferStatus(String status) {
+        if(getSupportActionBar() != null) getSupportActionBar().setSubtitle(status);
+    }
+
     private String genProjectName() {
         return String.format(getString(R.string.project_name_template), pl.getProjectCount() + 1);
     }
 
     @Override
     public boolean onOptionsItemSelected(@NonNull MenuItem item) {
+        // nothing to act on before the projects are in
+        if(!pl.isLoaded()) return true;
         int id = item.getItemId();
+        if(id == R.id.miCancelTransfer) {
+            if(transfer != null) transfer.cancel();
+            return true;
+        }
+        // the list changes while a library is imported and is read while it is exported
+        if(transfer != null) return true;
         if(id == R.id.miPlayProject) {
             Intent intent = new Intent(this, SimulationActivity.class);
             intent.putExtra("mode", 0);
+            intent.putExtra("project", pl.getSelectedId());
             this.startActivity(intent);
         }
         else if(id == R.id.miEditProject) {
             Intent intent = new Intent(this, StateListActivity.class);
+            intent.putExtra("project", pl.getSelectedId());
             this.startActivity(intent);
         }
         else if(id == R.id.miNewProject) {
-            int oldIndex = pl.getSelIndex();
             pl.addProject(genProjectName());
             pl.persistState();
-            pla.notifyItemChanged(oldIndex);
-            pla.notifyItemInserted(pl.getSelIndex());
         }
         else if(id == R.id.miCloneProject) {
-            int oldIndex = pl.getSelIndex();
             pl.cloneProject(genProjectName());
             pl.persistState();
-            pla.notifyItemChanged(oldIndex);
-            pla.notifyItemInserted(pl.getSelIndex());
         }
         else if(id == R.id.miImportProject) {
             Intent intent = new Intent(this, DataActivity.class);
@@ -93,18 +229,34 @@ public class ProjectListActivity extends AppCompatActivity {
         else if(id == R.id.miExportProject) {
             Intent intent = new Intent(this, DataActivity.class);
             intent.putExtra("mode", 1);
+            intent.putExtra("project", pl.getSelectedId());
             this.startActivity(intent);
         }
+        else if(id == R.id.miImportLibrary) {
+            startTransfer(requestImport);
+        }
+        else if(id == R.id.miExportLibrary) {
+            startTransfer(requestExportText);
+        }
+        else if(id == R.id.miExportLibraryBinary) {
+            startTransfer(requestExportBinary);
+        }
+        else if(id == R.id.miDuplicatesKeep) {
+            pl.setDedupMode(ProjectList.DEDUP_NONE);
+        }
+        else if(id == R.id.miDuplicatesSkip) {
+            pl.setDedupMode(ProjectList.DEDUP_SKIP);
+        }
+        else if(id == R.id.miDuplicatesLink) {
+            pl.setDedupMode(ProjectList.DEDUP_LINK);
+        }
         else if(id == R.id.miUploadProject) {
             Intent intent = new Intent(this, SerialActivity.class);
             this.startActivity(intent);
         }
         else if(id == R.id.miDeleteProject) {
-            int oldIndex = pl.getSelIndex();
             pl.deleteProject();
             pl.persistState();
-            pla.notifyItemRemoved(oldIndex);
-            pla.notifyItemChanged(pl.getSelIndex());
         }
         return true;
     }
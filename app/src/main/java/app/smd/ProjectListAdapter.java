@@ -20,6 +20,7 @@ import java.util.List;
 public class ProjectListAdapter extends RecyclerView.Adapter<ProjectListAdapter.ViewHolder> {
 
     private final ProjectList pl;
+    private final OnEventListener eventListener = this::onProjectListEvent;
 
     public static class ViewHolder extends RecyclerView.ViewHolder {
         private final List<LedGridView> ledPreview = new ArrayList<>();
@@ -73,14 +74,18 @@ public class ProjectListAdapter extends RecyclerView.Adapter<ProjectListAdapter.
 
         @SuppressLint("ResourceAsColor")
         public void bindStateMachine(ProjectList.Preview p, boolean isSelected) {
+            if(p == null) {
+                bindPlaceholder();
+                return;
+            }
             for(int i=0; i<numPreviews; ++i) {
                 LedGridView lp = ledPreview.get(i);
                 if(i < p.numStates) {
-                    lp.setHexPattern(p.patterns.get(i), false);
+                    lp.setPatternBits(p.patterns[i], false);
                     lp.setOffColor(0xff404040);
                     lp.setBackgroundColor(0xff000000);
                 } else {
-                    lp.setHexPattern(StateMachine.nullPattern, false);
+                    lp.setPatternBits(StateMachine.nullPatternBits, false);
                     lp.setOffColor(0xff808080);
                     lp.setBackgroundColor(0xff606060);
                 }
@@ -89,6 +94,18 @@ public class ProjectListAdapter extends RecyclerView.Adapter<ProjectListAdapter.
             itemView.setBackgroundColor(isSelected ? 0x400000ff : 0x00000000);
         }
 
+        // a row whose project is still loading
+        public void bindPlaceholder() {
+            for(int i=0; i<numPreviews; ++i) {
+                LedGridView lp = ledPreview.get(i);
+                lp.setPatternBits(StateMachine.nullPatternBits, false);
+                lp.setOffColor(0xff808080);
+                lp.setBackgroundColor(0xff606060);
+            }
+            tvProjectName.setText("");
+            itemView.setBackgroundColor(0x00000000);
+        }
+
         private static int dpToPixels(View view, int value) {
             return (int) (TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
                     value, view.getResources().getDisplayMetrics()) + .5f);
@@ -113,17 +130,57 @@ public class ProjectListAdapter extends RecyclerView.Adapter<ProjectListAdapter.
         int adapterPosition = holder.getAdapterPosition();
         holder.bindStateMachine(pl.getPreview(adapterPosition),
                 pl.getSelIndex() == adapterPosition);
-        holder.itemView.setOnClickListener(v -> {
-            int oldIndex = pl.getSelIndex();
-            pl.selectProject(holder.getAdapterPosition());
-            notifyItemChanged(oldIndex);
-            notifyItemChanged(pl.getSelIndex());
-        });
+        holder.itemView.setOnClickListener(v -> pl.selectProject(holder.getAdapterPosition()));
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        pl.addOnEventListener(eventListener);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        pl.removeOnEventListener(eventListener);
+    }
+
+    private void notifyProjectChanged(int index) {
+        if(index >= 0 && index < getItemCount()) notifyItemChanged(index);
+    }
+
+    @SuppressLint("NotifyDataSetChanged")
+    private void onProjectListEvent(int event, int a, int b) {
+        switch (event) {
+            case ProjectList.EV_RELOADED:
+                notifyDataSetChanged();
+                break;
+            case ProjectList.EV_PROJECT_INSERTED:
+                notifyItemInserted(a);
+                break;
+            case ProjectList.EV_PROJECT_REMOVED:
+                notifyItemRemoved(a);
+                break;
+            case ProjectList.EV_PROJECT_CHANGED:
+                notifyProjectChanged(a);
+                break;
+            case ProjectList.EV_SELECTION_CHANGED:
+                notifyProjectChanged(a);
+                notifyProjectChanged(b);
+                break;
+            case ProjectList.EV_PROJECTS_INSERTED:
+                notifyItemRangeInserted(a, b);
+                break;
+            case ProjectList.EV_PROJECTS_LOADED:
+                // the rows were there as placeholders
+                notifyItemRangeChanged(a, b);
+                break;
+        }
     }
 
     @Override
     public int getItemCount() {
-        return pl.getProjectCount();
+        return pl.getProjectCount() + pl.getPlaceholderCount();
     }
 
 }
@@ -9,6 +9,8 @@ import android.widget.TextView;
 public class ProjectSettingsActivity extends AppCompatActivity {
 
     private PersistedProjectList pl;
+    private int projectId;
+    private final OnChangeListener changeListener = () -> tb.refresh();
     private StateMachine sm;
     private TransferButtons tb;
     private TextView txtTitle;
@@ -20,8 +22,9 @@ public class ProjectSettingsActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_project_settings);
 
-        pl = new PersistedProjectList(this);
-        sm = pl.getMachine();
+        pl = PersistedProjectList.getInstance(this);
+        projectId = pl.pinProject(getIntent().getIntExtra("project", -1));
+        sm = pl.getMachineById(projectId);
 
         txtTitle = findViewById(R.id.txtTitle);
         txtTitle.setText(sm.getName());
@@ -44,27 +47,43 @@ public class ProjectSettingsActivity extends AppCompatActivity {
 
         this.setTitle(sm.getName());
 
-        pl.setOnChangeListener(() -> tb.refresh());
+        pl.addOnChangeListener(changeListener);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        pl.removeOnChangeListener(changeListener);
+        pl.unpinProject(projectId);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
         applyChanges();
+        pl.flushState();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
         pl.loadState();
-        sm = pl.getMachine();
+        if(!pl.hasProject(projectId)) {
+            pl.unpinProject(projectId);
+            projectId = pl.pinProject(projectId);
+        }
+        // the shared list only replaces the machine when the store changed
+        if(pl.getMachineById(projectId) == sm) return;
+        sm = pl.getMachineById(projectId);
         tb.setStateMachine(sm);
         tb.refresh();
     }
 
     private void applyChanges() {
+        sm.beginBatch();
         sm.setName(txtTitle.getText().toString());
         sm.setGlobalSpeed(maxSpeed - sbSpeed.getProgress());
+        sm.endBatch();
         pl.persistState();
     }
 
@@ -0,0 +1,321 @@
+package app.smd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+// one file per project in the binary format of StateMachine.writeTo, plus an index holding the
+// order of the projects and the selection; every file is replaced by writing a temporary one and
+// renaming it over the old, so a crash leaves either the old or the new version
+@SuppressWarnings("unused")
+public class ProjectStore {
+
+    private static final int indexMagic = 0x736d6469;  // "smdi"
+    private static final int packMagic = 0x736d6470;  // "smdp"
+    private static final int hashesMagic = 0x736d6468;  // "smdh", starts the hashes after the previews
+    private static final int packVersion = 1;
+    private static final int indexVersion = 2;  // 1 had no previews
+    private static final String indexName = "index";
+    private static final String projectSuffix = ".smd";
+    private static final String tempSuffix = ".tmp";
+    private static final int maxProjects = 1 << 20;  // a larger count means a damaged index
+
+    public static class Index {
+        public int generation;  // incremented by every write of the index
+        public int nextId;  // ids below this were handed out, higher ones are not listed yet
+        public int selection;
+        public int[] ids;
+        public ProjectList.Preview[] previews;  // per id, null where the project must be read for it
+        public long[] hashes;  // per id, ProjectList.contentHash or 0 where it is not known
+    }
+
+    private final File dir;
+
+    public ProjectStore(File dir) {
+        this.dir = dir;
+    }
+
+    private File projectFile(int id) {
+        return new File(dir, id + projectSuffix);
+    }
+
+    // writes data through a temporary file that is synced before it replaces file, returns the
+    // number of bytes written or -1
+    private int writeAtomically(File file, Content content) {
+        if(!dir.isDirectory() && !dir.mkdirs()) return -1;
+        File temp = new File(dir, file.getName() + tempSuffix);
+        int size;
+        try {
+            FileOutputStream fos = new FileOutputStream(temp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                content.write(out);
+                out.flush();
+                fos.getFD().sync();
+                size = out.size();
+            } finally {
+                fos.close();
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return -1;
+        }
+        return temp.renameTo(file) ? size : -1;
+    }
+
+    private interface Content {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    public int writeProject(int id, StateMachine sm) {
+        return writeAtomically(projectFile(id), sm::writeTo);
+    }
+
+    // null if the project is missing or does not decode
+    public StateMachine readProject(int id) {
+        StateMachine sm = new StateMachine();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(projectFile(id))));
+            try {
+                sm.readFrom(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return sm.getLoadErrorOffset() < 0 ? sm : null;
+    }
+
+    public void deleteProject(int id) {
+        //noinspection ResultOfMethodCallIgnored
+        projectFile(id).delete();
+    }
+
+    public int writeIndex(Index index) {
+        return writeAtomically(new File(dir, indexName), out -> {
+            out.writeInt(indexMagic | indexVersion);
+            out.writeInt(index.generation);
+            out.writeInt(index.nextId);
+            out.writeInt(index.selection);
+            out.writeInt(index.ids.length);
+            for(int id : index.ids) out.writeInt(id);
+            // the previews follow the ids, so the list can be shown without reading any project
+            for(int i=0; i<index.ids.length; ++i) {
+                ProjectList.Preview p = index.previews != null ? index.previews[i] : null;
+                if(p == null) {
+                    out.writeBoolean(false);
+                    continue;
+                }
+                out.writeBoolean(true);
+                out.writeUTF(p.name);
+                ProgramCodec.writeVarint(out, p.numStates);
+                out.writeByte(p.patterns.length);
+                for(long pattern : p.patterns) out.writeLong(pattern);
+            }
+            // an index written before the hashes were stored ends here, the version stays the same
+            out.writeInt(hashesMagic);
+            for(int i=0; i<index.ids.length; ++i) out.writeLong(index.hashes != null ? index.hashes[i] : 0);
+        });
+    }
+
+    // only the generation, to tell cheaply whether the store changed; -1 if there is no index
+    public int readGeneration() {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(new File(dir, indexName)));
+            try {
+                int magic = in.readInt();
+                if(magic != (indexMagic | indexVersion) && magic != (indexMagic | 1)) return -1;
+                return in.readInt();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // null if there is no readable index
+    private Index readIndexFile() {
+        Index index = new Index();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir, indexName))));
+            try {
+                int magic = in.readInt();
+                if(magic != (indexMagic | indexVersion) && magic != (indexMagic | 1)) return null;
+                index.generation = in.readInt();
+                index.nextId = in.readInt();
+                index.selection = in.readInt();
+                int count = in.readInt();
+                if(count < 0 || count > maxProjects) return null;
+                index.ids = new int[count];
+                for(int i=0; i<count; ++i) index.ids[i] = in.readInt();
+                index.previews = new ProjectList.Preview[count];
+                index.hashes = new long[count];
+                if(magic == (indexMagic | indexVersion)) {
+                    for(int i=0; i<count; ++i) index.previews[i] = readPreview(in);
+                    readHashes(in, index.hashes);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return index;
+    }
+
+    // leaves the hashes 0 if the index has none
+    private static void readHashes(DataInputStream in, long[] hashes) throws IOException {
+        try {
+            if(in.readInt() != hashesMagic) throw new IOException();
+        } catch (EOFException e) {
+            return;
+        }
+        for(int i=0; i<hashes.length; ++i) hashes[i] = in.readLong();
+    }
+
+    private static ProjectList.Preview readPreview(DataInputStream in) throws IOException {
+        if(!in.readBoolean()) return null;
+        ProjectList.Preview p = new ProjectList.Preview();
+        p.name = in.readUTF();
+        p.numStates = ProgramCodec.readVarint(in);
+        int stored = in.readUnsignedByte();
+        if(p.numStates < 0 || stored > p.numStates || stored > ProjectList.previewStates) throw new IOException();
+        p.patterns = new long[stored];
+        for(int i=0; i<stored; ++i) p.patterns[i] = in.readLong();
+        return p;
+    }
+
+    // ids of the project files present, in ascending order; drops leftover temporary files
+    private int[] scanProjectFiles() {
+        String[] names = dir.list();
+        if(names == null) return new int[0];
+        int[] ids = new int[names.length];
+        int count = 0;
+        for(String name : names) {
+            if(name.endsWith(tempSuffix)) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(dir, name).delete();
+            } else if(name.endsWith(projectSuffix)) {
+                try {
+                    ids[count++] = Integer.parseInt(name.substring(0, name.length() - projectSuffix.length()));
+                } catch (NumberFormatException e) {
+                    --count;
+                }
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    // several machines in one stream, as the demos ship in the assets: a header with the count,
+    // then the machines in the format of StateMachine.writeTo
+    public static void writePack(DataOutput out, StateMachine[] machines) throws IOException {
+        writePackHeader(out, machines.length);
+        for(StateMachine sm : machines) sm.writeTo(out);
+    }
+
+    public static void writePackHeader(DataOutput out, int count) throws IOException {
+        out.writeInt(packMagic | packVersion);
+        ProgramCodec.writeVarint(out, count);
+    }
+
+    // the count of machines that follow, -1 if the stream is not a pack
+    public static int readPackHeader(DataInput in) throws IOException {
+        if(!isPackMagic(in.readInt())) return -1;
+        int count = ProgramCodec.readVarint(in);
+        return count <= maxProjects ? count : -1;
+    }
+
+    public static boolean isPackMagic(int magic) {
+        return magic == (packMagic | packVersion);
+    }
+
+    // null if the stream is not a pack or any machine in it does not decode
+    public static StateMachine[] readPack(DataInput in) {
+        try {
+            int count = readPackHeader(in);
+            if(count < 0) return null;
+            StateMachine[] machines = new StateMachine[count];
+            for(int i=0; i<count; ++i) {
+                machines[i] = new StateMachine();
+                machines[i].readFrom(in);
+                if(machines[i].getLoadErrorOffset() >= 0) return null;
+            }
+            return machines;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // the index brought in line with the project files after a crash: listed projects whose file
+    // is missing are dropped, unlisted files with ids the index already handed out belong to
+    // deleted projects and are removed, newer ones were added after the last index write and are
+    // appended; a repaired index is written back; null if the store is empty
+    public Index open() {
+        int[] files = scanProjectFiles();
+        Index index = readIndexFile();
+        boolean repaired = index == null;
+        if(index == null) {
+            if(files.length == 0) return null;
+            index = new Index();
+            index.ids = new int[0];
+            index.previews = new ProjectList.Preview[0];
+            index.hashes = new long[0];
+        }
+        ArrayList<Integer> ids = new ArrayList<>();
+        ArrayList<ProjectList.Preview> previews = new ArrayList<>();
+        ArrayList<Long> hashes = new ArrayList<>();
+        HashSet<Integer> listed = new HashSet<>();
+        for(int i=0; i<index.ids.length; ++i) {
+            int id = index.ids[i];
+            if(Arrays.binarySearch(files, id) >= 0 && listed.add(id)) {
+                ids.add(id);
+                previews.add(index.previews[i]);
+                hashes.add(index.hashes[i]);
+            }
+        }
+        repaired |= ids.size() != index.ids.length;
+        int nextId = index.nextId;
+        for(int id : files) {
+            if(listed.contains(id)) continue;
+            repaired = true;
+            if(id < index.nextId) {
+                deleteProject(id);
+            } else {
+                ids.add(id);
+                previews.add(null);
+                hashes.add(0L);
+                nextId = Math.max(nextId, id + 1);
+            }
+        }
+        if(!repaired) return index;
+        index.nextId = nextId;
+        index.ids = new int[ids.size()];
+        index.previews = new ProjectList.Preview[ids.size()];
+        index.hashes = new long[ids.size()];
+        for(int i=0; i<index.ids.length; ++i) {
+            index.ids[i] = ids.get(i);
+            index.previews[i] = previews.get(i);
+            index.hashes[i] = hashes.get(i);
+        }
+        ++index.generation;
+        writeIndex(index);
+        return index;
+    }
+
+}
@@ -0,0 +1,318 @@
+package app.smd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// whole libraries read and written one project at a time, so memory does not grow with the
+// library: as text, the representations separated by ; with the ; in them escaped as \; (the
+// format of ProjectList.exportAll), or binary, a pack of ProjectStore. Any thread; cancel() may
+// be called from another one and takes effect before the next project.
+@SuppressWarnings("unused")
+public class ProjectStream {
+
+    public static final int FORMAT_TEXT = 0;
+    public static final int FORMAT_BINARY = 1;
+
+    private static final int progressStep = 64;  // projects between two progress reports
+    private static final int bufferSize = 8192;
+    private static final int decodeBatch = 32;  // text records per decoding task
+    private static final int decodeThreads = Runtime.getRuntime().availableProcessors();
+
+    private static ThreadPoolExecutor decodePool;  // shared by every stream, created on first use
+
+    public interface Source {
+        int getCount();
+
+        // may read from the disk, called on the thread streaming
+        StateMachine get(int index);
+    }
+
+    public interface Sink {
+        void add(StateMachine sm);
+    }
+
+    public interface OnProgressListener {
+        void onProgress(int projects, long chars);
+    }
+
+    // projects transferred, -1 if the transfer failed
+    public interface OnFinishListener {
+        void onFinish(int projects);
+    }
+
+    private volatile boolean cancelled;
+    private OnProgressListener progressListener;
+    private int projects;
+    private long chars;  // bytes for the binary format
+    private boolean parallel;
+    // of the reading thread while decoding in parallel: the batch being filled, and the batches
+    // handed to the pool in the order they were read
+    private Batch batch;
+    private ArrayDeque<Batch> decoding;
+
+    public ProjectStream() {
+        cancelled = false;
+        progressListener = null;
+        parallel = false;
+    }
+
+    // readText splits the records on the calling thread and decodes them on a pool of a thread
+    // per core; the sink still gets them in order, on the calling thread
+    public void setParallelDecoding(boolean parallel) {
+        this.parallel = parallel && decodeThreads > 1;
+    }
+
+    private static synchronized ThreadPoolExecutor getDecodePool() {
+        if(decodePool == null) {
+            decodePool = new ThreadPoolExecutor(decodeThreads, decodeThreads, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "ProjectDecoder");
+                thread.setDaemon(true);
+                return thread;
+            });
+            decodePool.allowCoreThreadTimeOut(true);
+        }
+        return decodePool;
+    }
+
+    // records decoded together by one task of the pool
+    private static class Batch implements Runnable {
+        final String[] records = new String[decodeBatch];
+        final StateMachine[] machines = new StateMachine[decodeBatch];
+        int size;
+        FutureTask<Void> task;
+
+        @Override
+        public void run() {
+            for(int i=0; i<size; ++i) machines[i] = new StateMachine(records[i]);
+        }
+    }
+
+    public void setOnProgressListener(OnProgressListener listener) {
+        progressListener = listener;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private void advance(long length) {
+        ++projects;
+        chars += length;
+        if(progressListener != null && projects % progressStep == 0) progressListener.onProgress(projects, chars);
+    }
+
+    private int finish() {
+        if(progressListener != null) progressListener.onProgress(projects, chars);
+        return projects;
+    }
+
+    private int finishWriting(int count) {
+        finish();
+        return projects < count ? -1 : projects;
+    }
+
+    // the number of projects written, -1 if writing failed or was cancelled before the last
+    // project, the output is incomplete then; the stream is flushed, not closed
+    public int writeText(Source source, Writer out) {
+        projects = 0;
+        chars = 0;
+        char[] buf = new char[bufferSize];
+        int count = source.getCount();
+        try {
+            for(int i=0; i<count && !cancelled; ++i) {
+                String repr = source.get(i).getRepresentation();
+                int length = 0;
+                if(i > 0) buf[length++] = ';';
+                for(int k=0; k<repr.length(); ++k) {
+                    if(length + 2 > buf.length) {
+                        out.write(buf, 0, length);
+                        chars += length;
+                        length = 0;
+                    }
+                    char c = repr.charAt(k);
+                    if(c == ';') buf[length++] = '\\';
+                    buf[length++] = c;
+                }
+                out.write(buf, 0, length);
+                advance(length);
+            }
+            out.flush();
+        } catch (IOException e) {
+            return -1;
+        }
+        return finishWriting(count);
+    }
+
+    // a binary output cut short by a cancel holds fewer projects than its header promises
+    public int writeBinary(Source source, OutputStream out) {
+        projects = 0;
+        chars = 0;
+        int count = source.getCount();
+        try {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, bufferSize));
+            ProjectStore.writePackHeader(data, count);
+            for(int i=0; i<count && !cancelled; ++i) {
+                int before = data.size();
+                source.get(i).writeTo(data);
+                advance(data.size() - before);
+            }
+            data.flush();
+        } catch (IOException e) {
+            return -1;
+        }
+        return finishWriting(count);
+    }
+
+    // the number of projects read, -1 if reading failed; empty records are skipped and a record
+    // that does not parse becomes a project in the error state, as with ProjectList.importAll
+    public int readText(Reader in, Sink sink) {
+        projects = 0;
+        chars = 0;
+        char[] buf = new char[bufferSize];
+        StringBuilder record = new StringBuilder();
+        if(parallel) {
+            batch = new Batch();
+            decoding = new ArrayDeque<>();
+        }
+        try {
+            int n;
+            while((n = in.read(buf)) > 0 && !cancelled) {
+                int start = 0;
+                for(int k=0; k<n; ++k) {
+                    if(buf[k] != ';') continue;
+                    record.append(buf, start, k - start);
+                    start = k + 1;
+                    int last = record.length() - 1;
+                    if(last >= 0 && record.charAt(last) == '\\') {
+                        // an escaped ; belongs to the record
+                        record.setCharAt(last, ';');
+                        continue;
+                    }
+                    emit(record, sink);
+                    if(cancelled) break;
+                }
+                record.append(buf, start, n - start);
+            }
+            if(!cancelled) emit(record, sink);
+            if(parallel) {
+                submit();
+                drain(sink, 0);
+            }
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if(parallel) {
+                // what is still decoding after a failure or cancel is dropped
+                for(Batch b : decoding) b.task.cancel(false);
+                batch = null;
+                decoding = null;
+            }
+        }
+        return finish();
+    }
+
+    private void emit(StringBuilder record, Sink sink) throws IOException {
+        int length = record.length();
+        if(length == 0) return;
+        if(parallel) {
+            batch.records[batch.size++] = record.toString();
+            record.setLength(0);
+            if(batch.size == decodeBatch) {
+                submit();
+                // a few batches per thread keep the pool busy without reading far ahead
+                drain(sink, 2 * decodeThreads);
+            }
+            return;
+        }
+        sink.add(new StateMachine(record));
+        record.setLength(0);
+        advance(length + 1);
+    }
+
+    private void submit() {
+        if(batch.size == 0) return;
+        batch.task = new FutureTask<>(batch, null);
+        decoding.add(batch);
+        getDecodePool().execute(batch.task);
+        batch = new Batch();
+    }
+
+    // hands decoded batches to the sink in the order they were read, until at most pending are
+    // left decoding; a task that failed fails the read like the input would
+    private void drain(Sink sink, int pending) throws IOException {
+        while(decoding.size() > pending && !cancelled) {
+            Batch b = decoding.peek();
+            try {
+                b.task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelled = true;
+                return;
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            decoding.remove();
+            for(int i=0; i<b.size && !cancelled; ++i) {
+                sink.add(b.machines[i]);
+                advance(b.records[i].length() + 1);
+            }
+        }
+    }
+
+    // -1 also if the data is not a pack or a project in it does not decode
+    public int readBinary(InputStream in, Sink sink) {
+        projects = 0;
+        chars = 0;
+        try {
+            DataInputStream data = new DataInputStream(new BufferedInputStream(in, bufferSize));
+            int count = ProjectStore.readPackHeader(data);
+            if(count < 0) return -1;
+            for(int i=0; i<count && !cancelled; ++i) {
+                StateMachine sm = new StateMachine();
+                sm.readFrom(data);
+                if(sm.getLoadErrorOffset() >= 0) return -1;
+                sink.add(sm);
+                advance(0);
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        return finish();
+    }
+
+    // tells the two formats apart by the magic the binary one starts with; in must support mark
+    public static int detectFormat(InputStream in) {
+        try {
+            in.mark(4);
+            int magic = new DataInputStream(in).readInt();
+            in.reset();
+            return ProjectStore.isPackMagic(magic) ? FORMAT_BINARY : FORMAT_TEXT;
+        } catch (IOException e) {
+            try {
+                in.reset();
+            } catch (IOException ignored) {
+                // nothing was read
+            }
+            return FORMAT_TEXT;
+        }
+    }
+
+}
@@ -0,0 +1,278 @@
+package app.smd;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+// writes project snapshots to a ProjectStore on a background thread; requests arriving within
+// debounceMillis of the first pending one are written together, the latest snapshot of each
+// project winning. There is one writer per store directory, so every PersistedProjectList on it
+// sees the writes of the others once it flushed.
+@SuppressWarnings("unused")
+public class ProjectWriter {
+
+    public static final int debounceMillis = 250;
+
+    private static final HashMap<String, ProjectWriter> writers = new HashMap<>();
+
+    private final ProjectStore store;
+    private final Object lock = new Object();
+    private Thread thread;
+    // pending writes, guarded by lock
+    private HashMap<Integer, StateMachine> pendingProjects;
+    private ProjectStore.Index pendingIndex;
+    private ArrayList<Integer> pendingDeletes;
+    private HashMap<Integer, StateMachine> writing;  // the batch on its way to the disk
+    private long dueTime;  // System.nanoTime() the pending writes are due at
+    private long firstRequestTime;  // of the oldest pending write, 0 if nothing is pending
+    private int requested;  // sequence number of the last request
+    private int completed;  // sequence number of the last request written
+    private int requestedGeneration;
+    // metrics, guarded by lock
+    private int batches;
+    private int failures;
+    private long bytesWritten;
+    private long totalLatency;  // from the first request of a batch until it is on disk, in ns
+    private long maxLatency;
+    private long totalWriteTime;  // spent writing, in ns
+
+    private ProjectWriter(ProjectStore store) {
+        this.store = store;
+        pendingProjects = new HashMap<>();
+        pendingDeletes = new ArrayList<>();
+        writing = new HashMap<>();
+        requestedGeneration = -1;
+    }
+
+    public static ProjectWriter forDirectory(File dir) {
+        synchronized(writers) {
+            String key = dir.getAbsolutePath();
+            ProjectWriter writer = writers.get(key);
+            if(writer == null) {
+                writer = new ProjectWriter(new ProjectStore(dir));
+                writers.put(key, writer);
+            }
+            return writer;
+        }
+    }
+
+    public ProjectStore getStore() {
+        return store;
+    }
+
+    // the snapshot must not be modified afterwards, StateMachine.snapshot() makes a cheap one
+    public void writeProject(int id, StateMachine snapshot) {
+        synchronized(lock) {
+            pendingProjects.put(id, snapshot);
+            request(debounceMillis);
+        }
+    }
+
+    public void writeIndex(ProjectStore.Index index) {
+        synchronized(lock) {
+            pendingIndex = index;
+            requestedGeneration = index.generation;
+            request(debounceMillis);
+        }
+    }
+
+    // generation of the last index handed to the writer, -1 if none was
+    public int getRequestedGeneration() {
+        synchronized(lock) {
+            return requestedGeneration;
+        }
+    }
+
+    // the newest snapshot of a project not yet on disk, null if the store holds the latest
+    public StateMachine getUnwrittenProject(int id) {
+        synchronized(lock) {
+            StateMachine sm = pendingProjects.get(id);
+            return sm != null ? sm : writing.get(id);
+        }
+    }
+
+    // the project file is removed after the index that no longer lists it is written
+    public void deleteProject(int id) {
+        synchronized(lock) {
+            pendingProjects.remove(id);
+            pendingDeletes.add(id);
+            request(debounceMillis);
+        }
+    }
+
+    // writes what is pending without waiting for more requests
+    public void flush() {
+        synchronized(lock) {
+            if(!hasPending()) return;
+            dueTime = System.nanoTime();
+            lock.notifyAll();
+        }
+    }
+
+    // flushes and blocks until everything requested so far is written
+    public void flushAndWait() {
+        synchronized(lock) {
+            if(!hasPending() && completed == requested) return;
+            int target = requested;
+            dueTime = System.nanoTime();
+            lock.notifyAll();
+            try {
+                while(completed - target < 0) lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isIdle() {
+        synchronized(lock) {
+            return !hasPending() && completed == requested;
+        }
+    }
+
+    private boolean hasPending() {
+        return !pendingProjects.isEmpty() || pendingIndex != null || !pendingDeletes.isEmpty();
+    }
+
+    private void request(int delayMillis) {
+        long now = System.nanoTime();
+        ++requested;
+        // the window starts with the first pending request, later ones do not extend it
+        if(firstRequestTime == 0) {
+            firstRequestTime = now;
+            dueTime = now + delayMillis * 1000000L;
+        }
+        if(thread == null) {
+            thread = new Thread(this::run, "ProjectWriter");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        lock.notifyAll();
+    }
+
+    private void run() {
+        while(true) {
+            HashMap<Integer, StateMachine> projects;
+            ProjectStore.Index index;
+            ArrayList<Integer> deletes;
+            int sequence;
+            long since;
+            synchronized(lock) {
+                try {
+                    while(true) {
+                        if(!hasPending()) {
+                            lock.wait();
+                            continue;
+                        }
+                        long wait = dueTime - System.nanoTime();
+                        if(wait <= 0) break;
+                        lock.wait(wait / 1000000L, (int) (wait % 1000000L));
+                    }
+                } catch (InterruptedException e) {
+                    thread = null;
+                    return;
+                }
+                projects = pendingProjects;
+                writing = projects;
+                index = pendingIndex;
+                deletes = pendingDeletes;
+                pendingProjects = new HashMap<>();
+                pendingIndex = null;
+                pendingDeletes = new ArrayList<>();
+                sequence = requested;
+                since = firstRequestTime;
+                firstRequestTime = 0;
+            }
+
+            long start = System.nanoTime();
+            long bytes = 0;
+            boolean failed = false;
+            HashMap<Integer, StateMachine> retry = new HashMap<>();
+            for(Map.Entry<Integer, StateMachine> e : projects.entrySet()) {
+                int size = store.writeProject(e.getKey(), e.getValue());
+                if(size < 0) {
+                    retry.put(e.getKey(), e.getValue());
+                    failed = true;
+                } else {
+                    bytes += size;
+                }
+            }
+            // the index is only written once all the projects it lists are
+            boolean indexWritten = false;
+            if(index != null && !failed) {
+                int size = store.writeIndex(index);
+                indexWritten = size >= 0;
+                if(indexWritten) bytes += size;
+                else failed = true;
+            }
+            if(indexWritten) {
+                for(int id : deletes) store.deleteProject(id);
+            }
+            long end = System.nanoTime();
+
+            synchronized(lock) {
+                writing = new HashMap<>();
+                // failed writes are retried later unless a newer request replaced them
+                for(Map.Entry<Integer, StateMachine> e : retry.entrySet()) {
+                    int id = e.getKey();
+                    if(!pendingProjects.containsKey(id) && !pendingDeletes.contains(id)) pendingProjects.put(id, e.getValue());
+                }
+                if(index != null && !indexWritten && pendingIndex == null) pendingIndex = index;
+                if(index != null && !indexWritten) pendingDeletes.addAll(0, deletes);
+                if(failed) {
+                    ++failures;
+                    if(firstRequestTime == 0) firstRequestTime = since;
+                    dueTime = end + debounceMillis * 1000000L;
+                }
+                ++batches;
+                bytesWritten += bytes;
+                long latency = end - since;
+                totalLatency += latency;
+                maxLatency = Math.max(maxLatency, latency);
+                totalWriteTime += end - start;
+                completed = sequence;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    public int getBatchCount() {
+        synchronized(lock) {
+            return batches;
+        }
+    }
+
+    public int getFailureCount() {
+        synchronized(lock) {
+            return failures;
+        }
+    }
+
+    public long getBytesWritten() {
+        synchronized(lock) {
+            return bytesWritten;
+        }
+    }
+
+    // from the first request of a batch until it was written
+    public long getAverageLatencyMillis() {
+        synchronized(lock) {
+            return batches == 0 ? 0 : totalLatency / batches / 1000000L;
+        }
+    }
+
+    public long getMaxLatencyMillis() {
+        synchronized(lock) {
+            return maxLatency / 1000000L;
+        }
+    }
+
+    // time spent on the disk itself
+    public long getAverageWriteMillis() {
+        synchronized(lock) {
+            return batches == 0 ? 0 : totalWriteTime / batches / 1000000L;
+        }
+    }
+
+}
@@ -38,6 +38,7 @@ public class SerialActivity extends AppCompatActivity {
     public static final int ST_SENDING = 7;
     public static final int ST_RECEIVING = 8;
     public static final int ST_HANDSHAKE_FAILED = 9;
+    public static final int ST_TOO_LARGE = 10;
 
     private PersistedProjectList pl = null;
     private Button btnRefresh;
@@ -57,7 +58,7 @@ public class SerialActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_serial);
-        pl = new PersistedProjectList(this);
+        pl = PersistedProjectList.getInstance(this);
         btnRefresh = findViewById(R.id.btnRefresh);
         btnUpload = findViewById(R.id.btnUpload);
         btnDownload = findViewById(R.id.btnDownload);
@@ -94,7 +95,7 @@ public class SerialActivity extends AppCompatActivity {
     @Override
     protected void onPause() {
         super.onPause();
-        if (pl != null) pl.persistState();
+        if (pl != null) pl.flushState();
     }
 
     @Override
@@ -125,19 +126,26 @@ public class SerialActivity extends AppCompatActivity {
                 return getString(R.string.comm_status_receiving);
             case ST_HANDSHAKE_FAILED:
                 return getString(R.string.comm_status_handshake_failed);
+            case ST_TOO_LARGE:
+                return getString(R.string.comm_status_too_large);
             default:
                 return getString(R.string.comm_status_unknown);
         }
     }
 
+    // a rejected upload leaves the connection usable
+    private static boolean isReady(int status) {
+        return status == ST_CONNECTED || status == ST_TOO_LARGE;
+    }
+
     private void setDeviceStatus(int status) {
         runOnUiThread(() -> {
             deviceStatus = status;
             txtCommStatus.setText(statusString(status));
             btnRefresh.setEnabled(status != ST_CONNECTING && status != ST_SENDING &&
                     status != ST_RECEIVING && status != ST_PENDING_PERMISSION);
-            btnUpload.setEnabled(status == ST_CONNECTED);
-            btnDownload.setEnabled(status == ST_CONNECTED);
+            btnUpload.setEnabled(isReady(status));
+            btnDownload.setEnabled(isReady(status));
         });
     }
 
@@ -207,9 +215,24 @@ public class SerialActivity extends AppCompatActivity {
     }
 
     private void uploadProject() {
+        pl.persistState();
+        ProjectWriter writer = pl.getWriter();
+        // the worker reads a copy, the list and the machine in it stay with the main thread
+        StateMachine original = pl.getMachine().snapshot();
         new Thread(() -> {
-            if (deviceStatus != ST_CONNECTED) return;
-            StateMachine sm = pl.getMachine();
+            if (!isReady(deviceStatus)) return;
+            // what the device runs is on disk before it is sent
+            writer.flushAndWait();
+            // the device starts from the first state, so merged and unreachable frames are not sent
+            StateMachine sm = ProgramOptimizer.optimize(original);
+            // never send a program that would behave differently from the one in the editor
+            if (!ProgramEquivalence.areEquivalent(original, sm)) sm = original;
+            // the device only understands the v1 format
+            if (!sm.fitsLegacyFormat()) {
+                setDeviceStatus(ST_TOO_LARGE);
+                refreshUI();
+                return;
+            }
             if (serialRequest(sm.getProgram() + "\n", 16).equals("ok\n")) {
                 setDeviceStatus(ST_CONNECTED);
             } else {
@@ -221,15 +244,19 @@ public class SerialActivity extends AppCompatActivity {
 
     private void downloadProject() {
         new Thread(() -> {
-            if (deviceStatus != ST_CONNECTED) return;
+            if (!isReady(deviceStatus)) return;
             String program = serialRequest("save\n", 2050).trim();
             if (program.startsWith(StateMachine.magic)) {
                 setDeviceStatus(ST_CONNECTED);
-                pl.importProject(genProjectName(), program);
+                // the list is main thread only
+                runOnUiThread(() -> {
+                    pl.importProject(genProjectName(), program);
+                    refreshUI();
+                });
             } else {
                 setDeviceStatus(ST_HANDSHAKE_FAILED);
+                refreshUI();
             }
-            refreshUI();
         }).start();
     }
 
@@ -11,6 +11,8 @@ import android.view.MenuItem;
 
 public class SimulationActivity extends AppCompatActivity {
 
+    private static final int bundleStateLimit = 2048;  // roughly 30 to 60k bytes in the binary format
+
     private StateMachine sm;
     private int initState;
     private boolean debugMode = false;
@@ -19,8 +21,6 @@ public class SimulationActivity extends AppCompatActivity {
     private long lastTimer = 0;
     private long frameProgress = 0;
     private Choreographer cg;
-    private int holdRefresh = 0;
-    private boolean pendingRefresh = false;
     private LedGridView ledPattern;
     private TransferButtons tbControls;
     private MenuItem pauseMenu = null;
@@ -36,19 +36,24 @@ public class SimulationActivity extends AppCompatActivity {
         int mode = getIntent().getIntExtra("mode", 0);
         debugMode = mode == 2;
 
-        String savedRepr = null;
+        StateMachineParcel saved = null;
         if(savedInstanceState != null) {
-            savedRepr = savedInstanceState.getString("sm");
+            saved = savedInstanceState.getParcelable("sm");
             viewMode = savedInstanceState.getInt("viewMode");
             frameProgress = savedInstanceState.getLong("frameProgress");
         }
 
-        if(savedRepr != null) {
-            sm = new StateMachine(savedRepr);
+        if(saved != null) {
+            sm = saved.getMachine();
         } else {
-            StateMachine osm = (new PersistedProjectList(this)).getMachine();
+            // only the project simulated is read, whatever else the list holds or was selected since
+            PersistedProjectList pl = PersistedProjectList.getInstance(this);
+            StateMachine osm = pl.getMachineById(getIntent().getIntExtra("project", -1));
+            if(osm == null) osm = pl.getMachine();
             sm = new StateMachine(osm, mode != 0);
             sm.setName(osm.getName());
+            // too large to have been saved whole, only the playback position was
+            if(savedInstanceState != null) sm.gotoState(savedInstanceState.getInt("state"));
         }
         this.setTitle(sm.getName());
 
@@ -76,7 +81,9 @@ public class SimulationActivity extends AppCompatActivity {
     @Override
     public void onSaveInstanceState(@NonNull Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putString("sm", sm.getRepresentation());
+        // large programs are reloaded from the project list instead, the Bundle has a size limit
+        if(sm.getStateCount() <= bundleStateLimit) outState.putParcelable("sm", new StateMachineParcel(sm));
+        outState.putInt("state", sm.getCurrentState());
         outState.putInt("viewMode", viewMode);
         outState.putLong("frameProgress", frameProgress);
     }
@@ -99,37 +106,18 @@ public class SimulationActivity extends AppCompatActivity {
     }
 
     private void advanceFrames(int frames) {
-        lockRefresh();
-        for(int i=0; i<frames; ++i) {
-            sm.processOp(sm.getTransfer(StateMachine.TX_AUTO));
-        }
-        unlockRefresh();
+        sm.beginBatch();
+        sm.advance(frames);
+        sm.endBatch();
     }
 
     private void stateMachineChanged() {
-        if(holdRefresh > 0) {
-            pendingRefresh = true;
-        } else {
-            refresh();
-        }
-    }
-
-    private void lockRefresh() {
-        holdRefresh += 1;
-    }
-
-    private void unlockRefresh() {
-        holdRefresh -= 1;
-        if(holdRefresh < 0) holdRefresh = 0;
-        if(holdRefresh == 0 && pendingRefresh) {
-            pendingRefresh = false;
-            refresh();
-        }
+        refresh();
     }
 
     private void refresh() {
         delay = sm.isPaused() ? 0 : sm.getDelay();
-        ledPattern.setHexPattern(sm.getPattern(), false);
+        ledPattern.setPatternBits(sm.getPatternBits(), false);
         tbControls.refresh();
         if(debugMode) {
             if(sm.isErrorState()) {
@@ -157,7 +145,7 @@ public class SimulationActivity extends AppCompatActivity {
     }
 
     private void processTx(int tx) {
-        sm.processOp(sm.getTransfer(tx));
+        sm.step(tx);
     }
 
     @Override
@@ -0,0 +1,146 @@
+package app.smd;
+
+import java.util.Arrays;
+
+@SuppressWarnings("unused")
+public class SimulationEngine {
+
+    // one tick is one millisecond, the unit of StateMachine.getDelay(); a frame is counted in
+    // millionths of 1/8192, so every delay, a power of two of at most 8192 ticks, divides it and
+    // no progress is lost to rounding
+    private static final long FRAME = 1000000L << 13;
+
+    public static class Script {
+        private long[] ticks = new long[16];
+        private int[] txs = new int[16];
+        private int size = 0;
+
+        public Script add(long tick, int tx) {
+            if(size == ticks.length) {
+                ticks = Arrays.copyOf(ticks, size * 2);
+                txs = Arrays.copyOf(txs, size * 2);
+            }
+            int pos = size;
+            while(pos > 0 && ticks[pos - 1] > tick) {
+                ticks[pos] = ticks[pos - 1];
+                txs[pos] = txs[pos - 1];
+                --pos;
+            }
+            ticks[pos] = tick;
+            txs[pos] = tx;
+            ++size;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long getTick(int index) {
+            return ticks[index];
+        }
+
+        public int getTx(int index) {
+            return txs[index];
+        }
+    }
+
+    public static class Trace {
+        private long[] ticks = new long[64];
+        private int[] entries = new int[64];  // state << 8 | playbackSpeed << 1 | paused
+        private int size = 0;
+        private long steps = 0;
+
+        private void add(long tick, int entry) {
+            if(size > 0 && entries[size - 1] == entry) return;
+            if(size == ticks.length) {
+                ticks = Arrays.copyOf(ticks, size * 2);
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            ticks[size] = tick;
+            entries[size] = entry;
+            ++size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long getStepCount() {
+            return steps;
+        }
+
+        public long getTick(int index) {
+            return ticks[index];
+        }
+
+        public int getState(int index) {
+            return entries[index] >> 8;
+        }
+
+        public int getPlaybackSpeed(int index) {
+            return (entries[index] >> 1) & 0x7f;
+        }
+
+        public boolean isPaused(int index) {
+            return (entries[index] & 1) != 0;
+        }
+    }
+
+    private final StateMachine sm;
+    private long tick;
+    private long frameProgress;  // in FRAME units, like the millionths SimulationActivity counts
+    private long inputsDone;  // the tick up to which the script was replayed, -1 before the first run
+
+    public SimulationEngine(StateMachine source) {
+        sm = new StateMachine(source, true);
+        tick = 0;
+        frameProgress = 0;
+        inputsDone = -1;
+    }
+
+    public StateMachine getStateMachine() {
+        return sm;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    private int traceEntry() {
+        return sm.getCurrentState() << 8 | sm.getPlaybackSpeed() << 1 | (sm.isPaused() ? 1 : 0);
+    }
+
+    // replays the script from the current tick until endTick, auto transfers fire every getDelay()
+    // ticks; the trace is empty if endTick is before the current tick, the clock does not go back
+    public Trace run(Script script, long endTick) {
+        Trace trace = new Trace();
+        if(endTick < tick) return trace;
+        trace.add(tick, traceEntry());
+        int next = 0;
+        // inputs at the tick a previous run ended on were replayed by it
+        while(next < script.size() && (script.getTick(next) < tick || script.getTick(next) <= inputsDone)) ++next;
+        while(true) {
+            int delay = sm.isPaused() ? 0 : sm.getDelay();
+            long autoAt = Long.MAX_VALUE;
+            if(delay != 0) autoAt = tick + ((FRAME - frameProgress) * delay + FRAME - 1) / FRAME;
+            long inputAt = next < script.size() ? script.getTick(next) : Long.MAX_VALUE;
+            long t = Math.min(Math.min(autoAt, inputAt), endTick);
+            if(delay != 0) frameProgress += (t - tick) * FRAME / delay;
+            tick = t;
+            if(autoAt <= inputAt && autoAt <= endTick) {
+                frameProgress -= FRAME;
+                sm.step(StateMachine.TX_AUTO);
+            } else if(inputAt <= endTick) {
+                sm.step(script.getTx(next++));
+            } else {
+                break;
+            }
+            ++trace.steps;
+            trace.add(tick, traceEntry());
+        }
+        inputsDone = endTick;
+        return trace;
+    }
+
+}
@@ -0,0 +1,48 @@
+package app.smd;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// cold start timings, from the first onCreate of the project list in the process until its first
+// frame is drawn and until every project is in it; each is recorded once per process
+@SuppressWarnings("unused")
+public class StartupMetrics {
+
+    private static final String tag = "smd.startup";
+
+    private static long startTime = -1;
+    private static long firstFrameMillis = -1;
+    private static long fullListMillis = -1;
+    private static int fullListCount = -1;
+
+    public static void markStart() {
+        if(startTime < 0) startTime = SystemClock.uptimeMillis();
+    }
+
+    public static void markFirstFrame() {
+        if(startTime < 0 || firstFrameMillis >= 0) return;
+        firstFrameMillis = SystemClock.uptimeMillis() - startTime;
+        Log.i(tag, "first frame after " + firstFrameMillis + " ms");
+    }
+
+    public static void markFullList(int projectCount) {
+        if(startTime < 0 || fullListMillis >= 0) return;
+        fullListMillis = SystemClock.uptimeMillis() - startTime;
+        fullListCount = projectCount;
+        Log.i(tag, "all " + projectCount + " projects after " + fullListMillis + " ms");
+    }
+
+    // -1 until reached
+    public static long getFirstFrameMillis() {
+        return firstFrameMillis;
+    }
+
+    public static long getFullListMillis() {
+        return fullListMillis;
+    }
+
+    public static int getFullListCount() {
+        return fullListCount;
+    }
+
+}
@@ -17,17 +17,25 @@ import androidx.recyclerview.widget.SimpleItemAnimator;
 public class StateListActivity extends AppCompatActivity {
 
     private PersistedProjectList pl;
+    private int projectId;
+    private final OnChangeListener changeListener = this::updateFrame;
     private StateMachine sm;
     private RecyclerView rv;
     private StateListAdapter sla;
+    private ProgramAnalyzer analyzer;
+
+    private static final int historyBudget = 256 * 1024;
+    private static final String txSymbols = "\u2190\u2192\u2191\u2193\u25cf\u21bb";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_state_list);
 
-        pl = new PersistedProjectList(this);
-        sm = pl.getMachine();
+        pl = PersistedProjectList.getInstance(this);
+        projectId = pl.pinProject(getIntent().getIntExtra("project", -1));
+        sm = pl.getMachineById(projectId);
+        if(sm.getHistory() == null) sm.setHistory(new EditHistory(historyBudget));
 
         rv = findViewById(R.id.listStates);
         int spans = 4;
@@ -37,27 +45,50 @@ public class StateListActivity extends AppCompatActivity {
         RecyclerView.LayoutManager lm = new GridLayoutManager(this, spans);
         rv.setLayoutManager(lm);
 
-        sla = new StateListAdapter(sm);
+        analyzer = new ProgramAnalyzer(sm);
+        sla = new StateListAdapter(sm, analyzer);
         rv.setAdapter(sla);
         SimpleItemAnimator rva = (SimpleItemAnimator) rv.getItemAnimator();
         if(rva != null) rva.setSupportsChangeAnimations(false);
 
-        pl.setOnChangeListener(this::updateFrame);
+        pl.addOnChangeListener(changeListener);
         updateFrame();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        pl.removeOnChangeListener(changeListener);
+        pl.unpinProject(projectId);
+        // the machine outlives this activity in the shared list, so nothing may stay subscribed to it
+        rv.setAdapter(null);
+        analyzer.detach();
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
-        pl.persistState();
+        pl.flushState();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
         pl.loadState();
-        sm = pl.getMachine();
-        sla = new StateListAdapter(sm);
+        if(!pl.hasProject(projectId)) {
+            pl.unpinProject(projectId);
+            projectId = pl.pinProject(projectId);
+        }
+        // the adapter and the analysis stay valid while the shared list holds the same machine
+        if(pl.getMachineById(projectId) == sm) {
+            updateFrame();
+            return;
+        }
+        sm = pl.getMachineById(projectId);
+        if(sm.getHistory() == null) sm.setHistory(new EditHistory(historyBudget));
+        analyzer.detach();
+        analyzer = new ProgramAnalyzer(sm);
+        sla = new StateListAdapter(sm, analyzer);
         rv.setAdapter(sla);
         updateFrame();
     }
@@ -87,7 +118,17 @@ public class StateListActivity extends AppCompatActivity {
     private void updateTitle() {
         this.setTitle(sm.getName());
         String frameTitle = String.format(getString(R.string.frame_number_template), sm.getCurrentState() + 1);
-        ((Toolbar) findViewById(R.id.tbFrameActions)).setTitle(frameTitle);
+        Toolbar toolbar = findViewById(R.id.tbFrameActions);
+        toolbar.setTitle(frameTitle);
+        // the analysis is only redone after edits of the transfers, not on every tap
+        int[] witness = analyzer.getErrorWitness();
+        if(witness != null) {
+            StringBuilder sb = new StringBuilder();
+            for(int tx : witness) sb.append(txSymbols.charAt(tx));
+            toolbar.setSubtitle(String.format(getString(R.string.lint_error_reachable), sb));
+        } else {
+            toolbar.setSubtitle(null);
+        }
     }
 
     @Override
@@ -96,81 +137,64 @@ public class StateListActivity extends AppCompatActivity {
         if(id == R.id.miPlayFrame) {
             Intent intent = new Intent(this, SimulationActivity.class);
             intent.putExtra("mode", 1);
+            intent.putExtra("project", projectId);
             this.startActivity(intent);
         }
         else if(id == R.id.miDebugFrame) {
             Intent intent = new Intent(this, SimulationActivity.class);
             intent.putExtra("mode", 2);
+            intent.putExtra("project", projectId);
             this.startActivity(intent);
         }
         else if(id == R.id.miProjectSettings) {
             Intent intent = new Intent(this, ProjectSettingsActivity.class);
+            intent.putExtra("project", projectId);
             this.startActivity(intent);
         }
         else if(id == R.id.miEditFrame) {
             Intent intent = new Intent(this, PatternActivity.class);
+            intent.putExtra("project", projectId);
             this.startActivity(intent);
         }
+        else if(id == R.id.miUndoFrame) {
+            sm.undo();
+            pl.persistState();
+        }
+        else if(id == R.id.miRedoFrame) {
+            sm.redo();
+            pl.persistState();
+        }
         else if(id == R.id.miAddFrame) {
-            int oldIndex = sm.getCurrentState();
             sm.addState();
             pl.persistState();
-            if(!sm.isErrorState()) sla.notifyItemInserted(sm.getCurrentState());
-            if(oldIndex >= 0) sla.notifyItemChanged(oldIndex);
         }
         else if(id == R.id.miCloneFrame) {
-            int oldIndex = sm.getCurrentState();
             sm.cloneState();
             pl.persistState();
-            if(!sm.isErrorState()) sla.notifyItemInserted(sm.getCurrentState());
-            if(oldIndex >= 0) sla.notifyItemChanged(oldIndex);
         }
         else if(id == R.id.miMoveFrameForward) {
-            int oldIndex = sm.getCurrentState();
             sm.moveStateUp();
             pl.persistState();
-            if(oldIndex >= 0 && !sm.isErrorState()) {
-                sla.notifyItemMoved(oldIndex, sm.getCurrentState());
-            }
         }
         else if(id == R.id.miMoveFrameBackward) {
-            int oldIndex = sm.getCurrentState();
             sm.moveStateDown();
             pl.persistState();
-            if(oldIndex >= 0 && !sm.isErrorState()) {
-                sla.notifyItemMoved(oldIndex, sm.getCurrentState());
-            }
         }
         else if(id == R.id.miCutFrame) {
-            int oldIndex = sm.getCurrentState();
             sm.cutState();
             pl.persistState();
-            if(oldIndex >= 0) {
-                sla.notifyItemRemoved(oldIndex);
-                if(!sm.isErrorState()) sla.notifyItemChanged(sm.getCurrentState());
-            }
         }
         else if(id == R.id.miCopyFrame) {
             sm.copyState();
             pl.persistState();
         }
         else if(id == R.id.miPasteFrame) {
-            int oldIndex = sm.getCurrentState();
             sm.pasteState();
             pl.persistState();
-            if(!sm.isErrorState()) {
-                if(oldIndex >= 0) sla.notifyItemChanged(oldIndex);
-                sla.notifyItemInserted(sm.getCurrentState());
-            }
         }
         else if(id == R.id.miDeleteFrame) {
-            int oldIndex = sm.getCurrentState();
             sm.removeState();
             pl.persistState();
-            if(oldIndex >= 0) {
-                sla.notifyItemRemoved(oldIndex);
-                if(!sm.isErrorState()) sla.notifyItemChanged(sm.getCurrentState());
-            }
         }
         return true;
     }
@@ -11,9 +11,14 @@ import androidx.recyclerview.widget.RecyclerView;
 public class StateListAdapter extends RecyclerView.Adapter<StateListAdapter.ViewHolder> {
 
     private final StateMachine sm;
+    private final ProgramAnalyzer analyzer;
+    private final OnEventListener eventListener = this::onStateMachineEvent;
+    private RecyclerView recyclerView;
+    private boolean lintPending;
 
     public static class ViewHolder extends RecyclerView.ViewHolder {
         private final LedGridView ledPreview;
+        private boolean reachable;
 
         public ViewHolder(@NonNull View itemView) {
             super(itemView);
@@ -21,15 +26,19 @@ public class StateListAdapter extends RecyclerView.Adapter<StateListAdapter.View
         }
 
         @SuppressLint("ResourceAsColor")
-        public void bindFrame(String pattern, boolean isSelected) {
-            ledPreview.setHexPattern(pattern, false);
+        public void bindFrame(long pattern, boolean isSelected, boolean isReachable) {
+            ledPreview.setPatternBits(pattern, false);
             itemView.setBackgroundColor(isSelected ? 0x400000ff : 0x00000000);
+            // frames playback can never get to are dimmed
+            itemView.setAlpha(isReachable ? 1.0f : 0.4f);
+            reachable = isReachable;
         }
 
     }
 
-    public StateListAdapter(StateMachine stateMachine) {
+    public StateListAdapter(StateMachine stateMachine, ProgramAnalyzer programAnalyzer) {
         sm = stateMachine;
+        analyzer = programAnalyzer;
     }
 
     @NonNull
@@ -43,14 +52,88 @@ public class StateListAdapter extends RecyclerView.Adapter<StateListAdapter.View
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
         int adapterPosition = holder.getAdapterPosition();
-        holder.bindFrame(sm.getThumbnail(adapterPosition, true),
-                sm.getCurrentState() == adapterPosition);
-        holder.itemView.setOnClickListener(v -> {
-            int oldIndex = sm.getCurrentState();
-            sm.gotoState(holder.getAdapterPosition());
-            if(oldIndex >= 0) notifyItemChanged(oldIndex);
-            if(!sm.isErrorState()) notifyItemChanged(sm.getCurrentState());
-        });
+        holder.bindFrame(sm.getThumbnailBits(adapterPosition, true),
+                sm.getCurrentState() == adapterPosition, analyzer.isReachable(adapterPosition));
+        holder.itemView.setOnClickListener(v -> sm.gotoState(holder.getAdapterPosition()));
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        this.recyclerView = recyclerView;
+        sm.addOnEventListener(eventListener);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        sm.removeOnEventListener(eventListener);
+        this.recyclerView = null;
+    }
+
+    // an edit can change the reachability of any frame, only the bound ones are checked and
+    // only once after a series of events
+    private void scheduleLint() {
+        if(lintPending || recyclerView == null) return;
+        lintPending = true;
+        recyclerView.post(this::updateLint);
+    }
+
+    private void updateLint() {
+        lintPending = false;
+        if(recyclerView == null) return;
+        int count = recyclerView.getChildCount();
+        for(int i=0; i<count; ++i) {
+            ViewHolder holder = (ViewHolder) recyclerView.getChildViewHolder(recyclerView.getChildAt(i));
+            int position = holder.getAdapterPosition();
+            if(position == RecyclerView.NO_POSITION) continue;
+            if(holder.reachable != analyzer.isReachable(position)) notifyItemChanged(position);
+        }
+    }
+
+    private void notifyStateChanged(int index) {
+        if(index >= 0 && index < getItemCount()) notifyItemChanged(index);
+    }
+
+    @SuppressLint("NotifyDataSetChanged")
+    private void onStateMachineEvent(int event, int a, int b) {
+        switch (event) {
+            case StateMachine.EV_RELOADED:
+                notifyDataSetChanged();
+                break;
+            case StateMachine.EV_STATE_INSERTED:
+                notifyItemInserted(a);
+                scheduleLint();
+                break;
+            case StateMachine.EV_STATE_REMOVED:
+                notifyItemRemoved(a);
+                // the frame that took the removed one's place is current now, and the playback
+                // event that follows sees no change of index
+                notifyStateChanged(sm.getCurrentState());
+                scheduleLint();
+                break;
+            case StateMachine.EV_STATE_MOVED:
+                notifyItemMoved(a, b);
+                scheduleLint();
+                break;
+            case StateMachine.EV_STATE_CHANGED:
+                notifyStateChanged(a);
+                scheduleLint();
+                break;
+            case StateMachine.EV_PATTERN_CHANGED:
+                notifyStateChanged(a);
+                break;
+            case StateMachine.EV_TRANSFER_CHANGED:
+            case StateMachine.EV_SPEED_CHANGED:
+                scheduleLint();
+                break;
+            case StateMachine.EV_PLAYBACK_CHANGED:
+                if(a != b) {
+                    notifyStateChanged(a);
+                    notifyStateChanged(b);
+                }
+                break;
+        }
     }
 
     @Override
@@ -1,132 +1,73 @@
 package app.smd;
 
-import java.math.BigInteger;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Locale;
-import java.util.Scanner;
 
 @SuppressWarnings("unused")
 public class StateMachine {
 
-    private static class State {
-        String pattern;
-        final int[] transfer;
-        int speed;
-
-        State() {
-            pattern = nullPattern;
-            transfer = new int[NUM_TX];
-            transfer[TX_LEFT] = OP_INHERIT;
-            transfer[TX_RIGHT] = OP_INHERIT;
-            transfer[TX_UP] = OP_INHERIT;
-            transfer[TX_DOWN] = OP_INHERIT;
-            transfer[TX_CLICK] = OP_INHERIT;
-            transfer[TX_AUTO] = OP_INHERIT;
-            speed = 1;
-        }
-
-        State(State s) {
-            pattern = s.pattern;
-            transfer = s.transfer.clone();
-            speed = s.speed;
-        }
-
-        private BigInteger readTx(BigInteger td, int tx) {
-            int op = td.byteValue() & 0x7f;
-            if(op >= 0x80 - NUM_OP) op -= 0x80;
-            transfer[tx] = op;
-            return td.shiftRight(7);
-        }
-
-        State(String transferData, String pattern) {
-            this.pattern = pattern;
-            transfer = new int[NUM_TX];
-            BigInteger td = new BigInteger(transferData, 16);
-            speed = td.byteValue() & 0x3;
-            td = td.shiftRight(2);
-            for(int tx=NUM_TX-1; tx>=0; --tx) {
-                td = readTx(td, tx);
-            }
-        }
-
-        String getTransferData() {
-            BigInteger td = BigInteger.ZERO;
-            for(int tx=0; tx<NUM_TX; ++tx) {
-                int op = transfer[tx];
-                if(op < 0) op += 0x80;
-                td = td.shiftLeft(7).or(BigInteger.valueOf(op & 0x7f));
-            }
-            td = td.shiftLeft(2).or(BigInteger.valueOf(speed & 0x3));
-            return String.format("%011x", td);
-        }
-    }
-
-    private static class ProgramData {
-        int numStates;
-        String header;
-        String transferData;
-        String patternData;
-        boolean valid;
-
-        ProgramData(int numStates, String header, String transferData, String patternData) {
-            this.numStates = numStates;
-            this.header = header;
-            this.transferData = transferData;
-            this.patternData = patternData;
-            valid = true;
-        }
-
-        ProgramData(String program) {
-            if(program.length() < 22) { invalidate(); return; }
-            if(!program.startsWith(magic)) {invalidate(); return; }
-            numStates = new BigInteger(program.substring(8, 10), 16).byteValue();
-            if(numStates < 1 || numStates > stateCap) { invalidate(); return; }
-            int tLen = (numStates * 11 + 1) & ~1;
-            int pLen = numStates * 16;
-            if(program.length() != 22 + tLen + pLen) { invalidate(); return; }
-            header = program.substring(10, 22);
-            transferData = program.substring(22, 22 + tLen);
-            patternData = program.substring(22 + tLen, 22 + tLen + pLen);
-            valid = true;
-        }
-
-        private void invalidate() {
-            numStates = 0;
-            header = transferData = patternData = "";
-            valid = false;
-        }
-
-        String toProgramString() {
-            String nsData = String.format("%02x", numStates);
-            int tLen = numStates * 11;
-            int pLen = numStates * 16;
-            if(header.length() != 12) return "error";
-            if(transferData.length() != tLen) return "error";
-            if(patternData.length() != pLen) return "error";
-            String tPad = (numStates % 2 != 0) ? "0" : "";
-            return magic + nsData + header + transferData + tPad + patternData;
-        }
-
-    }
-
-    private final ArrayList<State> states;
+    // owners of the state arrays below, which copies share until the first write
+    private static class Storage {
+        int owners = 1;
+    }
+
+    // states are stored column-wise, transfers has NUM_TX entries per state
+    private Storage storage;
+    private long[] patterns;
+    private int[] transfers;
+    private byte[] speeds;
+    private int numStates;
+    // states are addressed by a stable id, so moving one only updates these two maps
+    private int[] order;  // id of the state at each position
+    private int[] position;  // position of each id
+    // ids and tx of every slot holding a given non-negative op, built on the first structural edit
+    private int[][] refs;
+    private int[] refCount;
     private final int[] defaultTransfer;
     private int globalSpeed;
-    private State clipboard;
+    private boolean clipboardValid;
+    private long clipboardPattern;
+    private final int[] clipboardTransfer;
+    private int clipboardSpeed;
     private int currentState;
     private int playbackSpeed;
     private boolean playbackPaused;
     private String name;
     private OnChangeListener onChangeListener;
-
-    private static final int stateCap = 75;
+    private final ArrayList<OnEventListener> eventListeners;
+    private int[] transitionTable;  // compiled lazily, null when stale
+    private int[] autoPath;  // keys visited by auto transfers, ending in a cycle
+    private int[] autoPathIndex;  // position + 1 of each key in autoPath, 0 if absent
+    private int autoPathLength;
+    private int autoCycleStart;
+    private int batchDepth;
+    private int pendingChanges;
+    private int lastChanges;
+    private int loadErrorOffset;
+    private EditHistory history;
+    private boolean replaying;  // applying an undo or redo step, which is not recorded again
+    private final int[] historyTransfer = new int[NUM_TX];
+
+    private static final ProgramCodec codec = new ProgramCodec();
+    private static final int stateCap = 0x10000;
+    private static final int legacyStateCap = 75;  // the most the v1 format and the device take
     private static final int[] timerMultipliers = {1, 2, 4, 0};
     private static final int[] timerList = {2, 4, 8, 16, 32, 64, 128, 256, 512, 1024, 2048, 0};
 
     public static final String nullPattern = "0000000000000000";
     public static final String errorPattern = "81bda1bda1a13c81";
+    public static final long nullPatternBits = 0x0000000000000000L;
+    public static final long errorPatternBits = 0x81bda1bda1a13c81L;
 
     public static final String magic = "73743031";
+    public static final String magicV2 = "73743032";
+    // "smd" and the version of the binary format written by writeTo
+    private static final int binaryMagic = 0x736d6400;
+    private static final int binaryVersion = 1;
 
     public static final int TX_LEFT = 0;
     public static final int TX_RIGHT = 1;
@@ -146,125 +87,349 @@ public class StateMachine {
     public static final int OP_ERROR = -8;  // also reusing for error state
     public static final int NUM_OP = 8;
 
+    public static final int CHANGE_PLAYBACK = 1;  // current state, playback speed or pause
+    public static final int CHANGE_PATTERN = 2;
+    public static final int CHANGE_TRANSFERS = 4;
+    public static final int CHANGE_SPEED = 8;
+    public static final int CHANGE_STATES = 16;  // states added, removed or reordered, may move the current one
+    public static final int CHANGE_CLIPBOARD = 32;
+    public static final int CHANGE_NAME = 64;
+    public static final int CHANGE_ALL = 127;
+
+    // OnEventListener events, with their a and b arguments
+    public static final int EV_RELOADED = 0;  // the whole program was replaced
+    public static final int EV_STATE_INSERTED = 1;  // index
+    public static final int EV_STATE_REMOVED = 2;  // index, ops pointing past it are renumbered
+    public static final int EV_STATE_MOVED = 3;  // from, to
+    public static final int EV_STATE_CHANGED = 4;  // index, every field of the state
+    public static final int EV_PATTERN_CHANGED = 5;  // index
+    public static final int EV_TRANSFER_CHANGED = 6;  // index or -1 for the defaults, tx
+    public static final int EV_SPEED_CHANGED = 7;  // index or -1 for the global speed
+    public static final int EV_PLAYBACK_CHANGED = 8;  // old and new current state
+    public static final int EV_NAME_CHANGED = 9;
+    public static final int EV_CLIPBOARD_CHANGED = 10;
+
+    // EditHistory records, the header holds the type, an index and a small argument
+    private static final int REC_PATTERN = 1;  // index; old, new
+    private static final int REC_TRANSFER = 2;  // index or -1, tx; old and new
+    private static final int REC_SPEED = 3;  // index or -1; old and new
+    private static final int REC_MOVE = 4;  // from, to
+    private static final int REC_INSERT = 5;  // index; state data
+    private static final int REC_REMOVE = 6;  // index, number of referrers; state data, referrers
+    private static final int REC_RESET = 7;  // index; old state data, the last state is reset instead of removed
+    private static final int STATE_DATA_LENGTH = 2 + NUM_TX / 2;
+
     public StateMachine() {
-        states = new ArrayList<>();
+        storage = new Storage();
+        patterns = new long[8];
+        transfers = new int[8 * NUM_TX];
+        speeds = new byte[8];
+        order = new int[8];
+        position = new int[8];
+        numStates = 0;
         defaultTransfer = new int[NUM_TX];
+        clipboardTransfer = new int[NUM_TX];
         onChangeListener = null;
+        eventListeners = new ArrayList<>();
+        loadErrorOffset = -1;
         resetParams(false);
     }
 
+    // shares the state storage with sm until either of them writes to it
     public StateMachine(StateMachine sm, boolean keepState) {
-        states = new ArrayList<>();
-        for(State s : sm.states) {
-            states.add(new State(s));
+        onChangeListener = null;
+        eventListeners = new ArrayList<>();
+        loadErrorOffset = -1;
+        synchronized(sm.storage) {
+            ++sm.storage.owners;
         }
+        storage = sm.storage;
+        numStates = sm.numStates;
+        patterns = sm.patterns;
+        transfers = sm.transfers;
+        speeds = sm.speeds;
+        order = sm.order;
+        position = sm.position;
+        transitionTable = sm.transitionTable;
         defaultTransfer = sm.defaultTransfer.clone();
         globalSpeed = sm.globalSpeed;
+        clipboardTransfer = sm.clipboardTransfer.clone();
         if(keepState) {
-            clipboard = sm.clipboard;
+            clipboardValid = sm.clipboardValid;
+            clipboardPattern = sm.clipboardPattern;
+            clipboardSpeed = sm.clipboardSpeed;
             currentState = sm.currentState;
             playbackSpeed = sm.playbackSpeed;
             playbackPaused = sm.playbackPaused;
             name = sm.name;
         } else {
-            clipboard = null;
+            clipboardValid = false;
             name = "";
             resetPlayback();
         }
-        onChangeListener = null;
     }
 
-    private void loadProgramDataInternal(ProgramData pd) {
-        if(!pd.valid) { resetParams(true); return; }
-        int n = pd.numStates;
-        if(n < 1 || n > stateCap) { resetParams(true); return; }
-        if(pd.header.length() != 12) { resetParams(true); return; }
-        if(pd.transferData.length() < 11 * n) { resetParams(true); return; }
-        if(pd.patternData.length() < 16 * n) { resetParams(true); return; }
-        BigInteger hd = new BigInteger(pd.header, 16);
-        globalSpeed = hd.byteValue() & 0x3f;
-        if(globalSpeed >= timerList.length) { resetParams(true); return; }
-        playbackSpeed = globalSpeed;
-        hd = hd.shiftRight(6);
-        for(int tx=NUM_TX-1; tx>=0; --tx) {
-            int op = hd.byteValue() & 0x7f;
-            if(op >= 0x80 - NUM_OP) op -= 0x80;
-            defaultTransfer[tx] = op;
-            hd = hd.shiftRight(7);
-        }
-        states.clear();
-        for(int i=0; i<n; ++i) {
-            State s = new State(pd.transferData.substring(11 * i, 11 * (i+1)),
-                    pd.patternData.substring(16 * i, 16 * (i+1)));
-            states.add(s);
-        }
+    // point in time copy, cheap until one of the two machines is edited
+    public StateMachine snapshot() {
+        return new StateMachine(this, true);
     }
 
-    public StateMachine(ProgramData pd) {
-        this();
-        loadProgramDataInternal(pd);
+    // fresh state arrays for a load, the old states are not kept
+    private void allocateStates(int capacity) {
+        boolean shared;
+        synchronized(storage) {
+            shared = storage.owners > 1;
+            if(shared) --storage.owners;
+        }
+        if(shared) storage = new Storage();
+        if(shared || patterns.length < capacity) {
+            patterns = new long[capacity];
+            transfers = new int[capacity * NUM_TX];
+            speeds = new byte[capacity];
+            order = new int[capacity];
+            position = new int[capacity];
+        }
+        invalidateTransitions();
+        refs = null;
+        numStates = 0;
     }
 
-    private void loadProgramInternal(String program) {
-        loadProgramDataInternal(new ProgramData(program));
+    // offset of the first character of s[start..end) that differs from prefix, -1 if none
+    private static int mismatch(CharSequence s, int start, int end, String prefix) {
+        for(int i=0; i<prefix.length(); ++i) {
+            if(start + i >= end || s.charAt(start + i) != prefix.charAt(i)) return start + i;
+        }
+        return -1;
     }
 
-    private void loadRepresentationInternal(String repr) {
-        Scanner s = new Scanner(repr);
-        s.useDelimiter(",");
-        loadProgramInternal(s.next());
-        String clipboardTransferData = s.next();
-        String clipboardPattern = s.next();
-        if(!clipboardTransferData.isEmpty()) {
-            clipboard = new State(clipboardTransferData, clipboardPattern);
+    private static int indexOf(CharSequence s, char c, int start, int end) {
+        for(int i=start; i<end; ++i) {
+            if(s.charAt(i) == c) return i;
         }
-        currentState = s.nextInt();
-        playbackSpeed = s.nextInt();
-        playbackPaused = s.nextInt() != 0;
-        s.skip(",");
-        s.useDelimiter("\\A");  // read the rest of repr
-        name = s.next();
+        return end;
+    }
+
+    // the loaders below decode s[start..end) straight into the state arrays in a single pass and
+    // return the offset of the first bad character, or -1; the caller resets the machine on errors
+
+    private int loadProgramRange(CharSequence s, int start, int end) {
+        if(mismatch(s, start, end, magicV2) < 0) return loadProgramV2(s, start, end);
+        return loadProgramV1(s, start, end);
+    }
+
+    private int loadProgramV1(CharSequence s, int start, int end) {
+        int error = mismatch(s, start, end, magic);
+        if(error >= 0) return error;
+        if(end - start < ProgramCodec.DATA_OFFSET) return end;
+        int countStart = start + magic.length();
+        int n = (int) ProgramCodec.readHex(s, countStart, 2);
+        if(n < 0) return ProgramCodec.findNonHex(s, countStart, countStart + 2);
+        if(n < 1 || n > legacyStateCap) return countStart;
+        int length = ProgramCodec.programLength(n);
+        if(end - start != length) return start + Math.min(end - start, length);
+        int headerStart = start + ProgramCodec.PREFIX_DIGITS;
+        long hd = ProgramCodec.readHex(s, headerStart, ProgramCodec.HEADER_DIGITS);
+        if(hd < 0) return ProgramCodec.findNonHex(s, headerStart, headerStart + ProgramCodec.HEADER_DIGITS);
+        int speed = ProgramCodec.unpackHeader(hd, defaultTransfer);
+        if(speed >= timerList.length) return headerStart;
+        allocateStates(n);
+        int patternStart = start + ProgramCodec.patternOffset(n, 0);
+        for(int i=0; i<n; ++i) {
+            int at = start + ProgramCodec.transferOffset(i);
+            long word = ProgramCodec.readHex(s, at, ProgramCodec.TRANSFER_DIGITS);
+            if(word < 0) return ProgramCodec.findNonHex(s, at, at + ProgramCodec.TRANSFER_DIGITS);
+            speeds[i] = (byte) ProgramCodec.unpackTransfers(word, transfers, i * NUM_TX);
+            at = patternStart + i * ProgramCodec.PATTERN_DIGITS;
+            error = ProgramCodec.findNonHex(s, at, at + ProgramCodec.PATTERN_DIGITS);
+            if(error >= 0) return error;
+            patterns[i] = ProgramCodec.readPattern(s, at, ProgramCodec.PATTERN_DIGITS);
+            order[i] = position[i] = i;
+        }
+        globalSpeed = playbackSpeed = speed;
+        numStates = n;
+        return -1;
+    }
+
+    private int loadProgramV2(CharSequence s, int start, int end) {
+        ProgramCodec.Reader r = new ProgramCodec.Reader();
+        int countStart = start + magicV2.length();
+        r.reset(s, countStart, end);
+        int n = r.readVarint();
+        if(r.isFailed()) return r.getErrorOffset();
+        if(n < 1 || n > stateCap) return countStart;
+        int transferStart = r.getPosition();
+        int patternStart = end - n * ProgramCodec.PATTERN_DIGITS;
+        if(patternStart < transferStart) return end;
+        r.reset(s, transferStart, patternStart);
+        int speed = r.readTransfers(defaultTransfer, 0);
+        if(r.isFailed()) return r.getErrorOffset();
+        if(speed >= timerList.length) return transferStart;
+        allocateStates(n);
+        for(int i=0; i<n; ++i) {
+            int at = r.getPosition();
+            int stateSpeed = r.readTransfers(transfers, i * NUM_TX);
+            if(r.isFailed()) return r.getErrorOffset();
+            if(stateSpeed >= timerMultipliers.length) return at;
+            for(int tx=0; tx<NUM_TX; ++tx) {
+                if(transfers[i * NUM_TX + tx] >= stateCap) return at;
+            }
+            speeds[i] = (byte) stateSpeed;
+            order[i] = position[i] = i;
+        }
+        if(r.getPosition() != patternStart) return r.getPosition();
+        for(int i=0; i<n; ++i) {
+            int at = patternStart + i * ProgramCodec.PATTERN_DIGITS;
+            int error = ProgramCodec.findNonHex(s, at, at + ProgramCodec.PATTERN_DIGITS);
+            if(error >= 0) return error;
+            patterns[i] = ProgramCodec.readPattern(s, at, ProgramCodec.PATTERN_DIGITS);
+        }
+        globalSpeed = playbackSpeed = speed;
+        numStates = n;
+        return -1;
+    }
+
+    // program,clipboard transfers,clipboard pattern,current state,playback speed,paused,name
+    private int loadRepresentationRange(CharSequence s, int start, int end) {
+        int programEnd = indexOf(s, ',', start, end);
+        int error = loadProgramRange(s, start, programEnd);
+        if(error >= 0) return error;
+        if(programEnd == end) return end;
+        int clipboardEnd = indexOf(s, ',', programEnd + 1, end);
+        if(clipboardEnd == end) return end;
+        int patternEnd = indexOf(s, ',', clipboardEnd + 1, end);
+        if(patternEnd == end) return end;
+        // a bad clipboard is dropped rather than failing the whole project
+        loadClipboardRange(s, programEnd + 1, clipboardEnd, patternEnd);
+        ProgramCodec.Reader r = new ProgramCodec.Reader();
+        r.reset(s, patternEnd + 1, end);
+        int state = r.readDecimal();
+        r.expect(',');
+        int speed = r.readDecimal();
+        r.expect(',');
+        int paused = r.readDecimal();
+        r.expect(',');
+        if(r.isFailed()) return r.getErrorOffset();
+        currentState = state;
+        playbackSpeed = speed;
+        playbackPaused = paused != 0;
+        name = s.subSequence(r.getPosition(), end).toString();
+        return -1;
+    }
+
+    private void loadClipboardRange(CharSequence s, int start, int end, int patternEnd) {
+        int patternStart = end + 1;
+        if(patternEnd - patternStart != ProgramCodec.PATTERN_DIGITS) return;
+        if(ProgramCodec.findNonHex(s, patternStart, patternEnd) >= 0) return;
+        if(end - start == ProgramCodec.TRANSFER_DIGITS) {
+            long word = ProgramCodec.readHex(s, start, ProgramCodec.TRANSFER_DIGITS);
+            if(word < 0) return;
+            clipboardSpeed = ProgramCodec.unpackTransfers(word, clipboardTransfer, 0);
+        } else if(end > start) {
+            // v2 transfers are an even number of digits, so never mistaken for the 11 digit form
+            ProgramCodec.Reader r = new ProgramCodec.Reader();
+            r.reset(s, start, end);
+            int speed = r.readTransfers(clipboardTransfer, 0);
+            if(r.isFailed() || r.getPosition() != end || speed >= timerMultipliers.length) return;
+            clipboardSpeed = speed;
+        } else {
+            return;
+        }
+        clipboardPattern = ProgramCodec.readPattern(s, patternStart, ProgramCodec.PATTERN_DIGITS);
+        clipboardValid = true;
     }
 
-    public StateMachine(String programOrRepr) {
+    private void loadProgramInternal(CharSequence program) {
+        loadErrorOffset = loadProgramRange(program, 0, program.length());
+        if(loadErrorOffset >= 0) resetParams(true);
+    }
+
+    private void loadRepresentationInternal(CharSequence repr) {
+        loadErrorOffset = loadRepresentationRange(repr, 0, repr.length());
+        if(loadErrorOffset < 0) return;
+        resetParams(true);
+        // the name outlives a damaged program, as it did with the old parser; the clipboard does
+        // not, its transfers point at states of the program that failed
+        int end = repr.length();
+        int at = -1;
+        for(int field=0; field<6 && at < end; ++field) at = indexOf(repr, ',', at + 1, end);
+        if(at < end) name = repr.subSequence(at + 1, end).toString();
+    }
+
+    public StateMachine(CharSequence programOrRepr) {
         this();
-        if(programOrRepr.contains(",")) {
+        if(indexOf(programOrRepr, ',', 0, programOrRepr.length()) < programOrRepr.length()) {
             loadRepresentationInternal(programOrRepr);
         } else {
             loadProgramInternal(programOrRepr);
         }
     }
 
-    private ProgramData getProgramData() {
-        BigInteger td = BigInteger.ZERO;
+    // offset of the character the last program or representation failed to load at, -1 if it
+    // loaded fine
+    public int getLoadErrorOffset() {
+        return loadErrorOffset;
+    }
+
+    // whether the program can be saved in the v1 format, which is also what the device accepts
+    public boolean fitsLegacyFormat() {
+        if(numStates > legacyStateCap) return false;
         for(int tx=0; tx<NUM_TX; ++tx) {
-            int op = defaultTransfer[tx];
-            if(op < 0) op += 0x80;
-            td = td.shiftLeft(7).or(BigInteger.valueOf(op & 0x7f));
-        }
-        td = td.shiftLeft(6).or(BigInteger.valueOf(globalSpeed & 0x3f));
-        String header = String.format("%012x", td);
-        StringBuilder transferData = new StringBuilder();
-        StringBuilder patternData = new StringBuilder();
-        int n = states.size();
-        for(int i=0; i<n; ++i) {
-            State s = states.get(i);
-            transferData.append(s.getTransferData());
-            patternData.append(s.pattern);
+            if(!ProgramCodec.isLegacyOp(defaultTransfer[tx])) return false;
+        }
+        for(int i=0; i<numStates*NUM_TX; ++i) {
+            if(!ProgramCodec.isLegacyOp(transfers[i])) return false;
         }
-        return new ProgramData(n, header, transferData.toString(), patternData.toString());
+        return true;
     }
 
     public String getProgram() {
-        return getProgramData().toProgramString();
+        int n = numStates;
+        if(!fitsLegacyFormat()) return getProgramV2();
+        synchronized(codec) {
+            codec.beginProgram(n);
+            codec.putHeader(ProgramCodec.packHeader(defaultTransfer, globalSpeed));
+            for(int i=0; i<n; ++i) {
+                int id = order[i];
+                codec.putTransfers(i, ProgramCodec.packTransfers(transfers, id * NUM_TX, speeds[id]));
+                codec.putPattern(i, patterns[id]);
+            }
+            return codec.finishProgram();
+        }
+    }
+
+    private String getProgramV2() {
+        int n = numStates;
+        synchronized(codec) {
+            codec.beginProgramV2(n);
+            codec.appendHeader(defaultTransfer, globalSpeed);
+            for(int i=0; i<n; ++i) {
+                int id = order[i];
+                codec.appendTransfers(transfers, id * NUM_TX, speeds[id]);
+            }
+            for(int i=0; i<n; ++i) {
+                codec.appendPattern(patterns[order[i]]);
+            }
+            return codec.finishProgram();
+        }
+    }
+
+    private static boolean fitsLegacyFormat(int[] transfer) {
+        for(int tx=0; tx<NUM_TX; ++tx) {
+            if(!ProgramCodec.isLegacyOp(transfer[tx])) return false;
+        }
+        return true;
     }
 
     public String getRepresentation() {
         String clipboardTransferData = "";
         String clipboardPattern = "";
-        if(clipboard != null) {
-            clipboardTransferData = clipboard.getTransferData();
-            clipboardPattern = clipboard.pattern;
+        if(clipboardValid && fitsLegacyFormat(clipboardTransfer)) {
+            clipboardTransferData = ProgramCodec.transfersToString(
+                    ProgramCodec.packTransfers(clipboardTransfer, 0, clipboardSpeed));
+            clipboardPattern = ProgramCodec.patternToString(this.clipboardPattern);
+        } else if(clipboardValid) {
+            clipboardTransferData = ProgramCodec.transfersToString(clipboardTransfer, 0, clipboardSpeed);
+            clipboardPattern = ProgramCodec.patternToString(this.clipboardPattern);
         }
         return String.format(Locale.US,"%s,%s,%s,%d,%d,%d,%s",
                 getProgram(),
@@ -276,29 +441,212 @@ public class StateMachine {
                 name);
     }
 
+    private static void writeOps(DataOutput out, int[] ops, int offset) throws IOException {
+        for(int tx=0; tx<NUM_TX; ++tx) {
+            ProgramCodec.writeVarint(out, ops[offset + tx] + NUM_OP);
+        }
+    }
+
+    private static boolean readOps(DataInput in, int[] ops, int offset) throws IOException {
+        for(int tx=0; tx<NUM_TX; ++tx) {
+            int op = ProgramCodec.readVarint(in) - NUM_OP;
+            if(op < OP_ERROR || op >= stateCap) return false;
+            ops[offset + tx] = op;
+        }
+        return true;
+    }
+
+    // the whole machine including the clipboard and playback, about half the size of the text
+    // representation; the text forms are meant for users, this one for storage
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(binaryMagic | binaryVersion);
+        ProgramCodec.writeVarint(out, numStates);
+        out.writeByte(globalSpeed);
+        writeOps(out, defaultTransfer, 0);
+        for(int i=0; i<numStates; ++i) {
+            int id = order[i];
+            out.writeLong(patterns[id]);
+            out.writeByte(speeds[id]);
+            writeOps(out, transfers, id * NUM_TX);
+        }
+        out.writeBoolean(clipboardValid);
+        if(clipboardValid) {
+            out.writeLong(clipboardPattern);
+            out.writeByte(clipboardSpeed);
+            writeOps(out, clipboardTransfer, 0);
+        }
+        out.writeInt(currentState);
+        out.writeByte(playbackSpeed);
+        out.writeBoolean(playbackPaused);
+        out.writeUTF(name);
+    }
+
+    // replaces the machine with one written by writeTo; data that does not decode leaves it in the
+    // error state with a load error offset of 0, and so does an exception from in
+    public void readFrom(DataInput in) throws IOException {
+        resetParams(false);
+        boolean loaded = false;
+        try {
+            loaded = readBinary(in);
+        } finally {
+            loadErrorOffset = loaded ? -1 : 0;
+            if(!loaded) resetParams(true);
+            if(history != null) history.clear();
+            fireEvent(EV_RELOADED, 0, 0);
+            fireOnChange(CHANGE_ALL);
+        }
+    }
+
+    private boolean readBinary(DataInput in) throws IOException {
+        if(in.readInt() != (binaryMagic | binaryVersion)) return false;
+        int n = ProgramCodec.readVarint(in);
+        if(n < 1 || n > stateCap) return false;
+        int speed = in.readUnsignedByte();
+        if(speed >= timerList.length || !readOps(in, defaultTransfer, 0)) return false;
+        allocateStates(n);
+        for(int i=0; i<n; ++i) {
+            patterns[i] = in.readLong();
+            int stateSpeed = in.readUnsignedByte();
+            if(stateSpeed >= timerMultipliers.length) return false;
+            speeds[i] = (byte) stateSpeed;
+            if(!readOps(in, transfers, i * NUM_TX)) return false;
+            order[i] = position[i] = i;
+        }
+        globalSpeed = speed;
+        numStates = n;
+        if(in.readBoolean()) {
+            long pattern = in.readLong();
+            int clipSpeed = in.readUnsignedByte();
+            if(clipSpeed >= timerMultipliers.length || !readOps(in, clipboardTransfer, 0)) return false;
+            clipboardPattern = pattern;
+            clipboardSpeed = clipSpeed;
+            clipboardValid = true;
+        }
+        currentState = in.readInt();
+        playbackSpeed = in.readUnsignedByte();
+        playbackPaused = in.readBoolean();
+        name = in.readUTF();
+        return true;
+    }
+
     public void setOnChangeListener(OnChangeListener listener) {
         onChangeListener = listener;
     }
 
-    private void fireOnChange() {
+    private void fireOnChange(int changes) {
+        if(batchDepth > 0) {
+            pendingChanges |= changes;
+            return;
+        }
+        lastChanges = changes;
         if(onChangeListener != null) onChangeListener.onChange();
     }
 
-    public void loadProgram(String program) {
+    public void addOnEventListener(OnEventListener listener) {
+        if(!eventListeners.contains(listener)) eventListeners.add(listener);
+    }
+
+    public void removeOnEventListener(OnEventListener listener) {
+        eventListeners.remove(listener);
+    }
+
+    // events are delivered as they happen, batches only coalesce onChange
+    private void fireEvent(int event, int a, int b) {
+        for(int i=0; i<eventListeners.size(); ++i) {
+            eventListeners.get(i).onEvent(event, a, b);
+        }
+    }
+
+    private void firePlaybackChanged(int oldState) {
+        fireEvent(EV_PLAYBACK_CHANGED, oldState, currentState);
+        fireOnChange(CHANGE_PLAYBACK);
+    }
+
+    // the current state moves with every structural edit
+    private void fireStatesChanged(int oldState) {
+        fireEvent(EV_PLAYBACK_CHANGED, oldState, currentState);
+        fireOnChange(CHANGE_STATES);
+    }
+
+    // notifications are held back until the outermost endBatch, which fires once
+    public void beginBatch() {
+        ++batchDepth;
+    }
+
+    public void endBatch() {
+        if(batchDepth == 0) return;
+        if(--batchDepth > 0) return;
+        // a batch is also a single undo step
+        if(history != null && history.isStepOpen()) history.endStep(currentState);
+        if(pendingChanges == 0) return;
+        int changes = pendingChanges;
+        pendingChanges = 0;
+        fireOnChange(changes);
+    }
+
+    // CHANGE_* flags of the current notification, or of the last one outside of it
+    public int getLastChanges() {
+        return lastChanges;
+    }
+
+    public void loadProgram(CharSequence program) {
         resetParams(false);
         loadProgramInternal(program);
-        fireOnChange();
+        if(history != null) history.clear();
+        fireEvent(EV_RELOADED, 0, 0);
+        fireOnChange(CHANGE_ALL);
     }
 
-    public void loadRepresentation(String repr) {
+    public void loadRepresentation(CharSequence repr) {
         resetParams(false);
         loadRepresentationInternal(repr);
-        fireOnChange();
+        if(history != null) history.clear();
+        fireEvent(EV_RELOADED, 0, 0);
+        fireOnChange(CHANGE_ALL);
+    }
+
+    private void invalidateTransitions() {
+        transitionTable = null;
+        autoPath = null;
+        autoPathIndex = null;
+    }
+
+    private void ensureOwned() {
+        synchronized(storage) {
+            if(storage.owners == 1) return;
+            --storage.owners;
+        }
+        storage = new Storage();
+        patterns = patterns.clone();
+        transfers = transfers.clone();
+        speeds = speeds.clone();
+        order = order.clone();
+        position = position.clone();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(patterns.length >= capacity) return;
+        int newCapacity = Math.max(capacity, patterns.length * 2);
+        patterns = Arrays.copyOf(patterns, newCapacity);
+        transfers = Arrays.copyOf(transfers, newCapacity * NUM_TX);
+        speeds = Arrays.copyOf(speeds, newCapacity);
+        order = Arrays.copyOf(order, newCapacity);
+        position = Arrays.copyOf(position, newCapacity);
+    }
+
+    private void initState(int id) {
+        patterns[id] = nullPatternBits;
+        Arrays.fill(transfers, id * NUM_TX, (id + 1) * NUM_TX, OP_INHERIT);
+        speeds[id] = 1;
     }
 
     private void resetParams(boolean error) {
-        states.clear();
-        states.add(new State());
+        ensureOwned();
+        invalidateTransitions();
+        refs = null;
+        numStates = 1;
+        order[0] = position[0] = 0;
+        initState(0);
         defaultTransfer[TX_LEFT] = OP_PREV;
         defaultTransfer[TX_RIGHT] = OP_NEXT;
         defaultTransfer[TX_UP] = OP_FASTER;
@@ -306,23 +654,24 @@ public class StateMachine {
         defaultTransfer[TX_CLICK] = OP_PAUSE;
         defaultTransfer[TX_AUTO] = OP_NEXT;
         globalSpeed = 5;
-        clipboard = null;
+        clipboardValid = false;
         name = "";
         resetPlayback();
         if(error) currentState = OP_ERROR;
     }
 
     public boolean isErrorState() {
-        return currentState < 0 || currentState >= states.size();
+        return currentState < 0 || currentState >= numStates;
     }
 
     public void gotoState(int state) {
-        if(state < 0 || state >= states.size()) {
+        int oldState = currentState;
+        if(state < 0 || state >= numStates) {
             currentState = OP_ERROR;
         } else {
             currentState = state;
         }
-        fireOnChange();
+        firePlaybackChanged(oldState);
     }
 
     public int getCurrentState() {
@@ -330,7 +679,7 @@ public class StateMachine {
     }
 
     public int getStateCount() {
-        return states.size();
+        return numStates;
     }
 
     public String getName() {
@@ -339,26 +688,46 @@ public class StateMachine {
 
     public void setName(String newName) {
         name = newName;
-        fireOnChange();
+        fireEvent(EV_NAME_CHANGED, 0, 0);
+        fireOnChange(CHANGE_NAME);
     }
 
     public String getPattern() {
-        if(isErrorState()) return errorPattern;
-        return states.get(currentState).pattern;
+        return ProgramCodec.patternToString(getPatternBits());
+    }
+
+    public long getPatternBits() {
+        if(isErrorState()) return errorPatternBits;
+        return patterns[order[currentState]];
+    }
+
+    public long getPatternBits(int index) {
+        if(index < 0 || index >= numStates) return nullPatternBits;
+        return patterns[order[index]];
     }
 
     public String getThumbnail(int index, boolean showErrors) {
-        if(index < 0 || index >= states.size()) {
-            return showErrors ? errorPattern : nullPattern;
+        return ProgramCodec.patternToString(getThumbnailBits(index, showErrors));
+    }
+
+    public long getThumbnailBits(int index, boolean showErrors) {
+        if(index < 0 || index >= numStates) {
+            return showErrors ? errorPatternBits : nullPatternBits;
         } else {
-            return states.get(index).pattern;
+            return patterns[order[index]];
         }
     }
 
     public int getRawTransfer(int tx) {
         if(isErrorState()) return OP_ERROR;
         if(tx < 0 || tx >= NUM_TX) return OP_ERROR;
-        return states.get(currentState).transfer[tx];
+        return transfers[order[currentState] * NUM_TX + tx];
+    }
+
+    public int getRawTransfer(int index, int tx) {
+        if(index < 0 || index >= numStates) return OP_ERROR;
+        if(tx < 0 || tx >= NUM_TX) return OP_ERROR;
+        return transfers[order[index] * NUM_TX + tx];
     }
 
     public int getDefaultTransfer(int tx) {
@@ -374,7 +743,12 @@ public class StateMachine {
 
     public int getSpeed() {
         if(isErrorState()) return 3;
-        return states.get(currentState).speed;
+        return speeds[order[currentState]];
+    }
+
+    public int getSpeed(int index) {
+        if(index < 0 || index >= numStates) return 3;
+        return speeds[order[index]];
     }
 
     public int getGlobalSpeed() {
@@ -392,7 +766,7 @@ public class StateMachine {
     public int getDelay() {
         if(isErrorState()) return 0;
         if(playbackSpeed < 0 || playbackSpeed >= timerList.length) return 0;
-        int speed = states.get(currentState).speed;
+        int speed = speeds[order[currentState]];
         if(speed < 0 || speed >= timerMultipliers.length) return 0;
         return timerList[playbackSpeed] * timerMultipliers[speed];
     }
@@ -401,11 +775,16 @@ public class StateMachine {
         return playbackPaused;
     }
 
+    public int getPlaybackSpeed() {
+        return playbackSpeed;
+    }
+
     public void resetPlayback() {
+        int oldState = currentState;
         currentState = 0;
         playbackSpeed = globalSpeed;
         playbackPaused = false;
-        fireOnChange();
+        firePlaybackChanged(oldState);
     }
 
     public static class OpResult {
@@ -415,7 +794,7 @@ public class StateMachine {
 
     public OpResult queryOp(int op) {
         OpResult res = new OpResult();
-        if(op >= 0 && op < states.size()) {
+        if(op >= 0 && op < numStates) {
             res.newState = op;
             res.opRemains = false;
             return res;
@@ -447,34 +826,224 @@ public class StateMachine {
     }
 
     public void processOp(int op) {
+        beginBatch();
+        processOpInternal(op);
+        endBatch();
+    }
+
+    private void processOpInternal(int op) {
+        int oldState = currentState;
         OpResult res = queryOp(op);
         if(res.newState != currentState) {
             currentState = res.newState;
-            fireOnChange();
+            firePlaybackChanged(oldState);
         }
         if(res.opRemains) {
             switch (op) {
                 case OP_PAUSE:
                     playbackPaused = !playbackPaused;
-                    fireOnChange();
+                    firePlaybackChanged(oldState);
                     break;
                 case OP_FASTER:
                     if (playbackSpeed > 0) {
                         --playbackSpeed;
-                        fireOnChange();
+                        firePlaybackChanged(oldState);
                     }
                     break;
                 case OP_SLOWER:
                     if (playbackSpeed < timerList.length - 1) {
                         ++playbackSpeed;
-                        fireOnChange();
+                        firePlaybackChanged(oldState);
                     }
                     break;
                 default:
                     currentState = OP_ERROR;
-                    fireOnChange();
+                    firePlaybackChanged(oldState);
+            }
+        }
+    }
+
+    private int resolveOp(int index, int op) {
+        return resolveOp(index, op, numStates);
+    }
+
+    // what op does in state index of a program of numStates states, see getTransitionTable
+    public static int resolveOp(int index, int op, int numStates) {
+        if(op >= 0 && op < numStates) return op;
+        switch (op) {
+            case OP_NEXT:
+                return index == numStates - 1 ? 0 : index + 1;
+            case OP_PREV:
+                return index == 0 ? numStates - 1 : index - 1;
+            case OP_PAUSE:
+            case OP_FASTER:
+            case OP_SLOWER:
+                return op;
+            case OP_NONE:
+                return index;
+            default:
+                return OP_ERROR;
+        }
+    }
+
+    // entry per state and transfer: the target state, OP_ERROR, or a playback op that keeps the state
+    private int[] getTransitionTable() {
+        int[] table = transitionTable;
+        if(table != null) return table;
+        table = new int[numStates * NUM_TX];
+        for(int i=0; i<numStates; ++i) {
+            for(int tx=0; tx<NUM_TX; ++tx) {
+                int op = transfers[order[i] * NUM_TX + tx];
+                if(op == OP_INHERIT) op = defaultTransfer[tx];
+                table[i * NUM_TX + tx] = resolveOp(i, op);
             }
         }
+        transitionTable = table;
+        return table;
+    }
+
+    public int getResolvedTransfer(int index, int tx) {
+        if(index < 0 || index >= numStates) return OP_ERROR;
+        if(tx < 0 || tx >= NUM_TX) return OP_ERROR;
+        return getTransitionTable()[index * NUM_TX + tx];
+    }
+
+    // same as processOp(getTransfer(tx)), but without allocating or resolving the op again
+    public void step(int tx) {
+        int oldState = currentState;
+        int target = OP_ERROR;
+        if(!isErrorState() && tx >= 0 && tx < NUM_TX) {
+            target = getTransitionTable()[currentState * NUM_TX + tx];
+        }
+        switch (target) {
+            case OP_PAUSE:
+                playbackPaused = !playbackPaused;
+                firePlaybackChanged(oldState);
+                break;
+            case OP_FASTER:
+                if (playbackSpeed > 0) {
+                    --playbackSpeed;
+                    firePlaybackChanged(oldState);
+                }
+                break;
+            case OP_SLOWER:
+                if (playbackSpeed < timerList.length - 1) {
+                    ++playbackSpeed;
+                    firePlaybackChanged(oldState);
+                }
+                break;
+            default:
+                if(target != currentState) {
+                    currentState = target;
+                    firePlaybackChanged(oldState);
+                }
+        }
+    }
+
+    // playback key: current state (error as -1), playback speed and paused flag
+    private static int autoKey(int state, int speed, boolean paused) {
+        return ((state + 1) * timerList.length + speed) * 2 + (paused ? 1 : 0);
+    }
+
+    int getPlaybackKeyCount() {
+        return autoKey(numStates - 1, timerList.length - 1, true) + 1;
+    }
+
+    // the key playback starts from after resetPlayback()
+    int getInitialPlaybackKey() {
+        return autoKey(0, globalSpeed, false);
+    }
+
+    static boolean isPlaybackKeyPaused(int key) {
+        return (key & 1) != 0;
+    }
+
+    // what getPatternBits() and getDelay() would return with playback at key
+    long getPlaybackKeyPattern(int key) {
+        int state = (key >> 1) / timerList.length - 1;
+        if(state < 0) return errorPatternBits;
+        return patterns[order[state]];
+    }
+
+    int getPlaybackKeyDelay(int key) {
+        int state = (key >> 1) / timerList.length - 1;
+        if(state < 0) return 0;
+        return timerList[(key >> 1) % timerList.length] * timerMultipliers[speeds[order[state]]];
+    }
+
+    // the key step(tx) moves playback at key to
+    int nextPlaybackKey(int key, int tx) {
+        return nextKey(getTransitionTable(), key, tx);
+    }
+
+    private static int nextKey(int[] table, int key, int tx) {
+        boolean paused = (key & 1) != 0;
+        int speed = (key >> 1) % timerList.length;
+        int state = (key >> 1) / timerList.length - 1;
+        if(state < 0) return key;
+        int target = table[state * NUM_TX + tx];
+        switch (target) {
+            case OP_PAUSE:
+                paused = !paused;
+                break;
+            case OP_FASTER:
+                if(speed > 0) --speed;
+                break;
+            case OP_SLOWER:
+                if(speed < timerList.length - 1) ++speed;
+                break;
+            default:
+                state = target < 0 ? -1 : target;
+        }
+        return autoKey(state, speed, paused);
+    }
+
+    // walks the auto transfers from key until a key repeats, which closes the cycle
+    private void buildAutoPath(int key) {
+        int[] table = getTransitionTable();
+        int numKeys = getPlaybackKeyCount();
+        if(autoPathIndex == null) autoPathIndex = new int[numKeys];
+        else Arrays.fill(autoPathIndex, 0);
+        if(autoPath == null) autoPath = new int[Math.min(numKeys, 64)];
+        int length = 0;
+        while(autoPathIndex[key] == 0) {
+            if(length == autoPath.length) autoPath = Arrays.copyOf(autoPath, Math.min(numKeys, length * 2));
+            autoPath[length++] = key;
+            autoPathIndex[key] = length;
+            key = nextKey(table, key, TX_AUTO);
+        }
+        autoPathLength = length;
+        autoCycleStart = autoPathIndex[key] - 1;
+    }
+
+    // same as calling step(TX_AUTO) the given number of times, but in constant time once the
+    // cycle of the current playback state is known; fires a single change at most
+    public void advance(long ticks) {
+        int oldState = currentState;
+        if(ticks <= 0) return;
+        if(isErrorState() && currentState != OP_ERROR) {
+            step(TX_AUTO);
+            --ticks;
+        }
+        if(playbackSpeed < 0 || playbackSpeed >= timerList.length) {
+            for(long t=0; t<ticks; ++t) step(TX_AUTO);
+            return;
+        }
+        int state = isErrorState() ? -1 : currentState;
+        int key = autoKey(state, playbackSpeed, playbackPaused);
+        if(autoPathIndex == null || autoPathIndex[key] == 0) buildAutoPath(key);
+        long pos = autoPathIndex[key] - 1 + ticks;
+        if(pos >= autoPathLength) {
+            long cycle = autoPathLength - autoCycleStart;
+            pos = autoCycleStart + (pos - autoCycleStart) % cycle;
+        }
+        int newKey = autoPath[(int) pos];
+        if(newKey == key) return;
+        playbackPaused = (newKey & 1) != 0;
+        playbackSpeed = (newKey >> 1) % timerList.length;
+        state = (newKey >> 1) / timerList.length - 1;
+        currentState = state < 0 ? OP_ERROR : state;
+        firePlaybackChanged(oldState);
     }
 
     public boolean isFirstState() {
@@ -482,7 +1051,7 @@ public class StateMachine {
     }
 
     public boolean isLastState() {
-        return currentState == states.size() - 1;
+        return currentState == numStates - 1;
     }
 
     public int getNextState(boolean rollOver) {
@@ -496,10 +1065,11 @@ public class StateMachine {
     }
 
     public void gotoNextState(boolean rollOver) {
+        int oldState = currentState;
         int ns = getNextState(rollOver);
         if(ns != currentState) {
             currentState = ns;
-            fireOnChange();
+            firePlaybackChanged(oldState);
         }
     }
 
@@ -507,165 +1077,603 @@ public class StateMachine {
         if(isErrorState()) return currentState;
         if(isFirstState()) {
             if(!rollOver) return currentState;
-            return states.size() -1;
+            return numStates -1;
         } else {
             return currentState - 1;
         }
     }
 
     public void gotoPrevState(boolean rollOver){
+        int oldState = currentState;
         int ps = getPrevState(rollOver);
         if(ps != currentState) {
             currentState = ps;
-            fireOnChange();
+            firePlaybackChanged(oldState);
         }
     }
 
-    private void shiftStateTransfers(State s, int threshold, int shift) {
-        for(int t=0; t<NUM_TX; ++t){
-            int op = s.transfer[t];
-            if(op >= threshold) s.transfer[t] = op + shift;
+    private void buildRefs() {
+        refs = new int[Math.max(patterns.length, 8)][];
+        refCount = new int[refs.length];
+        for(int slot=0; slot<numStates*NUM_TX; ++slot) {
+            if(transfers[slot] >= 0) addRef(transfers[slot], slot);
         }
     }
 
-    private void shiftTransfers(int threshold, int shift) {
-        int n = states.size();
-        for(int i=0; i<n; ++i) {
-            shiftStateTransfers(states.get(i), threshold, shift);
+    private void ensureRefCapacity(int size) {
+        if(refs.length >= size) return;
+        int newSize = Math.max(size, refs.length * 2);
+        refs = Arrays.copyOf(refs, newSize);
+        refCount = Arrays.copyOf(refCount, newSize);
+    }
+
+    private void addRef(int target, int slot) {
+        ensureRefCapacity(target + 1);
+        int[] bucket = refs[target];
+        int count = refCount[target];
+        if(bucket == null) {
+            bucket = refs[target] = new int[2];
+        } else if(count == bucket.length) {
+            bucket = refs[target] = Arrays.copyOf(bucket, count * 2);
+        }
+        bucket[count] = slot;
+        refCount[target] = count + 1;
+    }
+
+    private void replaceRef(int target, int slot, int newSlot) {
+        int[] bucket = refs[target];
+        int count = refCount[target];
+        for(int k=0; k<count; ++k) {
+            if(bucket[k] != slot) continue;
+            if(newSlot >= 0) {
+                bucket[k] = newSlot;
+            } else {
+                bucket[k] = bucket[count - 1];
+                refCount[target] = count - 1;
+            }
+            return;
         }
-        if(clipboard != null) shiftStateTransfers(clipboard, threshold, shift);
     }
 
-    private void swapStateTransfers(State s, int index) {
-        for(int t=0; t<NUM_TX; ++t) {
-            int op = s.transfer[t];
-            if(op == index) s.transfer[t] = index+1;
-            else if(op == index+1) s.transfer[t] = index;
+    // keeps the reverse index in sync, slot is id * NUM_TX + tx
+    private void setTransferInternal(int slot, int value) {
+        int op = transfers[slot];
+        transfers[slot] = value;
+        if(refs == null) return;
+        if(op >= 0) replaceRef(op, slot, -1);
+        if(transfers[slot] >= 0) addRef(transfers[slot], slot);
+    }
+
+    // every op pointing at index or above is incremented, touching only the referring slots
+    private void shiftRefsUp(int index) {
+        ensureRefCapacity(index + 1);
+        if(refCount[refs.length - 1] > 0) ensureRefCapacity(refs.length + 1);
+        for(int target=refs.length-2; target>=index; --target) {
+            int[] bucket = refs[target];
+            int count = refCount[target];
+            for(int k=0; k<count; ++k) ++transfers[bucket[k]];
+            refs[target + 1] = bucket;
+            refCount[target + 1] = count;
+        }
+        refs[index] = null;
+        refCount[index] = 0;
+        for(int tx=0; tx<NUM_TX; ++tx) {
+            if(clipboardTransfer[tx] >= index) ++clipboardTransfer[tx];
         }
     }
 
-    private void swapTransfers(int index) {
-        int n = states.size();
-        for(int i=0; i<n; ++i) {
-            swapStateTransfers(states.get(i), index);
+    // every op pointing at index or above is decremented, so the ones pointing at index
+    // move to the previous state, or turn into OP_INHERIT for the first one
+    private void shiftRefsDown(int index) {
+        ensureRefCapacity(index + 1);
+        int[] bucket = refs[index];
+        int count = refCount[index];
+        for(int k=0; k<count; ++k) {
+            --transfers[bucket[k]];
+            if(index > 0) addRef(index - 1, bucket[k]);
+        }
+        for(int target=index+1; target<refs.length; ++target) {
+            bucket = refs[target];
+            count = refCount[target];
+            for(int k=0; k<count; ++k) --transfers[bucket[k]];
+            refs[target - 1] = bucket;
+            refCount[target - 1] = count;
+        }
+        refs[refs.length - 1] = null;
+        refCount[refs.length - 1] = 0;
+        for(int tx=0; tx<NUM_TX; ++tx) {
+            if(clipboardTransfer[tx] >= index) --clipboardTransfer[tx];
         }
-        if(clipboard != null) swapStateTransfers(clipboard, index);
     }
 
-    private void addStateInternal(State s) {
-        if(isErrorState()) return;
-        if(states.size() >= stateCap) {
+    // rotates the ops pointing into the range between from and to, as if the state at from moved to to
+    private void rotateRefs(int from, int to) {
+        ensureRefCapacity(Math.max(from, to) + 1);
+        int step = from < to ? 1 : -1;
+        int[] moved = refs[from];
+        int movedCount = refCount[from];
+        for(int target=from; target!=to; target+=step) {
+            int[] bucket = refs[target + step];
+            int count = refCount[target + step];
+            for(int k=0; k<count; ++k) transfers[bucket[k]] -= step;
+            refs[target] = bucket;
+            refCount[target] = count;
+        }
+        for(int k=0; k<movedCount; ++k) transfers[moved[k]] = to;
+        refs[to] = moved;
+        refCount[to] = movedCount;
+        for(int tx=0; tx<NUM_TX; ++tx) {
+            int op = clipboardTransfer[tx];
+            if(op == from) clipboardTransfer[tx] = to;
+            else if(op >= Math.min(from, to) && op <= Math.max(from, to)) clipboardTransfer[tx] -= step;
+        }
+    }
+
+    private void updatePositions(int start, int end) {
+        for(int i=start; i<end; ++i) position[order[i]] = i;
+    }
+
+    // opens a slot after the current state and returns its id, or -1 if there is no room
+    private int insertStateInternal() {
+        if(isErrorState()) return -1;
+        return insertStateAt(currentState + 1);
+    }
+
+    private int insertStateAt(int index) {
+        if(numStates >= stateCap) {
             currentState = OP_ERROR;
-            return;
+            return -1;
+        }
+        ensureOwned();
+        if(refs == null) buildRefs();
+        int id = numStates;
+        ensureCapacity(numStates + 1);
+        initState(id);
+        System.arraycopy(order, index, order, index + 1, numStates - index);
+        order[index] = id;
+        ++numStates;
+        updatePositions(index, numStates);
+        invalidateTransitions();
+        shiftRefsUp(index);
+        currentState = index;
+        return id;
+    }
+
+    private void copyState(int id, long pattern, int[] transfer, int offset, int speed) {
+        patterns[id] = pattern;
+        for(int tx=0; tx<NUM_TX; ++tx) {
+            setTransferInternal(id * NUM_TX + tx, transfer[offset + tx]);
         }
-        states.add(currentState + 1, s);
-        shiftTransfers(currentState + 1, 1);
-        ++currentState;
+        speeds[id] = (byte) speed;
     }
 
     public void addState() {
-        addStateInternal(new State());
-        fireOnChange();
+        int oldState = currentState;
+        if(insertStateInternal() >= 0) {
+            recordInsert(oldState);
+            fireEvent(EV_STATE_INSERTED, currentState, 0);
+        }
+        fireStatesChanged(oldState);
     }
 
     public void cloneState() {
-        addStateInternal(new State(states.get(currentState)));
-        fireOnChange();
+        int oldState = currentState;
+        int id = insertStateInternal();
+        if(id >= 0) {
+            int src = order[currentState - 1];
+            copyState(id, patterns[src], transfers, src * NUM_TX, speeds[src]);
+            recordInsert(oldState);
+            fireEvent(EV_STATE_INSERTED, currentState, 0);
+        }
+        fireStatesChanged(oldState);
     }
 
     public void removeState() {
         if(isErrorState()) return;
-        if(states.size() == 1) {
-            states.set(0, new State());
-            fireOnChange();
+        ensureOwned();
+        if(refs == null) buildRefs();
+        int index = currentState;
+        int id = order[index];
+        if(recording()) recordRemove(index, id);
+        if(numStates == 1) {
+            for(int tx=0; tx<NUM_TX; ++tx) setTransferInternal(id * NUM_TX + tx, OP_INHERIT);
+            initState(id);
+            invalidateTransitions();
+            fireEvent(EV_STATE_CHANGED, index, 0);
+            fireStatesChanged(index);
             return;
         }
-        states.remove(currentState);
-        shiftTransfers(currentState, -1);
-        if(currentState == states.size()) --currentState;
-        fireOnChange();
+        for(int tx=0; tx<NUM_TX; ++tx) setTransferInternal(id * NUM_TX + tx, OP_INHERIT);
+        System.arraycopy(order, index + 1, order, index, numStates - index - 1);
+        --numStates;
+        updatePositions(index, numStates);
+        invalidateTransitions();
+        shiftRefsDown(index);
+        // keep ids dense by moving the last one into the freed slot
+        int last = numStates;
+        if(id != last) {
+            patterns[id] = patterns[last];
+            speeds[id] = speeds[last];
+            for(int tx=0; tx<NUM_TX; ++tx) {
+                int op = transfers[last * NUM_TX + tx];
+                transfers[id * NUM_TX + tx] = op;
+                if(op >= 0) replaceRef(op, last * NUM_TX + tx, id * NUM_TX + tx);
+            }
+            order[position[last]] = id;
+            position[id] = position[last];
+        }
+        if(currentState == numStates) --currentState;
+        fireEvent(EV_STATE_REMOVED, index, 0);
+        fireStatesChanged(index);
     }
 
     public void copyState() {
         if(isErrorState()) return;
-        clipboard = new State(states.get(currentState));
-        fireOnChange();
+        int id = order[currentState];
+        clipboardPattern = patterns[id];
+        System.arraycopy(transfers, id * NUM_TX, clipboardTransfer, 0, NUM_TX);
+        clipboardSpeed = speeds[id];
+        clipboardValid = true;
+        fireEvent(EV_CLIPBOARD_CHANGED, 0, 0);
+        fireOnChange(CHANGE_CLIPBOARD);
     }
 
     public void cutState() {
         if(isErrorState()) return;
+        beginBatch();
         copyState();
         removeState();
-        fireOnChange();
+        endBatch();
     }
 
     public void pasteState() {
         if(isErrorState()) return;
-        addStateInternal(new State(clipboard));
-        fireOnChange();
+        int oldState = currentState;
+        int id = insertStateInternal();
+        if(id >= 0) {
+            copyState(id, clipboardPattern, clipboardTransfer, 0, clipboardSpeed);
+            recordInsert(oldState);
+            fireEvent(EV_STATE_INSERTED, currentState, 0);
+        }
+        fireStatesChanged(oldState);
     }
 
     public boolean isClipboardValid() {
-        return clipboard != null;
+        return clipboardValid;
     }
 
     public void clearClipboard() {
-        clipboard = null;
-        fireOnChange();
-    }
-
-    private void swapStates(int index) {
-        if(index < 0 || index >= states.size()-1) return;
-        State s = states.get(index);
-        states.set(index, states.get(index+1));
-        states.set(index+1, s);
-        swapTransfers(index);
+        clipboardValid = false;
+        fireEvent(EV_CLIPBOARD_CHANGED, 0, 0);
+        fireOnChange(CHANGE_CLIPBOARD);
+    }
+
+    // moves a state to a new position in a single pass, renumbering the ops that point into the range
+    public void moveState(int from, int to) {
+        if(from < 0 || from >= numStates || to < 0 || to >= numStates || from == to) return;
+        ensureOwned();
+        if(refs == null) buildRefs();
+        if(recording()) {
+            openStep();
+            history.append(recordHeader(REC_MOVE, from, to));
+        }
+        int id = order[from];
+        if(from < to) {
+            System.arraycopy(order, from + 1, order, from, to - from);
+        } else {
+            System.arraycopy(order, to, order, to + 1, from - to);
+        }
+        order[to] = id;
+        updatePositions(Math.min(from, to), Math.max(from, to) + 1);
+        invalidateTransitions();
+        rotateRefs(from, to);
+        int oldState = currentState;
+        if(currentState == from) {
+            currentState = to;
+        } else if(currentState >= Math.min(from, to) && currentState <= Math.max(from, to)) {
+            currentState += from < to ? -1 : 1;
+        }
+        closeStep();
+        fireEvent(EV_STATE_MOVED, from, to);
+        fireStatesChanged(oldState);
     }
 
     public void moveStateUp() {
         if(isErrorState() || isFirstState()) return;
-        currentState -= 1;
-        swapStates(currentState);
-        fireOnChange();
+        moveState(currentState, currentState - 1);
     }
 
     public void moveStateDown() {
         if(isErrorState() || isLastState()) return;
-        swapStates(currentState);
-        currentState += 1;
-        fireOnChange();
+        moveState(currentState, currentState + 1);
     }
 
     public void setPattern(String value) {
+        if(!ProgramCodec.isPattern(value)) return;
+        setPatternBits(ProgramCodec.readPattern(value, 0, ProgramCodec.PATTERN_DIGITS));
+    }
+
+    public void setPatternBits(long value) {
         if(isErrorState()) return;
-        states.get(currentState).pattern = value;
-        fireOnChange();
+        ensureOwned();
+        if(recording()) {
+            openStep();
+            history.append(recordHeader(REC_PATTERN, currentState, 0));
+            history.append(patterns[order[currentState]]);
+            history.append(value);
+            closeStep();
+        }
+        patterns[order[currentState]] = value;
+        fireEvent(EV_PATTERN_CHANGED, currentState, 0);
+        fireOnChange(CHANGE_PATTERN);
     }
 
     public void setRawTransfer(int tx, int value) {
         if(isErrorState()) return;
         if(tx < 0 || tx >= NUM_TX) return;
-        states.get(currentState).transfer[tx] = value;
-        fireOnChange();
+        if(value < OP_ERROR || value >= stateCap) return;
+        ensureOwned();
+        if(recording()) recordChange(REC_TRANSFER, currentState, tx, getRawTransfer(tx), value);
+        setTransferInternal(order[currentState] * NUM_TX + tx, value);
+        invalidateTransitions();
+        fireEvent(EV_TRANSFER_CHANGED, currentState, tx);
+        fireOnChange(CHANGE_TRANSFERS);
     }
 
     public void setDefaultTransfer(int tx, int value) {
         if(tx < 0 || tx >= NUM_TX) return;
+        if(recording()) recordChange(REC_TRANSFER, -1, tx, defaultTransfer[tx], value);
         defaultTransfer[tx] = value;
-        fireOnChange();
+        invalidateTransitions();
+        fireEvent(EV_TRANSFER_CHANGED, -1, tx);
+        fireOnChange(CHANGE_TRANSFERS);
     }
 
     public void setSpeed(int value) {
         if(isErrorState()) return;
         if(value < 0 || value >= timerMultipliers.length) return;
-        states.get(currentState).speed = value;
-        fireOnChange();
+        ensureOwned();
+        if(recording()) recordChange(REC_SPEED, currentState, 0, speeds[order[currentState]], value);
+        speeds[order[currentState]] = (byte) value;
+        fireEvent(EV_SPEED_CHANGED, currentState, 0);
+        fireOnChange(CHANGE_SPEED);
     }
 
     public void setGlobalSpeed(int value) {
         if(value < 0 || value >= timerList.length) return;
+        if(recording()) recordChange(REC_SPEED, -1, 0, globalSpeed, value);
         globalSpeed = playbackSpeed = value;
-        fireOnChange();
+        fireEvent(EV_SPEED_CHANGED, -1, 0);
+        fireEvent(EV_PLAYBACK_CHANGED, currentState, currentState);
+        fireOnChange(CHANGE_SPEED | CHANGE_PLAYBACK);
+    }
+
+    public void setHistory(EditHistory history) {
+        this.history = history;
+    }
+
+    public EditHistory getHistory() {
+        return history;
+    }
+
+    public boolean canUndo() {
+        return history != null && history.canUndo();
+    }
+
+    public boolean canRedo() {
+        return history != null && history.canRedo();
+    }
+
+    private boolean recording() {
+        return history != null && !replaying;
+    }
+
+    private void openStep() {
+        if(!history.isStepOpen()) history.beginStep(currentState);
+    }
+
+    private void closeStep() {
+        if(recording() && batchDepth == 0) history.endStep(currentState);
+    }
+
+    private static long recordHeader(int type, int index, int arg) {
+        return ((long) index << 32) | ((long) (arg & 0xffffff) << 8) | type;
+    }
+
+    private static long packPair(int first, int second) {
+        return ((long) first << 32) | (second & 0xffffffffL);
+    }
+
+    private void recordChange(int type, int index, int arg, int oldValue, int newValue) {
+        openStep();
+        history.append(recordHeader(type, index, arg));
+        history.append(packPair(oldValue, newValue));
+        closeStep();
+    }
+
+    private void appendStateData(int id) {
+        history.append(patterns[id]);
+        history.append(speeds[id]);
+        for(int tx=0; tx<NUM_TX; tx+=2) {
+            history.append(packPair(transfers[id * NUM_TX + tx], transfers[id * NUM_TX + tx + 1]));
+        }
+    }
+
+    // unpacks the transfers into historyTransfer and returns the speed
+    private int readStateData(long[] step, int pos) {
+        for(int tx=0; tx<NUM_TX; tx+=2) {
+            long pair = step[pos + 2 + tx / 2];
+            historyTransfer[tx] = (int) (pair >> 32);
+            historyTransfer[tx + 1] = (int) pair;
+        }
+        return (int) step[pos + 1];
+    }
+
+    private void recordInsert(int oldState) {
+        if(!recording()) return;
+        if(!history.isStepOpen()) history.beginStep(oldState);
+        history.append(recordHeader(REC_INSERT, currentState, 0));
+        appendStateData(order[currentState]);
+        closeStep();
+    }
+
+    // the ops pointing at a removed state are renumbered, so keep where they were to put them back
+    private void recordRemove(int index, int id) {
+        openStep();
+        if(numStates == 1) {
+            history.append(recordHeader(REC_RESET, index, 0));
+            appendStateData(id);
+            closeStep();
+            return;
+        }
+        int count = 0;
+        if(index < refs.length) {
+            for(int k=0; k<refCount[index]; ++k) {
+                if(refs[index][k] / NUM_TX != id) ++count;
+            }
+        }
+        for(int tx=0; tx<NUM_TX; ++tx) {
+            if(clipboardTransfer[tx] == index) ++count;
+        }
+        history.append(recordHeader(REC_REMOVE, index, count));
+        appendStateData(id);
+        int pending = -1;
+        if(index < refs.length) {
+            for(int k=0; k<refCount[index]; ++k) {
+                int slot = refs[index][k];
+                if(slot / NUM_TX == id) continue;
+                int code = position[slot / NUM_TX] * NUM_TX + slot % NUM_TX;
+                if(pending < 0) { pending = code; } else { history.append(packPair(pending, code)); pending = -1; }
+            }
+        }
+        for(int tx=0; tx<NUM_TX; ++tx) {
+            if(clipboardTransfer[tx] != index) continue;
+            int code = numStates * NUM_TX + tx;
+            if(pending < 0) { pending = code; } else { history.append(packPair(pending, code)); pending = -1; }
+        }
+        if(pending >= 0) history.append(packPair(pending, -1));
+        closeStep();
+    }
+
+    private static int recordLength(long header) {
+        switch ((int) header & 0xff) {
+            case REC_PATTERN: return 3;
+            case REC_TRANSFER:
+            case REC_SPEED: return 2;
+            case REC_MOVE: return 1;
+            case REC_INSERT:
+            case REC_RESET: return 1 + STATE_DATA_LENGTH;
+            case REC_REMOVE: return 1 + STATE_DATA_LENGTH + ((int) (header >> 8 & 0xffffff) + 1) / 2;
+            default: return 1;
+        }
+    }
+
+    private void insertStateData(int index, long[] step, int pos) {
+        int speed = readStateData(step, pos);
+        int id = insertStateAt(index);
+        if(id < 0) return;
+        copyState(id, step[pos], historyTransfer, 0, speed);
+        fireEvent(EV_STATE_INSERTED, index, 0);
+    }
+
+    private void applyRecord(long[] step, int pos, boolean undo) {
+        long header = step[pos];
+        int type = (int) header & 0xff;
+        int index = (int) (header >> 32);
+        int arg = (int) (header >> 8 & 0xffffff);
+        if(index >= 0 && index < numStates) currentState = index;
+        switch (type) {
+            case REC_PATTERN:
+                setPatternBits(step[pos + (undo ? 1 : 2)]);
+                break;
+            case REC_TRANSFER: {
+                int value = (int) (undo ? step[pos + 1] >> 32 : step[pos + 1]);
+                if(index < 0) setDefaultTransfer(arg, value);
+                else setRawTransfer(arg, value);
+                break;
+            }
+            case REC_SPEED: {
+                int value = (int) (undo ? step[pos + 1] >> 32 : step[pos + 1]);
+                if(index < 0) setGlobalSpeed(value);
+                else setSpeed(value);
+                break;
+            }
+            case REC_MOVE:
+                if(undo) moveState(arg, index);
+                else moveState(index, arg);
+                break;
+            case REC_INSERT:
+                if(undo) removeState();
+                else insertStateData(index, step, pos + 1);
+                break;
+            case REC_REMOVE:
+                if(!undo) {
+                    removeState();
+                    break;
+                }
+                insertStateData(index, step, pos + 1);
+                for(int k=0; k<arg; ++k) {
+                    long pair = step[pos + 1 + STATE_DATA_LENGTH + k / 2];
+                    int code = k % 2 == 0 ? (int) (pair >> 32) : (int) pair;
+                    int state = code / NUM_TX;
+                    int tx = code % NUM_TX;
+                    if(state >= numStates) {
+                        // past the last state stands for the clipboard
+                        clipboardTransfer[tx] = index;
+                    } else {
+                        setTransferInternal(order[state] * NUM_TX + tx, index);
+                        fireEvent(EV_TRANSFER_CHANGED, state, tx);
+                    }
+                }
+                invalidateTransitions();
+                break;
+            case REC_RESET:
+                if(!undo) {
+                    removeState();
+                    break;
+                }
+                // a snapshot taken after the reset may still share the storage
+                ensureOwned();
+                int id = order[index];
+                copyState(id, step[pos + 1], historyTransfer, 0, readStateData(step, pos + 1));
+                invalidateTransitions();
+                fireEvent(EV_STATE_CHANGED, index, 0);
+                break;
+        }
+    }
+
+    private void applyStep(long[] step, boolean undo) {
+        int oldState = currentState;
+        beginBatch();
+        replaying = true;
+        if(undo) {
+            // records are variable length, so find where each starts to walk them backwards
+            int count = 0;
+            for(int pos=1; pos<step.length; pos+=recordLength(step[pos])) ++count;
+            int[] starts = new int[count];
+            count = 0;
+            for(int pos=1; pos<step.length; pos+=recordLength(step[pos])) starts[count++] = pos;
+            for(int k=count-1; k>=0; --k) applyRecord(step, starts[k], true);
+        } else {
+            for(int pos=1; pos<step.length; pos+=recordLength(step[pos])) applyRecord(step, pos, false);
+        }
+        replaying = false;
+        int state = undo ? EditHistory.stateBefore(step) : EditHistory.stateAfter(step);
+        currentState = state >= 0 && state < numStates ? state : OP_ERROR;
+        firePlaybackChanged(oldState);
+        endBatch();
+    }
+
+    public void undo() {
+        if(history == null) return;
+        long[] step = history.takeUndo();
+        if(step != null) applyStep(step, true);
+    }
+
+    public void redo() {
+        if(history == null) return;
+        long[] step = history.takeRedo();
+        if(step != null) applyStep(step, false);
     }
 
 }
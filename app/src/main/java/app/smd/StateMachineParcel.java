@@ -0,0 +1,61 @@
+package app.smd;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// carries a StateMachine through a Bundle in the binary format of StateMachine.writeTo
+public class StateMachineParcel implements Parcelable {
+
+    private final StateMachine sm;
+
+    public StateMachineParcel(StateMachine sm) {
+        this.sm = sm;
+    }
+
+    public StateMachine getMachine() {
+        return sm;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            sm.writeTo(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            // a byte array does not fail, only a name over 64k bytes would
+            bytes.reset();
+        }
+        dest.writeByteArray(bytes.toByteArray());
+    }
+
+    public static final Creator<StateMachineParcel> CREATOR = new Creator<StateMachineParcel>() {
+        @Override
+        public StateMachineParcel createFromParcel(Parcel in) {
+            StateMachine sm = new StateMachine();
+            byte[] data = in.createByteArray();
+            try {
+                sm.readFrom(new DataInputStream(new ByteArrayInputStream(data != null ? data : new byte[0])));
+            } catch (IOException e) {
+                // truncated data, readFrom left the machine in the error state
+            }
+            return new StateMachineParcel(sm);
+        }
+
+        @Override
+        public StateMachineParcel[] newArray(int size) {
+            return new StateMachineParcel[size];
+        }
+    };
+
+}
@@ -173,16 +173,16 @@ public class TransferButtons extends LinearLayout {
             }
             boolean opRem;
             int state;
-            String pattern;
+            boolean hasPattern;
             if(fgMode == FG_STATE || bgMode >= BG_SHOW) {
                 StateMachine.OpResult res = sm.queryOp(opQuery);
                 opRem = res.opRemains;
                 state = res.newState;
-                pattern = sm.getThumbnail(state, true);
+                hasPattern = true;
             } else {
                 opRem = true;
                 state = currentState;
-                pattern = "";
+                hasPattern = false;
             }
             if(fgMode == FG_HIDE) {
                 txt.setVisibility(INVISIBLE);
@@ -214,11 +214,11 @@ public class TransferButtons extends LinearLayout {
                 }
             }
             if(bgMode == BG_HIDE || (bgMode == BG_DIFF && state == currentState) ||
-                    (bgMode == BG_FIXED && opDisplay < 0) || pattern.isEmpty()) {
+                    (bgMode == BG_FIXED && opDisplay < 0) || !hasPattern) {
                 led.setVisibility(INVISIBLE);
             } else {
                 led.setVisibility(VISIBLE);
-                led.setHexPattern(pattern, false);
+                led.setPatternBits(sm.getThumbnailBits(state, true), false);
             }
         }
     }
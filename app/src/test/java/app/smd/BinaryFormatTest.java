@@ -0,0 +1,103 @@
+package app.smd;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BinaryFormatTest {
+
+    private static byte[] write(StateMachine sm) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        sm.writeTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static StateMachine read(byte[] data) throws IOException {
+        StateMachine sm = new StateMachine();
+        sm.readFrom(new DataInputStream(new ByteArrayInputStream(data)));
+        return sm;
+    }
+
+    // a machine with something in every field the binary form keeps
+    private static StateMachine busyMachine(Random r, int n) {
+        StateMachine sm = ProgramParserTest.randomMachine(r, n);
+        sm.setName("n\u00e9v, \"quoted\"\n" + n);
+        sm.gotoState(r.nextInt(n));
+        sm.copyState();
+        sm.gotoState(r.nextInt(n));
+        sm.processOp(StateMachine.OP_PAUSE);
+        sm.processOp(StateMachine.OP_FASTER);
+        return sm;
+    }
+
+    @Test
+    public void wholeMachineRoundTrip() throws IOException {
+        Random r = new Random(16);
+        for(int k=0; k<100; ++k) {
+            // past the legacy cap now and then, the binary form has no cap of its own
+            StateMachine sm = busyMachine(r, 1 + r.nextInt(k % 10 == 0 ? 500 : 75));
+            StateMachine loaded = read(write(sm));
+            assertEquals(-1, loaded.getLoadErrorOffset());
+            ProgramCodecTest.assertSameMachine(sm, loaded);
+            assertEquals(sm.getRepresentation(), loaded.getRepresentation());
+            assertEquals(sm.getName(), loaded.getName());
+            assertEquals(sm.getCurrentState(), loaded.getCurrentState());
+            assertEquals(sm.getPlaybackSpeed(), loaded.getPlaybackSpeed());
+        }
+    }
+
+    @Test
+    public void theClipboardSurvives() throws IOException {
+        StateMachine sm = busyMachine(new Random(17), 5);
+        sm.gotoState(0);
+        sm.copyState();
+        long copied = sm.getPatternBits(0);
+        StateMachine loaded = read(write(sm));
+        assertTrue(loaded.isClipboardValid());
+        loaded.gotoState(4);
+        loaded.pasteState();
+        assertEquals(6, loaded.getStateCount());
+        assertEquals(copied, loaded.getPatternBits(loaded.getCurrentState()));
+    }
+
+    @Test
+    public void badDataLeavesTheErrorState() throws IOException {
+        byte[] data = write(busyMachine(new Random(18), 20));
+        // a wrong version
+        data[3] ^= 1;
+        StateMachine sm = read(data);
+        assertEquals(0, sm.getLoadErrorOffset());
+        assertTrue(sm.isErrorState());
+        data[3] ^= 1;
+        // a state speed out of range; with few states every count and op is a one byte varint,
+        // so the first state's speed follows the header, the defaults and its pattern
+        data[4 + 1 + 1 + StateMachine.NUM_TX + 8] = 100;
+        sm = read(data);
+        assertEquals(0, sm.getLoadErrorOffset());
+        assertTrue(sm.isErrorState());
+    }
+
+    @Test
+    public void truncatedDataThrowsAndLeavesTheErrorState() throws IOException {
+        byte[] data = write(busyMachine(new Random(19), 20));
+        byte[] cut = new byte[data.length / 2];
+        System.arraycopy(data, 0, cut, 0, cut.length);
+        StateMachine sm = new StateMachine();
+        try {
+            sm.readFrom(new DataInputStream(new ByteArrayInputStream(cut)));
+            fail();
+        } catch (EOFException e) {
+            assertEquals(0, sm.getLoadErrorOffset());
+            assertTrue(sm.isErrorState());
+        }
+    }
+
+}
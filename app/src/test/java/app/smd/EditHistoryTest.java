@@ -0,0 +1,108 @@
+package app.smd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class EditHistoryTest {
+
+    private static StateMachine machine(int states) {
+        StateMachine sm = new StateMachine();
+        sm.setHistory(new EditHistory(1 << 20));
+        sm.setPatternBits(0x0102030405060708L);
+        for(int i=1; i<states; ++i) {
+            sm.addState();
+            sm.setPatternBits(0x1111111111111111L * i);
+            sm.setRawTransfer(StateMachine.TX_CLICK, 0);
+        }
+        return sm;
+    }
+
+    @Test
+    public void undoOfResetDoesNotChangeSnapshot() {
+        StateMachine sm = machine(1);
+        sm.setSpeed(2);
+        String before = sm.getProgram();
+        sm.removeState();
+        StateMachine snapshot = sm.snapshot();
+        String reset = snapshot.getProgram();
+        sm.undo();
+        assertEquals(before, sm.getProgram());
+        assertEquals(reset, snapshot.getProgram());
+        sm.redo();
+        assertEquals(reset, sm.getProgram());
+    }
+
+    @Test
+    public void undoAndRedoLeaveSnapshotsAlone() {
+        Random r = new Random(1);
+        StateMachine sm = machine(6);
+        ArrayList<StateMachine> snapshots = new ArrayList<>();
+        ArrayList<String> programs = new ArrayList<>();
+        for(int step=0; step<300; ++step) {
+            int n = sm.getStateCount();
+            if(sm.isErrorState()) sm.gotoState(r.nextInt(n));
+            switch (r.nextInt(8)) {
+                case 0: sm.addState(); break;
+                case 1: sm.cloneState(); break;
+                case 2: sm.removeState(); break;
+                case 3: sm.cutState(); break;
+                case 4: sm.moveState(r.nextInt(n), r.nextInt(n)); break;
+                case 5: sm.setPatternBits(r.nextLong()); break;
+                case 6: sm.setRawTransfer(r.nextInt(StateMachine.NUM_TX), r.nextInt(n)); break;
+                default: sm.setSpeed(r.nextInt(4)); break;
+            }
+            if(step % 7 == 0) {
+                snapshots.add(sm.snapshot());
+                programs.add(sm.getProgram());
+            }
+            if(step % 11 == 0) sm.undo();
+            if(step % 13 == 0) sm.redo();
+        }
+        while(sm.canUndo()) sm.undo();
+        while(sm.canRedo()) sm.redo();
+        for(int i=0; i<snapshots.size(); ++i) {
+            assertEquals("snapshot " + i, programs.get(i), snapshots.get(i).getProgram());
+        }
+    }
+
+    @Test
+    public void undoRestoresEveryStep() {
+        StateMachine sm = machine(4);
+        ArrayList<String> programs = new ArrayList<>();
+        programs.add(sm.getProgram());
+        sm.gotoState(1);
+        sm.removeState();
+        programs.add(sm.getProgram());
+        sm.moveState(0, 2);
+        programs.add(sm.getProgram());
+        sm.setGlobalSpeed(3);
+        programs.add(sm.getProgram());
+        for(int k=programs.size()-2; k>=0; --k) {
+            sm.undo();
+            assertEquals(programs.get(k), sm.getProgram());
+        }
+        for(int k=1; k<programs.size(); ++k) {
+            sm.redo();
+            assertEquals(programs.get(k), sm.getProgram());
+        }
+    }
+
+    @Test
+    public void historyStaysWithinBudget() {
+        StateMachine sm = new StateMachine();
+        sm.setHistory(new EditHistory(4096));
+        for(int i=0; i<1000; ++i) sm.setPatternBits(i);
+        assertTrue(sm.getHistory().getUsedBytes() <= 4096);
+        int undos = 0;
+        while(sm.canUndo()) {
+            sm.undo();
+            ++undos;
+        }
+        assertTrue(undos > 0 && undos < 1000);
+    }
+
+}
@@ -0,0 +1,119 @@
+package app.smd;
+
+import java.math.BigInteger;
+import java.util.Locale;
+import java.util.Scanner;
+
+// the substring, BigInteger and Scanner based parser that StateMachine used before it parsed in
+// a single pass, kept as the reference the tests and the benchmark compare against; a program
+// it would have thrown on counts as invalid
+class LegacyParser {
+
+    private static final int stateCap = 75;
+    private static final int numTimers = 12;
+
+    boolean valid;
+    int numStates;
+    final int[] defaultTransfer = new int[StateMachine.NUM_TX];
+    int globalSpeed;
+    int[] transfers;
+    int[] speeds;
+    String[] patterns;
+    int currentState;
+    int playbackSpeed;
+    boolean paused;
+    String name;
+
+    static LegacyParser parseProgram(String program) {
+        LegacyParser p = new LegacyParser();
+        try {
+            p.loadProgram(program);
+        } catch (NumberFormatException e) {
+            p.valid = false;
+        }
+        return p;
+    }
+
+    static LegacyParser parseRepresentation(String repr) {
+        Scanner s = new Scanner(repr);
+        s.useDelimiter(",");
+        LegacyParser p = parseProgram(s.next());
+        s.next();  // the clipboard, not compared
+        s.next();
+        p.currentState = s.nextInt();
+        p.playbackSpeed = s.nextInt();
+        p.paused = s.nextInt() != 0;
+        s.skip(",");
+        s.useDelimiter("\\A");
+        p.name = s.hasNext() ? s.next() : "";
+        return p;
+    }
+
+    private void loadProgram(String program) {
+        if(program.length() < 22 || !program.startsWith(StateMachine.magic)) return;
+        int n = new BigInteger(program.substring(8, 10), 16).byteValue();
+        if(n < 1 || n > stateCap) return;
+        int tLen = (n * 11 + 1) & ~1;
+        int pLen = n * 16;
+        if(program.length() != 22 + tLen + pLen) return;
+        String header = program.substring(10, 22);
+        String transferData = program.substring(22, 22 + tLen);
+        String patternData = program.substring(22 + tLen, 22 + tLen + pLen);
+        BigInteger hd = new BigInteger(header, 16);
+        globalSpeed = hd.byteValue() & 0x3f;
+        if(globalSpeed >= numTimers) return;
+        playbackSpeed = globalSpeed;
+        hd = hd.shiftRight(6);
+        for(int tx=StateMachine.NUM_TX-1; tx>=0; --tx) {
+            defaultTransfer[tx] = readOp(hd);
+            hd = hd.shiftRight(7);
+        }
+        transfers = new int[n * StateMachine.NUM_TX];
+        speeds = new int[n];
+        patterns = new String[n];
+        for(int i=0; i<n; ++i) {
+            BigInteger td = new BigInteger(transferData.substring(11 * i, 11 * (i + 1)), 16);
+            speeds[i] = td.byteValue() & 0x3;
+            td = td.shiftRight(2);
+            for(int tx=StateMachine.NUM_TX-1; tx>=0; --tx) {
+                transfers[i * StateMachine.NUM_TX + tx] = readOp(td);
+                td = td.shiftRight(7);
+            }
+            patterns[i] = patternData.substring(16 * i, 16 * (i + 1));
+            new BigInteger(patterns[i], 16);  // the old parser only failed on it later, when drawn
+        }
+        numStates = n;
+        valid = true;
+    }
+
+    private static int readOp(BigInteger data) {
+        int op = data.byteValue() & 0x7f;
+        if(op >= 0x80 - 8) op -= 0x80;
+        return op;
+    }
+
+    // the program as the old getProgram wrote it, with the patterns in lower case; null if invalid
+    String toProgram() {
+        if(!valid) return null;
+        StringBuilder sb = new StringBuilder(StateMachine.magic);
+        sb.append(String.format("%02x", numStates));
+        sb.append(String.format("%012x", pack(defaultTransfer, 0, globalSpeed, 6)));
+        for(int i=0; i<numStates; ++i) {
+            sb.append(String.format("%011x", pack(transfers, i * StateMachine.NUM_TX, speeds[i], 2)));
+        }
+        if(numStates % 2 != 0) sb.append('0');
+        for(String pattern : patterns) sb.append(pattern.toLowerCase(Locale.US));
+        return sb.toString();
+    }
+
+    private static BigInteger pack(int[] ops, int offset, int speed, int speedBits) {
+        BigInteger data = BigInteger.ZERO;
+        for(int tx=0; tx<StateMachine.NUM_TX; ++tx) {
+            int op = ops[offset + tx];
+            if(op < 0) op += 0x80;
+            data = data.shiftLeft(7).or(BigInteger.valueOf(op & 0x7f));
+        }
+        return data.shiftLeft(speedBits).or(BigInteger.valueOf(speed & ((1 << speedBits) - 1)));
+    }
+
+}
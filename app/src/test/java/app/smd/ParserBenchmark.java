@@ -0,0 +1,57 @@
+package app.smd;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// times the single pass parser against the legacy one over a library of random projects; run the
+// main method on a JVM, it prints the median of the timed rounds
+public class ParserBenchmark {
+
+    private static final int projects = 3000;
+    private static final int warmupRounds = 5;
+    private static final int rounds = 15;
+
+    interface Parse {
+        int run(String s);
+    }
+
+    private static long median(String[] input, Parse parse) {
+        long[] times = new long[rounds];
+        int sink = 0;
+        for(int round=-warmupRounds; round<rounds; ++round) {
+            long start = System.nanoTime();
+            for(String s : input) sink += parse.run(s);
+            if(round >= 0) times[round] = System.nanoTime() - start;
+        }
+        if(sink == 42) System.out.print("");
+        Arrays.sort(times);
+        return times[rounds / 2];
+    }
+
+    public static void main(String[] args) {
+        Random r = new Random(15);
+        String[] reprs = new String[projects];
+        String[] programs = new String[projects];
+        for(int i=0; i<projects; ++i) {
+            StateMachine sm = ProgramParserTest.randomMachine(r, 10 + r.nextInt(66));
+            sm.gotoState(r.nextInt(sm.getStateCount()));
+            reprs[i] = sm.getRepresentation();
+            programs[i] = sm.getProgram();
+        }
+        long legacyRepr = median(reprs, new Parse() {
+            public int run(String s) { return LegacyParser.parseRepresentation(s).numStates; }
+        });
+        long newRepr = median(reprs, new Parse() {
+            public int run(String s) { return new StateMachine(s).getStateCount(); }
+        });
+        long legacyProgram = median(programs, new Parse() {
+            public int run(String s) { return LegacyParser.parseProgram(s).numStates; }
+        });
+        long newProgram = median(programs, new Parse() {
+            public int run(String s) { return new StateMachine(s).getStateCount(); }
+        });
+        System.out.printf("representations: legacy %.1f ms, single pass %.1f ms%n", legacyRepr / 1e6, newRepr / 1e6);
+        System.out.printf("programs:        legacy %.1f ms, single pass %.1f ms%n", legacyProgram / 1e6, newProgram / 1e6);
+    }
+
+}
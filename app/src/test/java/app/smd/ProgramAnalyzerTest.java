@@ -0,0 +1,108 @@
+package app.smd;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ProgramAnalyzerTest {
+
+    // the analyzer kept up to date by events answers what one built from scratch does
+    private static void assertSameAnswers(StateMachine sm, ProgramAnalyzer analyzer) {
+        ProgramAnalyzer fresh = new ProgramAnalyzer(sm);
+        int n = sm.getStateCount();
+        for(int s=0; s<n; ++s) {
+            assertEquals("reachable " + s, fresh.isReachable(s), analyzer.isReachable(s));
+            assertEquals("reaches error " + s, fresh.canReachError(s), analyzer.canReachError(s));
+            assertEquals("absorbing " + s, fresh.isAbsorbing(s), analyzer.isAbsorbing(s));
+        }
+        assertEquals(fresh.getUnreachableCount(), analyzer.getUnreachableCount());
+        assertEquals(fresh.getComponentCount(), analyzer.getComponentCount());
+        int[] expected = fresh.getErrorWitness();
+        int[] witness = analyzer.getErrorWitness();
+        assertEquals(expected == null, witness == null);
+        if(witness == null) return;
+        assertEquals(expected.length, witness.length);
+        // the inputs lead from the first state into the error
+        int s = 0;
+        for(int k=0; k<witness.length; ++k) {
+            if(witness[k] == StateMachine.TX_AUTO) assertNotEquals(3, sm.getSpeed(s));
+            s = sm.getResolvedTransfer(s, witness[k]);
+            if(k < witness.length - 1) assertTrue(s >= 0);
+        }
+        assertEquals(StateMachine.OP_ERROR, s);
+        fresh.detach();
+    }
+
+    private static void edit(StateMachine sm, Random r) {
+        int n = sm.getStateCount();
+        if(sm.isErrorState()) sm.gotoState(r.nextInt(n));
+        sm.gotoState(r.nextInt(n));
+        int op = r.nextInt(20);
+        if(op < 10) {
+            // targets past the last state, and ops, point into the error or stay
+            sm.setRawTransfer(r.nextInt(StateMachine.NUM_TX), r.nextInt(n + 9) - 8);
+        } else if(op < 12) {
+            sm.setDefaultTransfer(r.nextInt(StateMachine.NUM_TX), r.nextInt(n + 8) - 8);
+        } else if(op < 14) {
+            sm.setSpeed(r.nextInt(4));
+        } else if(op < 16) {
+            sm.undo();
+        } else if(op < 17) {
+            sm.redo();
+        } else if(op < 18) {
+            sm.addState();
+        } else if(op < 19) {
+            sm.removeState();
+        } else {
+            sm.moveState(r.nextInt(n), r.nextInt(n));
+        }
+    }
+
+    @Test
+    public void editsMatchAFreshAnalysis() {
+        Random r = new Random(13);
+        for(int round=0; round<20; ++round) {
+            StateMachine sm = new StateMachine();
+            sm.setHistory(new EditHistory(1 << 16));
+            for(int i=1; i<2 + r.nextInt(20); ++i) sm.addState();
+            ProgramAnalyzer analyzer = new ProgramAnalyzer(sm);
+            for(int step=0; step<200; ++step) {
+                edit(sm, r);
+                // queried now and then, so edits also pile up between queries
+                if(step % 3 != 0) assertSameAnswers(sm, analyzer);
+            }
+            analyzer.detach();
+        }
+    }
+
+    @Test
+    public void aChainFindsItsErrorAndLosesIt() {
+        StateMachine sm = new StateMachine();
+        // every input stays where it is, except what is set below
+        for(int tx=0; tx<StateMachine.NUM_TX; ++tx) sm.setDefaultTransfer(tx, StateMachine.OP_NONE);
+        for(int i=1; i<6; ++i) sm.addState();
+        for(int i=0; i<6; ++i) {
+            sm.gotoState(i);
+            sm.setRawTransfer(StateMachine.TX_CLICK, (i + 1) % 6);
+        }
+        ProgramAnalyzer analyzer = new ProgramAnalyzer(sm);
+        assertEquals(0, analyzer.getUnreachableCount());
+        assertNull(analyzer.getErrorWitness());
+        sm.gotoState(4);
+        sm.setRawTransfer(StateMachine.TX_UP, StateMachine.OP_ERROR);
+        assertTrue(analyzer.canReachError(0));
+        assertArrayEquals(new int[]{StateMachine.TX_CLICK, StateMachine.TX_CLICK, StateMachine.TX_CLICK,
+                StateMachine.TX_CLICK, StateMachine.TX_UP}, analyzer.getErrorWitness());
+        // cut the chain after the second state
+        sm.gotoState(1);
+        sm.setRawTransfer(StateMachine.TX_CLICK, 1);
+        assertEquals(4, analyzer.getUnreachableCount());
+        assertNull(analyzer.getErrorWitness());
+        assertFalse(analyzer.canReachError(0));
+        assertTrue(analyzer.canReachError(3));
+        analyzer.detach();
+    }
+
+}
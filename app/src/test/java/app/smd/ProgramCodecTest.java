@@ -0,0 +1,163 @@
+package app.smd;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ProgramCodecTest {
+
+    @Test
+    public void hexRoundTrip() {
+        Random r = new Random(1);
+        char[] buf = new char[16];
+        for(int k=0; k<1000; ++k) {
+            long value = r.nextLong();
+            ProgramCodec.writeHex(buf, 0, value, 16);
+            String s = new String(buf);
+            assertEquals(String.format("%016x", value), s);
+            // readHex keeps -1 for errors, so it reads 15 digits at most
+            assertEquals(value & 0x0fffffffffffffffL, ProgramCodec.readHex(s, 1, 15));
+            assertEquals(value, ProgramCodec.readPattern(s.toUpperCase(), 0, 16));
+            assertEquals(s, ProgramCodec.patternToString(value));
+        }
+        assertEquals(-1, ProgramCodec.readHex("12g4", 0, 4));
+        assertFalse(ProgramCodec.isHex("12g4", 0, 4));
+        assertTrue(ProgramCodec.isHex("12aF", 0, 4));
+        assertFalse(ProgramCodec.isHex("12aF", 2, 4));
+        assertEquals(2, ProgramCodec.findNonHex("12g4", 0, 4));
+        assertEquals(-1, ProgramCodec.findNonHex("12g4", 3, 4));
+    }
+
+    @Test
+    public void transfersPackAndUnpack() {
+        Random r = new Random(2);
+        int[] ops = new int[StateMachine.NUM_TX];
+        int[] back = new int[StateMachine.NUM_TX];
+        for(int k=0; k<1000; ++k) {
+            for(int tx=0; tx<ops.length; ++tx) ops[tx] = r.nextInt(0x80) - StateMachine.NUM_OP;
+            int speed = r.nextInt(4);
+            assertEquals(speed, ProgramCodec.unpackTransfers(ProgramCodec.packTransfers(ops, 0, speed), back, 0));
+            assertArrayEquals(ops, back);
+            int globalSpeed = r.nextInt(12);
+            assertEquals(globalSpeed, ProgramCodec.unpackHeader(ProgramCodec.packHeader(ops, globalSpeed), back));
+            assertArrayEquals(ops, back);
+        }
+    }
+
+    @Test
+    public void lengthsAndOffsets() {
+        for(int n=1; n<=75; ++n) {
+            String program = ProgramParserTest.randomMachine(new Random(n), n).getProgram();
+            assertEquals(ProgramCodec.programLength(n), program.length());
+            assertEquals(ProgramCodec.patternOffset(n, n), program.length());
+            assertEquals(ProgramCodec.transferOffset(n) + (n % 2 == 0 ? 0 : 1), ProgramCodec.patternOffset(n, 0));
+        }
+    }
+
+    // the v1 encoding is the one the device and the older versions read, byte for byte
+    @Test
+    public void v1MatchesTheLegacyEncoding() {
+        Random r = new Random(3);
+        for(int k=0; k<500; ++k) {
+            StateMachine sm = ProgramParserTest.randomMachine(r, 1 + r.nextInt(75));
+            assertTrue(sm.fitsLegacyFormat());
+            String program = sm.getProgram();
+            assertTrue(program.startsWith(StateMachine.magic));
+            assertEquals(program, LegacyParser.parseProgram(program).toProgram());
+            assertEquals(program, new StateMachine(program).getProgram());
+        }
+    }
+
+    static void assertSameMachine(StateMachine expected, StateMachine actual) {
+        int n = expected.getStateCount();
+        assertEquals(n, actual.getStateCount());
+        assertEquals(expected.getGlobalSpeed(), actual.getGlobalSpeed());
+        for(int tx=0; tx<StateMachine.NUM_TX; ++tx) {
+            assertEquals(expected.getDefaultTransfer(tx), actual.getDefaultTransfer(tx));
+        }
+        for(int i=0; i<n; ++i) {
+            assertEquals(expected.getPatternBits(i), actual.getPatternBits(i));
+            assertEquals(expected.getSpeed(i), actual.getSpeed(i));
+            for(int tx=0; tx<StateMachine.NUM_TX; ++tx) {
+                assertEquals("state " + i + " tx " + tx, expected.getRawTransfer(i, tx), actual.getRawTransfer(i, tx));
+            }
+        }
+    }
+
+    @Test
+    public void varintRoundTrip() throws IOException {
+        int[] values = {0, 1, 0x7f, 0x80, 0x3fff, 0x4000, 0xffff, 0x10000, Integer.MAX_VALUE};
+        char[] buf = new char[2 * 5];
+        ProgramCodec.Reader reader = new ProgramCodec.Reader();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for(int value : values) {
+            int end = ProgramCodec.writeVarint(buf, 0, value);
+            reader.reset(new String(buf, 0, end), 0, end);
+            assertEquals(value, reader.readVarint());
+            assertFalse(reader.isFailed());
+            assertEquals(end, reader.getPosition());
+            ProgramCodec.writeVarint(out, value);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for(int value : values) assertEquals(value, ProgramCodec.readVarint(in));
+        // five bytes that overflow an int, and a varint cut short
+        reader.reset("ffffffff7f", 0, 10);
+        reader.readVarint();
+        assertTrue(reader.isFailed());
+        reader.reset("8080", 0, 4);
+        reader.readVarint();
+        assertEquals(4, reader.getErrorOffset());
+        in = new DataInputStream(new ByteArrayInputStream(new byte[]{-1, -1, -1, -1, 0x7f}));
+        assertEquals(-1, ProgramCodec.readVarint(in));
+    }
+
+    @Test
+    public void machinesPastTheLegacyCapUseV2() {
+        Random r = new Random(7);
+        for(int k=0; k<50; ++k) {
+            StateMachine sm = ProgramParserTest.randomMachine(r, 76 + r.nextInt(300));
+            assertFalse(sm.fitsLegacyFormat());
+            String program = sm.getProgram();
+            assertTrue(program.startsWith(StateMachine.magicV2));
+            StateMachine loaded = new StateMachine(program);
+            assertEquals(-1, loaded.getLoadErrorOffset());
+            assertSameMachine(sm, loaded);
+            assertEquals(program, loaded.getProgram());
+        }
+    }
+
+    @Test
+    public void smallMachinesWithFarTargetsUseV2() {
+        StateMachine sm = ProgramParserTest.randomMachine(new Random(8), 10);
+        assertTrue(sm.fitsLegacyFormat());
+        // a transfer to a state the v1 op field cannot hold
+        sm.gotoState(3);
+        sm.setRawTransfer(StateMachine.TX_CLICK, 1000);
+        assertFalse(sm.fitsLegacyFormat());
+        String program = sm.getProgram();
+        assertTrue(program.startsWith(StateMachine.magicV2));
+        assertSameMachine(sm, new StateMachine(program));
+        // back in range, the program is v1 again
+        sm.setRawTransfer(StateMachine.TX_CLICK, 5);
+        assertTrue(sm.getProgram().startsWith(StateMachine.magic));
+    }
+
+    @Test
+    public void aTruncatedV2ProgramReportsWhereItEnds() {
+        String program = ProgramParserTest.randomMachine(new Random(9), 100).getProgram();
+        for(int cut=8; cut<program.length(); cut+=37) {
+            StateMachine sm = new StateMachine(program.substring(0, cut));
+            assertTrue(sm.getLoadErrorOffset() >= 0);
+            assertTrue(sm.getLoadErrorOffset() <= cut);
+        }
+    }
+
+}
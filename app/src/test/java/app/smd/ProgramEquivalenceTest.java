@@ -0,0 +1,80 @@
+package app.smd;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ProgramEquivalenceTest {
+
+    // what the device shows: the pattern, how long it stays, and whether playback is paused
+    private static String observe(StateMachine sm) {
+        return sm.getPatternBits() + "/" + sm.getDelay() + "/" + sm.isPaused();
+    }
+
+    static void replay(StateMachine sm, int[] trace) {
+        sm.resetPlayback();
+        for(int tx : trace) sm.step(tx);
+    }
+
+    @Test
+    public void aMachineIsEquivalentToItsCopy() {
+        Random r = new Random(14);
+        for(int k=0; k<100; ++k) {
+            StateMachine sm = ProgramParserTest.randomMachine(r, 1 + r.nextInt(30));
+            assertTrue(ProgramEquivalence.areEquivalent(sm, new StateMachine(sm.getProgram())));
+        }
+    }
+
+    @Test
+    public void theTraceTellsTheMachinesApart() {
+        Random r = new Random(15);
+        int found = 0;
+        for(int k=0; k<200; ++k) {
+            int n = 1 + r.nextInt(30);
+            StateMachine a = ProgramParserTest.randomMachine(r, n);
+            StateMachine b = new StateMachine(a.getProgram());
+            b.gotoState(r.nextInt(n));
+            if(r.nextBoolean()) b.setPatternBits(b.getPatternBits() ^ 1);
+            else b.setRawTransfer(r.nextInt(StateMachine.NUM_TX), r.nextInt(n + 7) - 7);
+            int[] trace = ProgramEquivalence.findDistinguishingTrace(a, b);
+            if(trace == null) {
+                // the edit did not matter, which a random walk must agree with
+                for(int walk=0; walk<20; ++walk) {
+                    a.resetPlayback();
+                    b.resetPlayback();
+                    for(int i=0; i<50; ++i) {
+                        int tx = r.nextInt(StateMachine.NUM_TX);
+                        a.step(tx);
+                        b.step(tx);
+                        assertEquals(observe(a), observe(b));
+                    }
+                }
+                continue;
+            }
+            ++found;
+            replay(a, trace);
+            replay(b, trace);
+            assertNotEquals(observe(a), observe(b));
+            // and it is a shortest one, every prefix looks the same
+            for(int len=0; len<trace.length; ++len) {
+                int[] prefix = Arrays.copyOf(trace, len);
+                replay(a, prefix);
+                replay(b, prefix);
+                assertEquals(observe(a), observe(b));
+            }
+        }
+        assertTrue(found > 100);
+    }
+
+    @Test
+    public void differentStartsDifferRightAway() {
+        StateMachine a = new StateMachine();
+        StateMachine b = new StateMachine();
+        b.setPatternBits(1);
+        assertArrayEquals(new int[0], ProgramEquivalence.findDistinguishingTrace(a, b));
+    }
+
+}
@@ -0,0 +1,52 @@
+package app.smd;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ProgramOptimizerTest {
+
+    @Test
+    public void theOptimizedProgramBehavesTheSame() {
+        Random r = new Random(12);
+        for(int k=0; k<200; ++k) {
+            int n = 1 + r.nextInt(40);
+            StateMachine sm = ProgramParserTest.randomMachine(r, n);
+            // few distinct patterns and speeds, so there is something to merge
+            for(int i=0; i<n; ++i) {
+                sm.gotoState(i);
+                sm.setPatternBits(r.nextInt(3));
+                sm.setSpeed(r.nextInt(2));
+            }
+            String program = sm.getProgram();
+            StateMachine optimized = ProgramOptimizer.optimize(sm);
+            assertEquals("the original is left alone", program, sm.getProgram());
+            assertTrue(optimized.getStateCount() <= n);
+            assertTrue(ProgramEquivalence.areEquivalent(sm, optimized));
+            // nothing left to merge
+            assertEquals(optimized.getStateCount(), ProgramOptimizer.optimize(optimized).getStateCount());
+        }
+    }
+
+    @Test
+    public void copiesOfAStateAreMerged() {
+        StateMachine sm = new StateMachine();
+        // a loop through three states showing the same pattern, and one that is never reached
+        for(int tx=0; tx<StateMachine.NUM_TX; ++tx) sm.setDefaultTransfer(tx, StateMachine.OP_NONE);
+        for(int i=1; i<4; ++i) sm.addState();
+        for(int i=0; i<3; ++i) {
+            sm.gotoState(i);
+            sm.setPatternBits(0x55);
+            sm.setRawTransfer(StateMachine.TX_AUTO, (i + 1) % 3);
+        }
+        sm.gotoState(3);
+        sm.setPatternBits(0xaa);
+        StateMachine optimized = ProgramOptimizer.optimize(sm);
+        assertEquals(1, optimized.getStateCount());
+        assertEquals(0x55, optimized.getPatternBits(0));
+        assertTrue(ProgramEquivalence.areEquivalent(sm, optimized));
+    }
+
+}
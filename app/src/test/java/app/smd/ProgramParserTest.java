@@ -0,0 +1,118 @@
+package app.smd;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ProgramParserTest {
+
+    private static final String hexDigits = "0123456789abcdefAB";
+
+    // a machine with every field random, n states
+    static StateMachine randomMachine(Random r, int n) {
+        StateMachine sm = new StateMachine();
+        sm.setGlobalSpeed(r.nextInt(sm.getMaxGlobalSpeed() + 1));
+        for(int tx=0; tx<StateMachine.NUM_TX; ++tx) {
+            sm.setDefaultTransfer(tx, r.nextInt(n + 6) - 7);
+        }
+        for(int i=1; i<n; ++i) sm.addState();
+        for(int i=0; i<n; ++i) {
+            sm.gotoState(i);
+            sm.setPatternBits(r.nextLong());
+            sm.setSpeed(r.nextInt(sm.getMaxSpeed() + 1));
+            for(int tx=0; tx<StateMachine.NUM_TX; ++tx) {
+                sm.setRawTransfer(tx, r.nextInt(n + 7) - 7);
+            }
+        }
+        sm.setName("project " + n);
+        return sm;
+    }
+
+    @Test
+    public void mutatedProgramsAgreeWithTheLegacyParser() {
+        Random r = new Random(3);
+        int valid = 0;
+        for(int k=0; k<5000; ++k) {
+            String program = randomMachine(r, 1 + r.nextInt(75)).getProgram();
+            char[] c = program.toCharArray();
+            int mutations = r.nextInt(3);
+            // past the magic, which the legacy parser knew only one of
+            for(int m=0; m<mutations; ++m) c[8 + r.nextInt(c.length - 8)] = hexDigits.charAt(r.nextInt(hexDigits.length()));
+            String p = new String(c);
+            if(r.nextInt(10) == 0) p = p.substring(0, r.nextInt(p.length()));
+            StateMachine sm = new StateMachine(p);
+            String expected = LegacyParser.parseProgram(p).toProgram();
+            assertEquals(p, expected == null, sm.isErrorState());
+            assertEquals(sm.isErrorState(), sm.getLoadErrorOffset() >= 0);
+            if(expected != null) {
+                assertEquals(expected, sm.getProgram());
+                ++valid;
+            }
+        }
+        assertTrue(valid > 1000);
+    }
+
+    @Test
+    public void representationsAgreeWithTheLegacyParser() {
+        Random r = new Random(4);
+        for(int k=0; k<500; ++k) {
+            StateMachine source = randomMachine(r, 1 + r.nextInt(75));
+            source.gotoState(r.nextInt(source.getStateCount()));
+            source.setName(k % 3 == 0 ? "a,b;c" : "name " + k);
+            if(k % 2 == 0) source.copyState();
+            String repr = source.getRepresentation();
+            StateMachine sm = new StateMachine(repr);
+            LegacyParser legacy = LegacyParser.parseRepresentation(repr);
+            assertEquals(-1, sm.getLoadErrorOffset());
+            assertEquals(legacy.toProgram(), sm.getProgram());
+            assertEquals(legacy.currentState, sm.getCurrentState());
+            assertEquals(legacy.playbackSpeed, sm.getPlaybackSpeed());
+            assertEquals(legacy.paused, sm.isPaused());
+            assertEquals(legacy.name, sm.getName());
+            assertEquals(repr, sm.getRepresentation());
+        }
+    }
+
+    @Test
+    public void aBadCharacterIsReportedWhereItIs() {
+        Random r = new Random(5);
+        for(int k=0; k<1000; ++k) {
+            // more than 75 states only fit the v2 format
+            String program = randomMachine(r, k % 2 == 0 ? 1 + r.nextInt(75) : 76 + r.nextInt(40)).getProgram();
+            int pos = r.nextInt(program.length());
+            String p = program.substring(0, pos) + "x" + program.substring(pos + 1);
+            StateMachine sm = new StateMachine(p);
+            assertTrue(sm.isErrorState());
+            assertEquals(p, pos, sm.getLoadErrorOffset());
+        }
+    }
+
+    @Test
+    public void aDamagedProgramKeepsTheName() {
+        StateMachine source = randomMachine(new Random(6), 5);
+        source.setName("kept, with a comma");
+        String repr = source.getRepresentation();
+        String damaged = repr.substring(0, 12) + "x" + repr.substring(13);
+        StateMachine sm = new StateMachine(damaged);
+        assertEquals(12, sm.getLoadErrorOffset());
+        assertTrue(sm.isErrorState());
+        assertEquals("kept, with a comma", sm.getName());
+        assertEquals(LegacyParser.parseRepresentation(damaged).name, sm.getName());
+        // too few fields for a name
+        assertEquals("", new StateMachine(repr.substring(0, 12) + "x,1").getName());
+    }
+
+    @Test
+    public void representationsWithOddNamesRoundTrip() {
+        StateMachine source = randomMachine(new Random(7), 3);
+        for(String name : new String[]{"", "a,b,c", ",", "x;y\\;z"}) {
+            source.setName(name);
+            StateMachine sm = new StateMachine(source.getRepresentation());
+            assertEquals(-1, sm.getLoadErrorOffset());
+            assertEquals(name, sm.getName());
+        }
+    }
+
+}
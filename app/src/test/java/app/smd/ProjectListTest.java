@@ -0,0 +1,176 @@
+package app.smd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ProjectListTest {
+
+    private static ProjectList list(int count) {
+        ProjectList pl = new ProjectList();
+        for(int i=0; i<count; ++i) pl.addProject("project " + i);
+        return pl;
+    }
+
+    private static void assertPositions(ProjectList pl) {
+        for(int i=0; i<pl.getProjectCount(); ++i) {
+            assertEquals(i, pl.indexOfProject(pl.getProjectId(i)));
+        }
+    }
+
+    @Test
+    public void positionsFollowInsertsAndDeletes() {
+        Random r = new Random(21);
+        ProjectList pl = list(5);
+        ArrayList<Integer> removed = new ArrayList<>();
+        for(int step=0; step<300; ++step) {
+            int n = pl.getProjectCount();
+            if(n > 0) pl.selectProject(r.nextInt(n));
+            switch (r.nextInt(4)) {
+                case 0:
+                    pl.addProject("added " + step);
+                    break;
+                case 1:
+                    if(n > 0) pl.cloneProject("clone " + step);
+                    break;
+                case 2:
+                    if(n > 0) {
+                        removed.add(pl.getSelectedId());
+                        pl.deleteProject();
+                    }
+                    break;
+                default:
+                    StateMachine[] machines = {new StateMachine(), new StateMachine()};
+                    pl.appendProjects(machines, machines.length);
+                    break;
+            }
+            assertPositions(pl);
+        }
+        for(int id : removed) assertEquals(-1, pl.indexOfProject(id));
+        pl.importAll(new ProjectList().exportAll() + list(3).exportAll());
+        assertPositions(pl);
+        pl.clear();
+        assertEquals(0, pl.getProjectCount());
+    }
+
+    @Test
+    public void editsNotifyTheRowOfTheProject() {
+        ProjectList pl = list(6);
+        ArrayList<Integer> changed = new ArrayList<>();
+        pl.addOnEventListener((event, a, b) -> {
+            if(event == ProjectList.EV_PROJECT_CHANGED) changed.add(a);
+        });
+        int id = pl.getProjectId(4);
+        StateMachine sm = pl.getMachineById(id);
+        pl.selectProject(1);
+        pl.deleteProject();
+        sm.setPatternBits(0xff);
+        assertEquals(1, changed.size());
+        assertEquals(3, (int) changed.get(0));
+        // a deleted project still open somewhere is no row of the list
+        pl.selectProject(3);
+        pl.deleteProject();
+        sm.setPatternBits(0xf0);
+        assertEquals(1, changed.size());
+    }
+
+    private static String program(long bits) {
+        StateMachine sm = new StateMachine();
+        sm.setPatternBits(bits);
+        return sm.getProgram();
+    }
+
+    @Test
+    public void importReportsWhatItDid() {
+        ProjectList pl = list(3);
+        pl.setDedupMode(ProjectList.DEDUP_SKIP);
+        assertEquals(ProjectList.IMPORT_ADDED, pl.importProject("a", program(1)));
+        int added = pl.getSelIndex();
+        assertEquals(ProjectList.IMPORT_SKIPPED, pl.importProject("b", program(1)));
+        assertEquals(4, pl.getProjectCount());
+        pl.selectProject(0);
+        pl.setDedupMode(ProjectList.DEDUP_LINK);
+        assertEquals(ProjectList.IMPORT_LINKED, pl.importProject("c", program(1)));
+        assertEquals(added, pl.getSelIndex());
+        pl.setDedupMode(ProjectList.DEDUP_NONE);
+        assertEquals(ProjectList.IMPORT_ADDED, pl.importProject("d", program(1)));
+        assertEquals(5, pl.getProjectCount());
+    }
+
+    @Test
+    public void editsAndDeletesKeepTheHashesCurrent() {
+        ProjectList pl = new ProjectList();
+        pl.setDedupMode(ProjectList.DEDUP_SKIP);
+        assertEquals(ProjectList.IMPORT_ADDED, pl.importProject("a", program(1)));
+        assertEquals(0, pl.findProject(new StateMachine(program(1))));
+        // the program changed, the old one is not in the list any more
+        pl.getMachine().setPatternBits(2);
+        assertEquals(-1, pl.findProject(new StateMachine(program(1))));
+        assertEquals(0, pl.findProject(new StateMachine(program(2))));
+        assertEquals(ProjectList.IMPORT_ADDED, pl.importProject("b", program(1)));
+        assertEquals(ProjectList.IMPORT_SKIPPED, pl.importProject("c", program(2)));
+        pl.selectProject(pl.findProject(new StateMachine(program(2))));
+        pl.deleteProject();
+        assertEquals(-1, pl.findProject(new StateMachine(program(2))));
+        assertEquals(ProjectList.IMPORT_ADDED, pl.importProject("d", program(2)));
+    }
+
+    @Test
+    public void bulkImportsLeaveDuplicatesOut() {
+        ProjectList pl = list(0);
+        pl.importProject("a", program(1));
+        pl.setDedupMode(ProjectList.DEDUP_SKIP);
+        StateMachine[] machines = new StateMachine[6];
+        for(int i=0; i<machines.length; ++i) machines[i] = new StateMachine(program(i % 3));
+        assertEquals(2, pl.appendProjects(machines, machines.length));
+        assertEquals(3, pl.getProjectCount());
+        for(int i=0; i<3; ++i) assertTrue(pl.findProject(new StateMachine(program(i))) >= 0);
+        // importAll checks the list and what it read before
+        ProjectList other = new ProjectList();
+        for(int i=0; i<5; ++i) other.importProject("x", program(i % 4));
+        pl.importAll(other.exportAll());
+        assertEquals(4, pl.getProjectCount());
+        assertPositions(pl);
+        assertEquals(-1, pl.findProject(new StateMachine(program(4))));
+    }
+
+    @Test
+    public void lookupsReadTheStoreOnlyForUnknownHashes() {
+        int count = 50;
+        int[] ids = new int[count];
+        StateMachine[] machines = new StateMachine[count];
+        ProjectList.Preview[] previews = new ProjectList.Preview[count];
+        long[] hashes = new long[count];
+        String[] programs = new String[count];
+        for(int i=0; i<count; ++i) {
+            ids[i] = i;
+            programs[i] = program(i);
+            previews[i] = new ProjectList.Preview();
+            previews[i].name = "p" + i;
+            hashes[i] = i % 2 == 0 ? ProjectList.contentHash(new StateMachine(programs[i])) : 0;
+        }
+        int[] loads = new int[1];
+        ProjectList pl = new ProjectList();
+        pl.setLoader(id -> {
+            ++loads[0];
+            return new StateMachine(programs[id]);
+        });
+        pl.restore(ids, machines, previews, hashes, count, count, 0);
+        pl.setDedupMode(ProjectList.DEDUP_SKIP);
+        assertEquals(ProjectList.IMPORT_ADDED, pl.importProject("new", program(1000)));
+        // the first lookup reads the half without a hash, once
+        assertEquals(count / 2, loads[0]);
+        for(int i=0; i<count; ++i) {
+            assertEquals(ProjectList.IMPORT_SKIPPED, pl.importProject("again", program(i)));
+        }
+        assertEquals(ProjectList.IMPORT_SKIPPED, pl.importProject("again", program(1000)));
+        // a match is read to rule out a collision, a miss reads nothing
+        int before = loads[0];
+        assertEquals(ProjectList.IMPORT_ADDED, pl.importProject("other", program(2000)));
+        assertEquals(before, loads[0]);
+    }
+
+}
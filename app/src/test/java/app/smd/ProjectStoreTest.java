@@ -0,0 +1,167 @@
+package app.smd;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ProjectStoreTest {
+
+    private File dir;
+    private ProjectStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("store").toFile();
+        store = new ProjectStore(dir);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f : files) assertTrue(f.delete());
+        }
+        assertTrue(dir.delete());
+    }
+
+    private static StateMachine machine(int seed) {
+        StateMachine sm = ProgramParserTest.randomMachine(new Random(seed), 1 + seed % 20);
+        sm.setName("project " + seed);
+        return sm;
+    }
+
+    private static ProjectStore.Index index(int nextId, int... ids) {
+        ProjectStore.Index index = new ProjectStore.Index();
+        index.nextId = nextId;
+        index.ids = ids;
+        index.previews = new ProjectList.Preview[ids.length];
+        index.hashes = new long[ids.length];
+        for(int i=0; i<ids.length; ++i) {
+            ProjectList.Preview p = new ProjectList.Preview();
+            p.name = "project " + ids[i];
+            p.numStates = 1;
+            p.patterns = new long[]{ids[i]};
+            index.previews[i] = p;
+            index.hashes[i] = ProjectList.contentHash(machine(ids[i]));
+        }
+        return index;
+    }
+
+    private void writeProjects(int... ids) {
+        for(int id : ids) assertTrue(store.writeProject(id, machine(id)) > 0);
+    }
+
+    private void write(String name, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(new File(dir, name));
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void projectsRoundTrip() throws IOException {
+        writeProjects(1, 2, 3);
+        for(int id=1; id<=3; ++id) {
+            assertEquals(machine(id).getRepresentation(), store.readProject(id).getRepresentation());
+        }
+        assertNull(store.readProject(4));
+        store.deleteProject(2);
+        assertNull(store.readProject(2));
+        // a file cut short by something other than the store does not decode
+        write("3.smd", new byte[]{0x73, 0x6d});
+        assertNull(store.readProject(3));
+    }
+
+    @Test
+    public void aCleanStoreOpensAsWritten() {
+        assertNull(store.open());
+        writeProjects(0, 1, 2);
+        ProjectStore.Index written = index(3, 2, 0, 1);
+        written.generation = 7;
+        written.selection = 1;
+        assertTrue(store.writeIndex(written) > 0);
+        assertEquals(7, store.readGeneration());
+        ProjectStore.Index index = store.open();
+        assertEquals(7, index.generation);
+        assertEquals(3, index.nextId);
+        assertEquals(1, index.selection);
+        assertArrayEquals(new int[]{2, 0, 1}, index.ids);
+        assertArrayEquals(written.hashes, index.hashes);
+        for(int i=0; i<3; ++i) {
+            assertEquals(written.previews[i].name, index.previews[i].name);
+            assertArrayEquals(written.previews[i].patterns, index.previews[i].patterns);
+        }
+    }
+
+    @Test
+    public void openRepairsAfterACrash() throws IOException {
+        writeProjects(0, 1, 2, 3);
+        assertTrue(store.writeIndex(index(4, 0, 1, 2, 3)) > 0);
+        // a delete that removed the file but crashed before the index, one that wrote the index
+        // but left the file, an add that wrote the file only, and a half written replacement
+        store.deleteProject(1);
+        assertTrue(store.writeIndex(index(4, 0, 2, 1)) > 0);
+        writeProjects(3, 5);
+        write("0.smd.tmp", new byte[]{1, 2, 3});
+        int generation = store.readGeneration();
+        ProjectStore.Index index = store.open();
+        assertArrayEquals(new int[]{0, 2, 5}, index.ids);
+        assertEquals(6, index.nextId);
+        assertNull(index.previews[2]);
+        assertEquals(0, index.hashes[2]);
+        assertEquals(ProjectList.contentHash(machine(2)), index.hashes[1]);
+        assertNull(store.readProject(3));
+        assertFalse(new File(dir, "0.smd.tmp").exists());
+        assertEquals(machine(0).getRepresentation(), store.readProject(0).getRepresentation());
+        // the repair was written back, so the next open has nothing to do
+        assertEquals(generation + 1, store.readGeneration());
+        index = store.open();
+        assertArrayEquals(new int[]{0, 2, 5}, index.ids);
+        assertEquals(generation + 1, store.readGeneration());
+    }
+
+    @Test
+    public void aLostIndexIsRebuiltFromTheFiles() throws IOException {
+        writeProjects(4, 1, 9);
+        write("index", new byte[]{0x73, 0x6d, 0x64});
+        assertEquals(-1, store.readGeneration());
+        ProjectStore.Index index = store.open();
+        assertArrayEquals(new int[]{1, 4, 9}, index.ids);
+        assertEquals(10, index.nextId);
+        assertTrue(store.readGeneration() >= 0);
+    }
+
+    @Test
+    public void packsRoundTrip() throws IOException {
+        StateMachine[] machines = {machine(1), machine(2), machine(3)};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ProjectStore.writePack(new DataOutputStream(bytes), machines);
+        byte[] data = bytes.toByteArray();
+        StateMachine[] read = ProjectStore.readPack(new DataInputStream(new ByteArrayInputStream(data)));
+        assertEquals(machines.length, read.length);
+        for(int i=0; i<machines.length; ++i) {
+            assertEquals(machines[i].getRepresentation(), read[i].getRepresentation());
+        }
+        data[0] ^= 1;
+        assertNull(ProjectStore.readPack(new DataInputStream(new ByteArrayInputStream(data))));
+        data[0] ^= 1;
+        byte[] cut = new byte[data.length - 1];
+        System.arraycopy(data, 0, cut, 0, cut.length);
+        assertNull(ProjectStore.readPack(new DataInputStream(new ByteArrayInputStream(cut))));
+    }
+
+}
@@ -0,0 +1,103 @@
+package app.smd;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ProjectStreamTest {
+
+    private static StateMachine[] library(int count) {
+        Random r = new Random(23);
+        StateMachine[] machines = new StateMachine[count];
+        for(int i=0; i<count; ++i) {
+            machines[i] = ProgramParserTest.randomMachine(r, 1 + r.nextInt(90));
+            machines[i].setName(i % 5 == 0 ? "semi;colon " + i : "project " + i);
+        }
+        return machines;
+    }
+
+    private static ProjectStream.Source source(StateMachine[] machines, ProjectStream cancelAfter, int after) {
+        return new ProjectStream.Source() {
+            @Override
+            public int getCount() {
+                return machines.length;
+            }
+
+            @Override
+            public StateMachine get(int index) {
+                if(cancelAfter != null && index == after) cancelAfter.cancel();
+                return machines[index];
+            }
+        };
+    }
+
+    private static void assertSameLibrary(StateMachine[] expected, ArrayList<StateMachine> actual) {
+        assertEquals(expected.length, actual.size());
+        for(int i=0; i<expected.length; ++i) {
+            assertEquals(expected[i].getRepresentation(), actual.get(i).getRepresentation());
+        }
+    }
+
+    @Test
+    public void textRoundTrip() {
+        StateMachine[] machines = library(300);
+        StringWriter out = new StringWriter();
+        assertEquals(300, new ProjectStream().writeText(source(machines, null, 0), out));
+        ArrayList<StateMachine> read = new ArrayList<>();
+        assertEquals(300, new ProjectStream().readText(new StringReader(out.toString()), read::add));
+        assertSameLibrary(machines, read);
+    }
+
+    @Test
+    public void binaryRoundTrip() {
+        StateMachine[] machines = library(300);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(300, new ProjectStream().writeBinary(source(machines, null, 0), out));
+        byte[] bytes = out.toByteArray();
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+        assertEquals(ProjectStream.FORMAT_BINARY, ProjectStream.detectFormat(in));
+        ArrayList<StateMachine> read = new ArrayList<>();
+        assertEquals(300, new ProjectStream().readBinary(in, read::add));
+        assertSameLibrary(machines, read);
+        // a pack cut short does not read
+        byte[] cut = Arrays.copyOf(bytes, bytes.length / 2);
+        assertEquals(-1, new ProjectStream().readBinary(new ByteArrayInputStream(cut), sm -> { }));
+    }
+
+    @Test
+    public void textIsDetectedAsText() {
+        ByteArrayInputStream in = new ByteArrayInputStream(new StateMachine().getRepresentation().getBytes());
+        assertEquals(ProjectStream.FORMAT_TEXT, ProjectStream.detectFormat(in));
+        assertEquals(ProjectStream.FORMAT_TEXT, ProjectStream.detectFormat(new ByteArrayInputStream(new byte[1])));
+    }
+
+    @Test
+    public void cancelledExportsReportIncompleteOutput() {
+        StateMachine[] machines = library(100);
+        ProjectStream text = new ProjectStream();
+        assertEquals(-1, text.writeText(source(machines, text, 40), new StringWriter()));
+        assertTrue(text.isCancelled());
+        ProjectStream binary = new ProjectStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(-1, binary.writeBinary(source(machines, binary, 40), out));
+        assertEquals(-1, new ProjectStream().readBinary(new ByteArrayInputStream(out.toByteArray()), sm -> { }));
+    }
+
+    @Test
+    public void emptyRecordsAreSkippedAndBadOnesKept() {
+        String repr = new StateMachine().getRepresentation();
+        ArrayList<StateMachine> read = new ArrayList<>();
+        assertEquals(2, new ProjectStream().readText(new StringReader(";" + repr + ";;bad;"), read::add));
+        assertFalse(read.get(0).isErrorState());
+        assertTrue(read.get(1).isErrorState());
+    }
+
+}
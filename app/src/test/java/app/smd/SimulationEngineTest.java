@@ -0,0 +1,146 @@
+package app.smd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class SimulationEngineTest {
+
+    // "Rotating bar" and "Button feedback" from the demo projects
+    private static final String rotatingBar = "737430310efbfbdfaf9f85ffffffffffdffffffffffdffffffffffdffffffffffdffffffffffdffffffffffdffffffffffdffffffffffdffffffffffdffffffffffdffffffffffdffffffffffdffffffffffdffffffffffd8040201008040201402020100804040220201010080804041010101008080808080808081010101004040808101020200204040810202040010204081020408000010608106080000000030c30c000000000000ff0000000000000f00f0000000000c0300c0300000080601008060100";
+    private static final String buttonFeedback = "7374303105080808301e45ffffffffffdffffffffffdffffffffffdffffffffffdffffffffffd00000183c3c180000183c7e1818181818000406ffff06040018181818187e3c18002060ffff602000";
+
+    // SimulationActivity's clock tick by tick: a frame lasts getDelay() ticks of unpaused time,
+    // and the part of it that elapsed carries over speed changes and pauses; entries are tick,
+    // state, playback speed and paused, an entry only where one of the last three changed
+    private static ArrayList<long[]> reference(StateMachine source, SimulationEngine.Script script, long endTick) {
+        StateMachine sm = new StateMachine(source, true);
+        ArrayList<long[]> trace = new ArrayList<>();
+        addEntry(trace, 0, sm);
+        long progress = 0;  // in 1/8192 of a frame
+        int next = 0;
+        for(long t=1; t<=endTick; ++t) {
+            int delay = sm.isPaused() ? 0 : sm.getDelay();
+            if(delay != 0) {
+                progress += 8192 / delay;
+                if(progress >= 8192) {
+                    progress -= 8192;
+                    sm.step(StateMachine.TX_AUTO);
+                    addEntry(trace, t, sm);
+                }
+            }
+            while(next < script.size() && script.getTick(next) == t) {
+                sm.step(script.getTx(next++));
+                addEntry(trace, t, sm);
+            }
+        }
+        return trace;
+    }
+
+    private static void addEntry(ArrayList<long[]> trace, long tick, StateMachine sm) {
+        long[] entry = {tick, sm.getCurrentState(), sm.getPlaybackSpeed(), sm.isPaused() ? 1 : 0};
+        if(!trace.isEmpty()) {
+            long[] last = trace.get(trace.size() - 1);
+            if(last[1] == entry[1] && last[2] == entry[2] && last[3] == entry[3]) return;
+        }
+        trace.add(entry);
+    }
+
+    private static void assertTraceEquals(ArrayList<long[]> expected, SimulationEngine.Trace trace) {
+        assertEquals("entries", expected.size(), trace.size());
+        for(int i=0; i<trace.size(); ++i) {
+            long[] e = expected.get(i);
+            assertEquals("tick of " + i, e[0], trace.getTick(i));
+            assertEquals("state of " + i, e[1], trace.getState(i));
+            assertEquals("speed of " + i, e[2], trace.getPlaybackSpeed(i));
+            assertEquals("paused of " + i, e[3] != 0, trace.isPaused(i));
+        }
+    }
+
+    private static SimulationEngine.Script speedAndPauseScript() {
+        SimulationEngine.Script script = new SimulationEngine.Script();
+        script.add(1500, StateMachine.TX_UP);
+        script.add(2300, StateMachine.TX_UP);
+        script.add(2301, StateMachine.TX_CLICK);
+        script.add(4000, StateMachine.TX_CLICK);
+        script.add(4777, StateMachine.TX_DOWN);
+        script.add(4778, StateMachine.TX_DOWN);
+        script.add(4779, StateMachine.TX_DOWN);
+        script.add(6100, StateMachine.TX_LEFT);
+        script.add(6100, StateMachine.TX_RIGHT);
+        script.add(9000, StateMachine.TX_CLICK);
+        script.add(9500, StateMachine.TX_CLICK);
+        return script;
+    }
+
+    @Test
+    public void autoPlayMatchesTheActivityClock() {
+        StateMachine sm = new StateMachine(rotatingBar);
+        SimulationEngine engine = new SimulationEngine(sm);
+        SimulationEngine.Script script = new SimulationEngine.Script();
+        SimulationEngine.Trace trace = engine.run(script, 20000);
+        assertTraceEquals(reference(sm, script, 20000), trace);
+        assertTrue(trace.size() > 10);
+        assertEquals(20000, engine.getTick());
+    }
+
+    @Test
+    public void speedChangesAndPausesMatchTheActivityClock() {
+        for(String program : new String[]{rotatingBar, buttonFeedback}) {
+            StateMachine sm = new StateMachine(program);
+            SimulationEngine.Script script = speedAndPauseScript();
+            SimulationEngine.Trace trace = new SimulationEngine(sm).run(script, 12000);
+            assertTraceEquals(reference(sm, script, 12000), trace);
+            // the buttons of the second one lead to states instead
+            if(!program.equals(rotatingBar)) continue;
+            boolean paused = false;
+            boolean speedChanged = false;
+            for(int i=0; i<trace.size(); ++i) {
+                paused |= trace.isPaused(i);
+                speedChanged |= trace.getPlaybackSpeed(i) != trace.getPlaybackSpeed(0);
+            }
+            assertTrue(paused);
+            assertTrue(speedChanged);
+        }
+    }
+
+    @Test
+    public void runningInPiecesEqualsOneRun() {
+        StateMachine sm = new StateMachine(rotatingBar);
+        SimulationEngine.Script script = speedAndPauseScript();
+        SimulationEngine.Trace whole = new SimulationEngine(sm).run(script, 12000);
+        SimulationEngine engine = new SimulationEngine(sm);
+        ArrayList<long[]> pieces = new ArrayList<>();
+        for(long end : new long[]{777, 2301, 4000, 6099, 6100, 12000}) {
+            SimulationEngine.Trace trace = engine.run(script, end);
+            for(int i=0; i<trace.size(); ++i) {
+                long[] entry = {trace.getTick(i), trace.getState(i), trace.getPlaybackSpeed(i), trace.isPaused(i) ? 1 : 0};
+                long[] last = pieces.isEmpty() ? null : pieces.get(pieces.size() - 1);
+                if(last != null && last[1] == entry[1] && last[2] == entry[2] && last[3] == entry[3]) continue;
+                pieces.add(entry);
+            }
+        }
+        assertTraceEquals(pieces, whole);
+    }
+
+    @Test
+    public void endBeforeTheClockLeavesItAlone() {
+        SimulationEngine engine = new SimulationEngine(new StateMachine(rotatingBar));
+        engine.run(new SimulationEngine.Script(), 1000);
+        int state = engine.getStateMachine().getCurrentState();
+        SimulationEngine.Trace trace = engine.run(new SimulationEngine.Script(), 500);
+        assertEquals(0, trace.size());
+        assertEquals(1000, engine.getTick());
+        assertEquals(state, engine.getStateMachine().getCurrentState());
+        // the clock did not go back, the next frame comes when it would have
+        SimulationEngine.Trace later = engine.run(new SimulationEngine.Script(), 3000);
+        SimulationEngine fresh = new SimulationEngine(new StateMachine(rotatingBar));
+        fresh.run(new SimulationEngine.Script(), 1000);
+        SimulationEngine.Trace expected = fresh.run(new SimulationEngine.Script(), 3000);
+        assertEquals(expected.size(), later.size());
+        for(int i=0; i<later.size(); ++i) assertEquals(expected.getTick(i), later.getTick(i));
+    }
+
+}
@@ -0,0 +1,280 @@
+package app.smd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StateMachineTest {
+
+    private static final int NUM_TX = StateMachine.NUM_TX;
+
+    // the states as a plain list, with the renumbering of the transfers spelled out
+    private static class Model {
+        final ArrayList<Long> patterns = new ArrayList<>();
+        final ArrayList<Integer> speeds = new ArrayList<>();
+        final ArrayList<int[]> transfers = new ArrayList<>();
+
+        Model(StateMachine sm) {
+            for(int i=0; i<sm.getStateCount(); ++i) add(i, sm, i);
+        }
+
+        Model(Model m) {
+            patterns.addAll(m.patterns);
+            speeds.addAll(m.speeds);
+            for(int[] t : m.transfers) transfers.add(t.clone());
+        }
+
+        void add(int index, StateMachine sm, int from) {
+            patterns.add(index, sm.getPatternBits(from));
+            speeds.add(index, sm.getSpeed(from));
+            int[] t = new int[NUM_TX];
+            for(int tx=0; tx<NUM_TX; ++tx) t[tx] = sm.getRawTransfer(from, tx);
+            transfers.add(index, t);
+        }
+
+        void remap(int[] map) {
+            for(int[] t : transfers) {
+                for(int tx=0; tx<NUM_TX; ++tx) {
+                    if(t[tx] >= 0) t[tx] = map(map, t[tx]);
+                }
+            }
+        }
+
+        static int map(int[] map, int target) {
+            return target < map.length ? map[target] : target + map[map.length - 1] - (map.length - 1);
+        }
+
+        void assertMatches(StateMachine sm) {
+            assertEquals(patterns.size(), sm.getStateCount());
+            for(int i=0; i<patterns.size(); ++i) {
+                assertEquals((long) patterns.get(i), sm.getPatternBits(i));
+                assertEquals((int) speeds.get(i), sm.getSpeed(i));
+                for(int tx=0; tx<NUM_TX; ++tx) {
+                    assertEquals("state " + i + " tx " + tx, transfers.get(i)[tx], sm.getRawTransfer(i, tx));
+                }
+            }
+        }
+    }
+
+    // targets past the last state are kept and renumbered as well, so the map covers them too
+    private static int[] identity(int size) {
+        int[] map = new int[size];
+        for(int i=0; i<size; ++i) map[i] = i;
+        return map;
+    }
+
+    private static void edit(StateMachine sm, Model m, Random r) {
+        int n = sm.getStateCount();
+        int cur = r.nextInt(n);
+        sm.gotoState(cur);
+        int size = n + 8;
+        switch (r.nextInt(6)) {
+            case 0: {
+                sm.addState();
+                int[] map = identity(size);
+                for(int i=cur+1; i<size; ++i) ++map[i];
+                m.remap(map);
+                m.add(cur + 1, sm, cur + 1);
+                break;
+            }
+            case 1: {
+                if(n == 1) break;
+                sm.removeState();
+                m.patterns.remove(cur);
+                m.speeds.remove(cur);
+                m.transfers.remove(cur);
+                // transfers into the removed state go to the one before it
+                int[] map = identity(size);
+                for(int i=cur; i<size; ++i) --map[i];
+                m.remap(map);
+                break;
+            }
+            case 2: {
+                int to = r.nextInt(n);
+                if(to == cur) break;
+                sm.moveState(cur, to);
+                int[] map = identity(size);
+                if(cur < to) for(int i=cur+1; i<=to; ++i) --map[i];
+                else for(int i=to; i<cur; ++i) ++map[i];
+                map[cur] = to;
+                m.remap(map);
+                m.patterns.add(to, m.patterns.remove(cur));
+                m.speeds.add(to, m.speeds.remove(cur));
+                m.transfers.add(to, m.transfers.remove(cur));
+                break;
+            }
+            case 3:
+                sm.setPatternBits(r.nextLong());
+                m.patterns.set(cur, sm.getPatternBits(cur));
+                break;
+            case 4: {
+                int speed = r.nextInt(4);
+                sm.setSpeed(speed);
+                m.speeds.set(cur, speed);
+                break;
+            }
+            default: {
+                int tx = r.nextInt(NUM_TX);
+                int op = r.nextInt(n + 12) - 8;
+                sm.setRawTransfer(tx, op);
+                m.transfers.get(cur)[tx] = op;
+                break;
+            }
+        }
+    }
+
+    @Test
+    public void structuralEditsKeepTheColumnsInLine() {
+        Random r = new Random(2);
+        for(int round=0; round<20; ++round) {
+            StateMachine sm = ProgramParserTest.randomMachine(r, 1 + r.nextInt(10));
+            Model m = new Model(sm);
+            for(int step=0; step<300; ++step) {
+                edit(sm, m, r);
+                m.assertMatches(sm);
+            }
+        }
+    }
+
+    @Test
+    public void snapshotsAndCopiesKeepTheirOwnStates() {
+        Random r = new Random(20);
+        StateMachine sm = ProgramParserTest.randomMachine(r, 8);
+        Model m = new Model(sm);
+        ArrayList<StateMachine> copies = new ArrayList<>();
+        ArrayList<Model> expected = new ArrayList<>();
+        for(int step=0; step<400; ++step) {
+            edit(sm, m, r);
+            if(step % 20 == 0) {
+                copies.add(r.nextBoolean() ? sm.snapshot() : new StateMachine(sm, true));
+                expected.add(new Model(m));
+            }
+            // copies are edited too, they must not leak into the original or each other
+            if(step % 20 == 10) {
+                int k = r.nextInt(copies.size());
+                edit(copies.get(k), expected.get(k), r);
+            }
+        }
+        m.assertMatches(sm);
+        for(int k=0; k<copies.size(); ++k) expected.get(k).assertMatches(copies.get(k));
+    }
+
+    private static void assertSamePlayback(StateMachine expected, StateMachine actual) {
+        assertEquals(expected.getCurrentState(), actual.getCurrentState());
+        assertEquals(expected.getPlaybackSpeed(), actual.getPlaybackSpeed());
+        assertEquals(expected.isPaused(), actual.isPaused());
+    }
+
+    @Test
+    public void stepDoesWhatTheOpDoes() {
+        Random r = new Random(3);
+        for(int round=0; round<50; ++round) {
+            StateMachine table = ProgramParserTest.randomMachine(r, 1 + r.nextInt(20));
+            StateMachine ops = new StateMachine(table, true);
+            for(int i=0; i<500; ++i) {
+                int n = table.getStateCount();
+                if(table.isErrorState() || r.nextInt(50) == 0) {
+                    int s = r.nextInt(n);
+                    table.gotoState(s);
+                    ops.gotoState(s);
+                }
+                // edits in between must drop the compiled table
+                if(r.nextInt(20) == 0) {
+                    int tx = r.nextInt(NUM_TX);
+                    int op = r.nextInt(n + 9) - 8;
+                    if(r.nextBoolean()) {
+                        table.setRawTransfer(tx, op);
+                        ops.setRawTransfer(tx, op);
+                    } else {
+                        table.setDefaultTransfer(tx, op);
+                        ops.setDefaultTransfer(tx, op);
+                    }
+                } else if(r.nextInt(40) == 0) {
+                    table.addState();
+                    ops.addState();
+                }
+                int tx = r.nextInt(NUM_TX);
+                table.step(tx);
+                ops.processOp(ops.getTransfer(tx));
+                assertSamePlayback(ops, table);
+            }
+        }
+    }
+
+    @Test
+    public void theResolvedTransfersMatchResolveOp() {
+        StateMachine sm = ProgramParserTest.randomMachine(new Random(4), 30);
+        for(int i=0; i<30; ++i) {
+            sm.gotoState(i);
+            for(int tx=0; tx<NUM_TX; ++tx) {
+                assertEquals(StateMachine.resolveOp(i, sm.getTransfer(tx), 30), sm.getResolvedTransfer(i, tx));
+            }
+        }
+        assertEquals(StateMachine.OP_ERROR, sm.getResolvedTransfer(30, 0));
+        assertEquals(StateMachine.OP_ERROR, sm.getResolvedTransfer(0, NUM_TX));
+    }
+
+    @Test
+    public void advanceDoesWhatRepeatedStepsDo() {
+        Random r = new Random(5);
+        for(int round=0; round<50; ++round) {
+            StateMachine fast = ProgramParserTest.randomMachine(r, 1 + r.nextInt(20));
+            StateMachine slow = new StateMachine(fast, true);
+            for(int i=0; i<100; ++i) {
+                int n = fast.getStateCount();
+                int choice = r.nextInt(10);
+                if(choice == 0) {
+                    int s = r.nextInt(n + 1) - (r.nextInt(4) == 0 ? 1 : 0);
+                    fast.gotoState(s);
+                    slow.gotoState(s);
+                } else if(choice == 1) {
+                    // playback ops change the key the cycle is looked up by
+                    int tx = r.nextInt(NUM_TX);
+                    fast.step(tx);
+                    slow.step(tx);
+                } else if(choice == 2) {
+                    // so does an edit of the program
+                    int op = r.nextInt(n + 9) - 8;
+                    fast.setRawTransfer(StateMachine.TX_AUTO, op);
+                    slow.setRawTransfer(StateMachine.TX_AUTO, op);
+                }
+                int ticks = r.nextInt(3 * n + 10);
+                fast.advance(ticks);
+                for(int t=0; t<ticks; ++t) slow.step(StateMachine.TX_AUTO);
+                assertSamePlayback(slow, fast);
+            }
+        }
+    }
+
+    @Test
+    public void longJumpsAddUp() {
+        Random r = new Random(6);
+        for(int round=0; round<50; ++round) {
+            StateMachine sm = ProgramParserTest.randomMachine(r, 1 + r.nextInt(40));
+            StateMachine split = new StateMachine(sm, true);
+            long a = r.nextLong() >>> 4;
+            long b = r.nextInt(1000);
+            sm.advance(a + b);
+            split.advance(a);
+            split.advance(b);
+            assertSamePlayback(sm, split);
+        }
+        // a three state loop lands on the remainder
+        StateMachine sm = new StateMachine();
+        sm.addState();
+        sm.addState();
+        for(int i=0; i<3; ++i) {
+            sm.gotoState(i);
+            sm.setRawTransfer(StateMachine.TX_AUTO, StateMachine.OP_NEXT);
+        }
+        sm.gotoState(1);
+        sm.advance(3000000000L + 1);
+        assertEquals(2, sm.getCurrentState());
+        sm.advance(0);
+        assertEquals(2, sm.getCurrentState());
+    }
+
+}